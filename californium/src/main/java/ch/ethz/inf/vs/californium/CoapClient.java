@@ -8,6 +8,7 @@ import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.coap.BlockObserver;
 import ch.ethz.inf.vs.californium.coap.BlockOption;
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
 import ch.ethz.inf.vs.californium.coap.LinkFormat;
@@ -323,6 +324,30 @@ public class CoapClient {
 		asynchronous(accept(Request.newGet().setURI(uri), accept), handler);
 	}
 	
+	// Streaming GET
+	
+	/**
+	 * Sends a GET request and passes the blocks of the response to the
+	 * specified handler as they arrive. The next block is only requested when
+	 * the handler has returned from the previous one.
+	 *
+	 * @param handler the block handler
+	 */
+	public void stream(CoapStreamHandler handler) {
+		streaming(Request.newGet().setURI(uri), handler);
+	}
+	
+	/**
+	 * Sends a GET request with the specified Accept option and passes the
+	 * blocks of the response to the specified handler as they arrive.
+	 *
+	 * @param handler the block handler
+	 * @param accept the Accept option
+	 */
+	public void stream(CoapStreamHandler handler, int accept) {
+		streaming(accept(Request.newGet().setURI(uri), accept), handler);
+	}
+	
 	// Synchronous POST
 	
 	/**
@@ -700,6 +725,18 @@ public class CoapClient {
 		send(request);
 	}
 	
+	/*
+	 * Asynchronously sends the specified request and passes the blocks of the
+	 * response to the specified handler.
+	 *
+	 * @param request the request
+	 * @param handler the block handler
+	 */
+	private void streaming(Request request, CoapStreamHandler handler) {
+		request.setBlockObserver(new BlockObserverImpl(handler, request));
+		asynchronous(request, handler);
+	}
+	
 	/*
 	 * Synchronously sends the specified request.
 	 *
@@ -917,6 +954,54 @@ public class CoapClient {
 		}
 	}
 	
+	/**
+	 * The BlockObserverImpl is called when a block of a streamed response
+	 * arrives. It lets the executor invoke the handler's method and then
+	 * continues or cancels the download.
+	 */
+	private class BlockObserverImpl implements BlockObserver {
+		
+		/** The handler. */
+		private final CoapStreamHandler handler;
+		
+		/** The request whose response is streamed. */
+		private final Request request;
+		
+		private BlockObserverImpl(CoapStreamHandler handler, Request request) {
+			this.handler = handler;
+			this.request = request;
+		}
+		
+		public void onBlock(final Response block, final Runnable next) {
+			Executor exe = getExecutor();
+			if (exe == null) deliver(block, next);
+			else exe.execute(new Runnable() {
+				public void run() {
+					try {
+						deliver(block, next);
+					} catch (Throwable t) {
+						LOGGER.log(Level.WARNING, "Exception while handling block", t);
+						request.cancel();
+						next.run();
+					}}});
+		}
+		
+		/**
+		 * Invokes the handler's method with the specified block and requests
+		 * the next block if the handler wants to continue.
+		 *
+		 * @param block the block
+		 * @param next the continuation of the download
+		 */
+		private void deliver(Response block, Runnable next) {
+			if (!handler.onBlock(new CoapResponse(block))) {
+				LOGGER.fine("Handler has canceled the download of "+request);
+				request.cancel();
+			}
+			next.run();
+		}
+	}
+	
 	/**
 	 * The ObserveMessageObserveImpl is called whenever a notification of an
 	 * observed resource arrives. It wraps the response into a CoapResponse and
@@ -0,0 +1,25 @@
+package ch.ethz.inf.vs.californium;
+
+/**
+ * A CoapStreamHandler receives the response of a CoAP client block by block.
+ * When the server sends the response blockwise, the method
+ * {@link #onBlock(CoapResponse)} is invoked for each block in order and the
+ * client does not keep the payload of the blocks. The next block is only
+ * requested when the handler has returned. When the last block has been
+ * handled, the method {@link #onLoad(CoapResponse)} is invoked with a response
+ * without payload. If the response is not sent blockwise, only
+ * {@link #onLoad(CoapResponse)} is invoked with the whole payload. If a block
+ * request timeouts or the server rejects it, the method {@link #onError()} is
+ * invoked.
+ */
+public interface CoapStreamHandler extends CoapHandler {
+
+	/**
+	 * Invoked when the next block of the response has arrived.
+	 *
+	 * @param block the block
+	 * @return true to request the next block, false to cancel the download
+	 */
+	public boolean onBlock(CoapResponse block);
+
+}
@@ -0,0 +1,33 @@
+package ch.ethz.inf.vs.californium.coap;
+
+/**
+ * The observer interface for receiving the blocks of a response one by one.
+ * <p>
+ * If a request has a block observer, the blockwise layer does not assemble a
+ * response that is sent blockwise (Block2). Instead, it passes each block to
+ * the observer in order and forgets its payload. The observer decides when
+ * the blockwise layer continues: The next block is only requested when the
+ * observer invokes the continuation. Thus, a slow consumer, e.g., one that
+ * writes the blocks to a file, slows the download down instead of having the
+ * blocks pile up in memory. After the last block, the continuation delivers
+ * the response without payload to the request as usual.
+ * <p>
+ * To stop the download, the observer cancels the request before it invokes
+ * the continuation. The continuation then only cleans up the exchange.
+ * <p>
+ * The observer is registered with the request's
+ * {@link Request#setBlockObserver(BlockObserver)} method.
+ */
+public interface BlockObserver {
+
+	/**
+	 * Invoked when the next block of the response has arrived. The
+	 * continuation may be invoked later and from another thread.
+	 *
+	 * @param block the block
+	 * @param next the continuation that requests the next block or completes
+	 *            the response after the last block
+	 */
+	public void onBlock(Response block, Runnable next);
+
+}
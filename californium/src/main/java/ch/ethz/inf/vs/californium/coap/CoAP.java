@@ -1,5 +1,7 @@
 package ch.ethz.inf.vs.californium.coap;
 
+import java.nio.charset.Charset;
+
 /**
  * CoAP defines several constants.
  * <ul>
@@ -18,6 +20,9 @@ public class CoAP {
 	public static final String COAP_URI_SCHEME = "coap";
 	public static final String COAP_SECURE_URI_SCHEME = "coaps";
 	
+	/** The charset of string option values */
+	public static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+	
 	private CoAP() {
 		// prevent initialization
 	}
@@ -251,6 +256,7 @@ public class CoAP {
 		public static final int BLOCK2 = 23;
 		public static final int BLOCK1 = 27;
 		public static final int SIZE =   28;
+		public static final int SIZE1 =  60;
 		
 		/**
 		 * Option Number Registry default values.
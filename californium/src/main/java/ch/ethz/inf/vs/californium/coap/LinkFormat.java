@@ -111,7 +111,7 @@ public class LinkFormat {
 		
 		linkFormat.append(delimiter);
 		
-		if (values.size()>1 || !values.get(0).matches("^[0-9]+$")) {
+		if (values.size()>1 || !isCardinal(values.get(0))) {
 			linkFormat.append('"');
 			quotes = true;
 		}
@@ -132,6 +132,19 @@ public class LinkFormat {
 		return linkFormat;
 	}
 	
+	/*
+	 * Returns true if the value only consists of digits, as the regex
+	 * ^[0-9]+$ but without compiling it for every attribute.
+	 */
+	private static boolean isCardinal(String value) {
+		if (value.isEmpty()) return false;
+		for (int i=0;i<value.length();i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+		return true;
+	}
+	
 	public static boolean matches(Resource resource, List<String> queries) {
 		
 		if (resource==null) return false;
@@ -1,5 +1,8 @@
 package ch.ethz.inf.vs.californium.coap;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.util.Collections;
 import java.util.List;
@@ -54,6 +57,15 @@ public abstract class Message {
 	/** The payload as string. */
 	private String payloadString; // lazy-initialized.
 	
+	/** The buffer of a payload that has been assembled from blocks or null. */
+	private PayloadBuffer payloadBuffer;
+	
+	/**
+	 * The decoder of the options and payload of a received message that have
+	 * not been decoded yet or null.
+	 */
+	private volatile ContentDecoder decoder;
+	
 	/** The destination address of this message. */
 	private InetAddress destination;
 	
@@ -212,6 +224,7 @@ public abstract class Message {
 	 * @return the options
 	 */
 	public OptionSet getOptions() {
+		decodeContent();
 		if (options == null)
 			options = new OptionSet();
 		return options;
@@ -224,15 +237,34 @@ public abstract class Message {
 	 * @param options the new options
 	 */
 	public void setOptions(OptionSet options) {
+		decodeContent();
 		this.options = options;
 	}
 	
+	/**
+	 * Returns true if this message has an option with the specified number.
+	 * Unlike {@link #getOptions()}, this method does not decode the options of
+	 * a received message.
+	 * 
+	 * @param number the option number
+	 * @return true if the message has such an option
+	 */
+	public boolean hasOption(int number) {
+		ContentDecoder decoder = this.decoder;
+		if (decoder != null)
+			return decoder.hasOption(number);
+		return options != null && options.hasOption(number);
+	}
+	
 	/**
 	 * Gets the payload.
 	 *
 	 * @return the payload
 	 */
 	public byte[] getPayload() {
+		decodeContent();
+		if (payload == null && payloadBuffer != null)
+			payload = payloadBuffer.toByteArray();
 		return payload;
 	}
 	
@@ -243,6 +275,7 @@ public abstract class Message {
 	 * @return the payload as string
 	 */
 	public String getPayloadString() {
+		byte[] payload = getPayload();
 		if (payload==null)
 			return null;
 		this.payloadString = new String(payload);
@@ -255,9 +288,50 @@ public abstract class Message {
 	 * @return the payload size
 	 */
 	public int getPayloadSize() {
+		decodeContent();
+		if (payload == null && payloadBuffer != null)
+			return (int) Math.min(payloadBuffer.size(), Integer.MAX_VALUE);
 		return payload == null ? 0 : payload.length;
 	}
 	
+	/**
+	 * Gets the payload as stream. If the payload has been assembled from
+	 * blocks, the stream reads it from the {@link PayloadBuffer} without
+	 * copying it into a single array.
+	 * 
+	 * @return the payload stream
+	 * @throws IOException if the payload buffer cannot be read
+	 */
+	public InputStream getPayloadStream() throws IOException {
+		decodeContent();
+		if (payload == null && payloadBuffer != null)
+			return payloadBuffer.getInputStream();
+		return new ByteArrayInputStream(payload == null ? new byte[0] : payload);
+	}
+	
+	/**
+	 * Gets the buffer of a payload that has been assembled from blocks.
+	 * 
+	 * @return the payload buffer or null
+	 */
+	public PayloadBuffer getPayloadBuffer() {
+		return payloadBuffer;
+	}
+	
+	/**
+	 * Sets the payload to the content of the specified buffer. The payload is
+	 * only copied into an array when {@link #getPayload()} is called.
+	 * 
+	 * @param buffer the payload buffer
+	 */
+	public Message setPayloadBuffer(PayloadBuffer buffer) {
+		decodeContent();
+		this.payload = null;
+		this.payloadString = null;
+		this.payloadBuffer = buffer;
+		return this;
+	}
+	
 	/**
 	 * Sets the bytes from the specified string as payload. To clear the payload
 	 * from a message, do not use null but an empty string.
@@ -293,7 +367,9 @@ public abstract class Message {
 	 * @param payload the new payload
 	 */
 	public Message setPayload(byte[] payload) {
+		decodeContent();
 		this.payload = payload;
+		this.payloadBuffer = null;
 		this.payloadString = null; // reset lazy-initialized variable
 		return this;
 	}
@@ -591,4 +667,62 @@ public abstract class Message {
 		}
 	}
 
+	/**
+	 * Sets the decoder of the options and payload of a received message. The
+	 * options and payload are decoded on the first call of
+	 * {@link #getOptions()}, {@link #getPayload()} or one of the methods that
+	 * modify them. Until then, they remain encoded in the received datagram.
+	 * 
+	 * @param decoder the decoder
+	 */
+	public void setContentDecoder(ContentDecoder decoder) {
+		this.decoder = decoder;
+	}
+	
+	/**
+	 * Decodes the options and payload if they have not been decoded yet.
+	 */
+	private void decodeContent() {
+		if (decoder != null) {
+			synchronized (this) {
+				ContentDecoder decoder = this.decoder;
+				if (decoder != null) {
+					options = decoder.decodeOptions();
+					payload = decoder.decodePayload();
+					payloadString = null;
+					this.decoder = null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A ContentDecoder decodes the options and the payload of a received
+	 * message on demand.
+	 */
+	public static interface ContentDecoder {
+		
+		/**
+		 * Returns true if the encoded options contain an option with the
+		 * specified number without decoding them.
+		 * 
+		 * @param number the option number
+		 * @return true if there is such an option
+		 */
+		public boolean hasOption(int number);
+		
+		/**
+		 * Decodes the options.
+		 * 
+		 * @return the options
+		 */
+		public OptionSet decodeOptions();
+		
+		/**
+		 * Decodes the payload.
+		 * 
+		 * @return the payload
+		 */
+		public byte[] decodePayload();
+	}
 }
@@ -138,12 +138,12 @@ public class Option implements Comparable<Option> {
 	}
 	
 	/**
-	 * Gets the option value as string.
+	 * Gets the option value as UTF-8 string.
 	 *
 	 * @return the string value
 	 */
 	public String getStringValue() {
-		return new String(value);
+		return new String(value, CoAP.UTF8_CHARSET);
 	}
 	
 	/**
@@ -184,14 +184,14 @@ public class Option implements Comparable<Option> {
 	}
 	
 	/**
-	 * Sets the option value from a string.
+	 * Sets the option value from a string encoded in UTF-8.
 	 *
 	 * @param str the new option value as string
 	 */
 	public void setStringValue(String str) {
 		if (str == null)
 			throw new NullPointerException();
-		value = str.getBytes();
+		value = str.getBytes(CoAP.UTF8_CHARSET);
 	}
 	
 	/**
@@ -69,6 +69,7 @@ public final class OptionNumberRegistry {
 	public static final int BLOCK2 = 23;
 	public static final int BLOCK1 = 27;
 	public static final int SIZE = 28;
+	public static final int SIZE1 = 60;
 
 	// derived constant
 	public static final int TOKEN_LEN = 8;
@@ -90,6 +91,7 @@ public final class OptionNumberRegistry {
 		case BLOCK2:
 		case BLOCK1:
 		case SIZE:
+		case SIZE1:
 		case IF_NONE_MATCH:
 		case ACCEPT:
 			return optionFormats.INTEGER;
@@ -265,6 +267,8 @@ public final class OptionNumberRegistry {
 			return "Block1";
 		case SIZE:
 			return "Size";
+		case SIZE1:
+			return "Size1";
 		case IF_NONE_MATCH:
 			return "If-None-Match";
 		case PROXY_SCHEME:
@@ -70,6 +70,7 @@ public class OptionSet {
 	private BlockOption  block1;
 	private BlockOption  block2;
 	private Integer      observe;
+	private Integer      size1;
 	
 	// Arbitrary options
 	private List<Option> others;
@@ -96,6 +97,7 @@ public class OptionSet {
 		block1              = null;
 		block2              = null;
 		observe             = null;
+		size1               = null;
 		
 		others              = null; // new LinkedList<>();
 	}
@@ -124,6 +126,7 @@ public class OptionSet {
 		block1 = null;
 		block2 = null;
 		observe = null;
+		size1 = null;
 		if (others != null)
 			others.clear();
 	}
@@ -157,6 +160,7 @@ public class OptionSet {
 			block2          = new BlockOption(origin.block2);
 		
 		observe = origin.observe;
+		size1 = origin.size1;
 		
 		others              = copyList(origin.others);
 	}
@@ -189,7 +193,7 @@ public class OptionSet {
 	}
 	
 	public int getIfMatchCount() {
-		return getIfMatch().size();
+		return if_match_list == null ? 0 : if_match_list.size();
 	}
 	
 	public boolean isIfMatch(byte[] what) {
@@ -249,7 +253,7 @@ public class OptionSet {
 	}
 	
 	public int getETagCount() {
-		return getETags().size();
+		return etag_list == null ? 0 : etag_list.size();
 	}
 	
 	public boolean containsETag(byte[] what) {
@@ -339,7 +343,7 @@ public class OptionSet {
 	}
 	
 	public int getLocationPathCount() {
-		return getLocationPaths().size();
+		return location_path_list == null ? 0 : location_path_list.size();
 	}
 	
 	public OptionSet addLocationPath(String path) {
@@ -387,7 +391,7 @@ public class OptionSet {
 	}
 	
 	public int getURIPathCount() {
-		return getURIPaths().size();
+		return uri_path_list == null ? 0 : uri_path_list.size();
 	}
 	
 	public OptionSet setURIPath(String path) {
@@ -487,7 +491,7 @@ public class OptionSet {
 	}
 	
 	public int getURIQueryCount() {
-		return getURIQueries().size();
+		return uri_query_list == null ? 0 : uri_query_list.size();
 	}
 	
 	public OptionSet setURIQuery(String query) {
@@ -585,7 +589,7 @@ public class OptionSet {
 	}
 	
 	public int getLocationQueryCount() {
-		return getLocationQueries().size();
+		return location_query_list == null ? 0 : location_query_list.size();
 	}
 	
 	public OptionSet addLocationQuery(String query) {
@@ -719,11 +723,37 @@ public class OptionSet {
 		return this;
 	}
 	
+	public Integer getSize1() {
+		return size1;
+	}
+	
+	public boolean hasSize1() {
+		return size1 != null;
+	}
+	
+	public OptionSet setSize1(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Size1 option must not be negative but was "+size);
+		this.size1 = size;
+		return this;
+	}
+	
+	public OptionSet removeSize1() {
+		size1 = null;
+		return this;
+	}
+	
 	public boolean hasOption(int number) {
 		return Collections.binarySearch(asSortedList(), new Option(number)) >= 0;
 	}
 	
-	private List<Option> getOthers() {
+	/**
+	 * Returns the options that have no dedicated field in this set, e.g.,
+	 * options added with {@link #addOption(Option)}.
+	 * 
+	 * @return the other options in the order they have been added
+	 */
+	public List<Option> getOthers() {
 		if (others == null)
 			synchronized (this) {
 				if (others == null)
@@ -775,6 +805,8 @@ public class OptionSet {
 		
 		if (hasObserve())
 			options.add(new Option(CoAP.OptionRegistry.OBSERVE, getObserve()));
+		if (hasSize1())
+			options.add(new Option(CoAP.OptionRegistry.SIZE1, getSize1()));
 		
 		if (others != null)
 			options.addAll(others);
@@ -783,6 +815,10 @@ public class OptionSet {
 		return options;
 	}
 
+	public int getOthersCount() {
+		return others == null ? 0 : others.size();
+	}
+	
 	// Arbitrary or CoAP defined option
 	public OptionSet addOption(Option o) {
 		getOthers().add(o);
@@ -828,6 +864,8 @@ public class OptionSet {
 		
 		if (hasObserve())
 			os.add("Observe="+observe);
+		if (hasSize1())
+			os.add("Size1="+size1);
 		
 		if (others != null)
 			for (Option o:others)
@@ -0,0 +1,198 @@
+package ch.ethz.inf.vs.californium.coap;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A payload buffer collects the payload of a message that arrives in several
+ * blocks. The blocks are appended to a growable byte array. Once the size
+ * exceeds the spill threshold, the buffer moves its content to a temporary
+ * file and appends further blocks to the file. Thus, a large upload does not
+ * occupy the heap. The content can be read as a stream without copying it
+ * into a single array.
+ * <p>
+ * The temporary file is deleted when the buffer is released.
+ */
+public class PayloadBuffer {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(PayloadBuffer.class.getCanonicalName());
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/** The size beyond which the content is moved to a file */
+	private final int threshold;
+
+	/** The content while in memory or null */
+	private byte[] bytes;
+
+	/** The number of bytes in the buffer */
+	private long size;
+
+	/** The temporary file or null */
+	private File file;
+	private OutputStream out;
+
+	/**
+	 * Instantiates a new payload buffer.
+	 *
+	 * @param expectedSize the expected size of the payload, e.g., from the
+	 *            Size option, or 0 if unknown
+	 * @param threshold the size beyond which the content is moved to a
+	 *            temporary file
+	 */
+	public PayloadBuffer(int expectedSize, int threshold) {
+		this.threshold = threshold;
+		this.bytes = new byte[Math.max(16, Math.min(expectedSize, threshold))];
+	}
+
+	/**
+	 * Appends the specified block.
+	 *
+	 * @param block the block
+	 */
+	public synchronized void append(byte[] block) {
+		if (block == null || block.length == 0)
+			return;
+		if (file == null && size + block.length > threshold)
+			spill();
+		if (file != null) {
+			try {
+				out.write(block);
+				size += block.length;
+				return;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Cannot write to temporary file "+file+", keep payload in memory", e);
+				unspill();
+			}
+		}
+		if (size + block.length > bytes.length)
+			bytes = Arrays.copyOf(bytes, (int) Math.max(size + block.length, Math.min((long) bytes.length * 2, Integer.MAX_VALUE - 8)));
+		System.arraycopy(block, 0, bytes, (int) size, block.length);
+		size += block.length;
+	}
+
+	/**
+	 * Gets the number of bytes in the buffer.
+	 *
+	 * @return the size
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Returns true if the content has been moved to a temporary file.
+	 *
+	 * @return true, if spilled
+	 */
+	public synchronized boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * Returns a stream over the content. The stream reads from memory or from
+	 * the temporary file without copying the content.
+	 *
+	 * @return the stream
+	 * @throws IOException if the temporary file cannot be read
+	 */
+	public synchronized InputStream getInputStream() throws IOException {
+		if (file != null) {
+			out.flush();
+			return new FileInputStream(file);
+		}
+		return new ByteArrayInputStream(bytes, 0, (int) size);
+	}
+
+	/**
+	 * Copies the content into a new array. Prefer {@link #getInputStream()}
+	 * for large content.
+	 *
+	 * @return the content
+	 */
+	public synchronized byte[] toByteArray() {
+		if (size == 0)
+			return EMPTY;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalStateException("Payload of "+size+" bytes does not fit into an array");
+		if (file == null)
+			return Arrays.copyOf(bytes, (int) size);
+		byte[] content = new byte[(int) size];
+		try {
+			InputStream in = getInputStream();
+			try {
+				int offset = 0;
+				while (offset < content.length) {
+					int n = in.read(content, offset, content.length - offset);
+					if (n < 0) break;
+					offset += n;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot read temporary file "+file, e);
+		}
+		return content;
+	}
+
+	/**
+	 * Releases the buffer and deletes the temporary file if there is one.
+	 */
+	public synchronized void release() {
+		bytes = EMPTY;
+		size = 0;
+		deleteFile();
+	}
+
+	/*
+	 * Moves the content to a temporary file.
+	 */
+	private void spill() {
+		try {
+			file = File.createTempFile("cf-payload-", ".tmp");
+			file.deleteOnExit();
+			out = new FileOutputStream(file);
+			out.write(bytes, 0, (int) size);
+			bytes = null;
+			LOGGER.fine("Payload exceeds "+threshold+" bytes, spill to "+file);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Cannot create temporary file, keep payload in memory", e);
+			deleteFile();
+		}
+	}
+
+	/*
+	 * Moves the content back into memory after writing to the file failed.
+	 */
+	private void unspill() {
+		byte[] content = toByteArray();
+		deleteFile();
+		bytes = content;
+	}
+
+	private void deleteFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Cannot close temporary file "+file, e);
+			}
+			out = null;
+		}
+		if (file != null) {
+			if (!file.delete())
+				LOGGER.fine("Cannot delete temporary file "+file);
+			file = null;
+		}
+	}
+}
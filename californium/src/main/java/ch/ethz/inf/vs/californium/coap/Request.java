@@ -76,6 +76,9 @@ public class Request extends Message {
 	/** The lock object used to wait for a response. */
 	private Object lock;
 	
+	/** The observer that receives the blocks of the response one by one. */
+	private BlockObserver blockObserver;
+	
 	/**
 	 * Instantiates a new request with the specified CoAP code and no (null)
 	 * message type.
@@ -310,6 +313,27 @@ public class Request extends Message {
 		return this;
 	}
 	
+	/**
+	 * Gets the observer that receives the blocks of the response one by one.
+	 *
+	 * @return the block observer or null if the response is assembled
+	 */
+	public BlockObserver getBlockObserver() {
+		return blockObserver;
+	}
+	
+	/**
+	 * Sets the observer that receives the blocks of the response one by one
+	 * instead of the assembled response.
+	 *
+	 * @param observer the block observer
+	 * @return this request
+	 */
+	public Request setBlockObserver(BlockObserver observer) {
+		this.blockObserver = observer;
+		return this;
+	}
+	
 	/**
 	 * Gets the response or null if none has arrived yet.
 	 *
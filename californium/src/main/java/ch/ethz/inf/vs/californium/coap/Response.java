@@ -18,6 +18,9 @@ public class Response extends Message {
 
 	private boolean last = true;
 	
+	/** The options and payload this response shares with other responses */
+	private SharedContent sharedContent;
+	
 	/**
 	 * Instantiates a new response with the specified response code.
 	 *
@@ -92,6 +95,42 @@ public class Response extends Message {
 		return response;
 	}
 	
+	/**
+	 * Creates a response with the same code, type, options and payload as the
+	 * specified representation. The new response shares the very same options
+	 * and payload with the representation and all other responses that have
+	 * been created from it. The serializer therefore encodes the options and
+	 * payload only once and only writes the header and token of each response
+	 * on its own. Neither the options nor the payload must be modified
+	 * afterwards.
+	 * 
+	 * @param representation the representation
+	 * @return the response
+	 */
+	public static Response createSharedResponse(Response representation) {
+		SharedContent content = representation.sharedContent;
+		if (content == null) {
+			content = new SharedContent(representation.getOptions(), representation.getPayload());
+			representation.sharedContent = content;
+		}
+		Response response = new Response(representation.getCode());
+		response.setType(representation.getType());
+		response.setOptions(content.options);
+		response.setPayload(content.payload);
+		response.sharedContent = content;
+		return response;
+	}
+	
+	/**
+	 * Gets the options and payload that this response shares with other
+	 * responses or null.
+	 * 
+	 * @return the shared content
+	 */
+	public SharedContent getSharedContent() {
+		return sharedContent;
+	}
+	
 	public boolean isLast() {
 		return last;
 	}
@@ -114,4 +153,50 @@ public class Response extends Message {
 	public void setRTT(long rtt) {
 		this.rtt = rtt;
 	}
+
+	/**
+	 * The options and payload that several responses share and their encoding,
+	 * which the serializer computes when it needs it for the first time.
+	 */
+	public static final class SharedContent {
+		
+		private final OptionSet options;
+		private final byte[] payload;
+		private volatile byte[] bytes;
+		
+		private SharedContent(OptionSet options, byte[] payload) {
+			this.options = options;
+			this.payload = payload;
+		}
+		
+		/**
+		 * Returns true if the specified message still uses the shared options
+		 * and payload.
+		 * 
+		 * @param message the message
+		 * @return true if the message has the shared content
+		 */
+		public boolean isContentOf(Message message) {
+			return message.getOptions() == options && message.getPayload() == payload;
+		}
+		
+		/**
+		 * Gets the encoded options and payload or null if they have not been
+		 * encoded yet.
+		 * 
+		 * @return the encoded content
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+		
+		/**
+		 * Sets the encoded options and payload.
+		 * 
+		 * @param bytes the encoded content
+		 */
+		public void setBytes(byte[] bytes) {
+			this.bytes = bytes;
+		}
+	}
 }
@@ -0,0 +1,237 @@
+package ch.ethz.inf.vs.californium.network;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * The admission control protects an endpoint from overload. It counts the
+ * incoming messages that wait on the executor of the endpoint and the
+ * exchanges that have been delivered to the server but not yet answered. When
+ * either exceeds its limit, the endpoint no longer admits new requests: A
+ * confirmable request is answered right away with 5.03 (Service Unavailable)
+ * and a Max-Age that estimates when the server will have caught up, a
+ * non-confirmable request is dropped. ACKs, RSTs and responses are always
+ * admitted, so that exchanges in progress can complete and free their
+ * resources.
+ * <p>
+ * A limit of 0 or less disables the corresponding check. Both limits are 0
+ * by default.
+ */
+public class AdmissionControl {
+
+	/** The minimum interval between two purges of the active exchanges */
+	private static final long PURGE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final int maxQueuedMessages;
+	private final int maxActiveExchanges;
+
+	/** The upper limit of the Max-Age in seconds */
+	private final int maxAge;
+
+	/** The time after which an unanswered exchange no longer counts */
+	private final long exchangeLifecycle;
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/** The unanswered exchanges with the time they have been admitted */
+	private final ConcurrentHashMap<Exchange, Long> active = new ConcurrentHashMap<Exchange, Long>();
+	private final AtomicInteger activeCount = new AtomicInteger();
+	private volatile long lastPurge;
+
+	/** The average processing time of a message in nanoseconds */
+	private volatile long processingTime;
+
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Random random = new Random();
+
+	/**
+	 * Instantiates a new admission control with the limits from the specified
+	 * configuration.
+	 *
+	 * @param config the configuration
+	 */
+	public AdmissionControl(NetworkConfig config) {
+		this.maxQueuedMessages = config.getInt(NetworkConfigDefaults.MAX_QUEUED_MESSAGES);
+		this.maxActiveExchanges = config.getInt(NetworkConfigDefaults.MAX_ACTIVE_EXCHANGES);
+		this.maxAge = Math.max(1, config.getInt(NetworkConfigDefaults.OVERLOAD_MAX_AGE));
+		this.exchangeLifecycle = TimeUnit.MILLISECONDS.toNanos(config.getLong(NetworkConfigDefaults.EXCHANGE_LIFECYCLE));
+	}
+
+	/**
+	 * Returns true if either limit has been reached and new requests must not
+	 * be admitted.
+	 *
+	 * @return true if overloaded
+	 */
+	public boolean isOverloaded() {
+		if (maxQueuedMessages > 0 && queued.get() >= maxQueuedMessages)
+			return true;
+		if (maxActiveExchanges > 0 && activeCount.get() >= maxActiveExchanges) {
+			purge();
+			return activeCount.get() >= maxActiveExchanges;
+		}
+		return false;
+	}
+
+	/**
+	 * Counts a message that waits on the executor.
+	 */
+	public void queued() {
+		queued.incrementAndGet();
+	}
+
+	/**
+	 * Stops counting the specified number of messages that were counted as
+	 * queued but could not be handed to the executor.
+	 *
+	 * @param count the number of messages
+	 */
+	public void unqueued(int count) {
+		queued.addAndGet(-count);
+	}
+
+	/**
+	 * Counts a message that has been processed.
+	 *
+	 * @param nanos the time it took to process the message in nanoseconds
+	 */
+	public void processed(long nanos) {
+		queued.decrementAndGet();
+		// not atomic, a lost update does not matter for an estimate
+		processingTime = (7 * processingTime + nanos) / 8;
+	}
+
+	/**
+	 * Counts the specified exchange as active until it is answered or has
+	 * completed.
+	 *
+	 * @param exchange the exchange
+	 */
+	public void activate(Exchange exchange) {
+		if (maxActiveExchanges > 0 && active.putIfAbsent(exchange, System.nanoTime()) == null) {
+			activeCount.incrementAndGet();
+			if (!(exchange.getObserver() instanceof CompletionObserver))
+				exchange.setObserver(new CompletionObserver(exchange.getObserver()));
+		}
+	}
+
+	/**
+	 * Stops counting the specified exchange as active.
+	 *
+	 * @param exchange the exchange
+	 */
+	public void answered(Exchange exchange) {
+		if (maxActiveExchanges > 0 && active.remove(exchange) != null)
+			activeCount.decrementAndGet();
+	}
+
+	/**
+	 * Counts a confirmable request that has been rejected with 5.03.
+	 */
+	public void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * Counts a non-confirmable request that has been dropped.
+	 */
+	public void dropped() {
+		dropped.incrementAndGet();
+	}
+
+	/**
+	 * Computes the Max-Age for a 5.03 response. It is the time the endpoint
+	 * needs to process the waiting messages, at least one second, spread at
+	 * random by up to the same amount so that the rejected clients do not
+	 * return all at once.
+	 *
+	 * @return the Max-Age in seconds
+	 */
+	public int getMaxAge() {
+		long backlog = queued.get() * processingTime;
+		int seconds = (int) Math.min(maxAge, Math.max(1, (backlog + 999999999L) / 1000000000L));
+		return Math.min(maxAge, seconds + random.nextInt(seconds + 1));
+	}
+
+	/**
+	 * Gets the number of messages that wait on the executor.
+	 *
+	 * @return the number of queued messages
+	 */
+	public int getQueuedCount() {
+		return queued.get();
+	}
+
+	/**
+	 * Gets the number of exchanges that have not yet been answered.
+	 *
+	 * @return the number of active exchanges
+	 */
+	public int getActiveCount() {
+		return activeCount.get();
+	}
+
+	/**
+	 * Gets the number of confirmable requests that have been rejected.
+	 *
+	 * @return the number of rejected requests
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Gets the number of non-confirmable requests that have been dropped.
+	 *
+	 * @return the number of dropped requests
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/*
+	 * Forgets the exchanges that have not been answered within the exchange
+	 * lifecycle, e.g., because the application never responded.
+	 */
+	private void purge() {
+		long now = System.nanoTime();
+		if (now - lastPurge < PURGE_INTERVAL) return;
+		lastPurge = now;
+		Iterator<Map.Entry<Exchange, Long>> it = active.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Exchange, Long> entry = it.next();
+			if (now - entry.getValue() > exchangeLifecycle && active.remove(entry.getKey(), entry.getValue()))
+				activeCount.decrementAndGet();
+		}
+	}
+
+	/*
+	 * Stops counting an exchange as active when it completes without a reply,
+	 * e.g., a non-confirmable request that the server never answers, and
+	 * then notifies the previous observer of the exchange.
+	 */
+	private class CompletionObserver implements ExchangeObserver {
+
+		private final ExchangeObserver next;
+
+		private CompletionObserver(ExchangeObserver next) {
+			this.next = next;
+		}
+
+		public void completed(Exchange exchange) {
+			answered(exchange);
+			if (next != null)
+				next.completed(exchange);
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package ch.ethz.inf.vs.californium.network;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.PayloadBuffer;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.stack.BlockwiseStatus;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
+
+/**
+ * The store of the ongoing blockwise transfers of an endpoint. The matcher
+ * uses it to find the exchange to which a request block belongs. A transfer
+ * is identified by the peer and the URI options of the request. The key is a
+ * 64-bit hash of them, which is computed without building the URI string.
+ * Since the hash might collide, a lookup compares the options of the stored
+ * exchange with the request.
+ * <p>
+ * The store bounds the state that clients can leave behind. It removes the
+ * transfers that have been idle for BLOCKWISE_STATUS_LIFETIME and evicts the
+ * least recently used transfers when there are more than
+ * MAX_BLOCKWISE_TRANSFERS or when they buffer more than MAX_BLOCKWISE_BYTES.
+ * The limits are checked whenever a transfer is stored or accessed, counting
+ * the payload of the block that has just arrived, so that a transfer that
+ * grows makes room by evicting the other transfers.
+ * A removed transfer releases its payload buffer and its exchange is
+ * completed. If its client continues, the next block starts a new exchange
+ * and is answered like a block of an unknown transfer.
+ */
+public class BlockwiseStore {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(BlockwiseStore.class.getCanonicalName());
+
+	/** The transfers in the order of their last access */
+	private final LinkedHashMap<Long, Transfer> transfers;
+
+	private final int maxTransfers;
+	private final long maxBytes;
+	private final long lifetime;
+
+	/** The number of bytes buffered by all transfers when last accessed */
+	private long bytes;
+
+	private long evicted;
+	private long expired;
+
+	private TimerService timer;
+	private ScheduledFuture<?> future;
+	private boolean started;
+
+	public BlockwiseStore(NetworkConfig config) {
+		this.maxTransfers = config.getInt(NetworkConfigDefaults.MAX_BLOCKWISE_TRANSFERS);
+		this.maxBytes = config.getLong(NetworkConfigDefaults.MAX_BLOCKWISE_BYTES);
+		this.lifetime = config.getLong(NetworkConfigDefaults.BLOCKWISE_STATUS_LIFETIME);
+		this.transfers = new LinkedHashMap<Long, Transfer>(16, 0.75f, true);
+	}
+
+	public synchronized void start() {
+		started = true;
+		schedule();
+	}
+
+	public synchronized void stop() {
+		started = false;
+		if (future != null)
+			future.cancel(false);
+		future = null;
+	}
+
+	public synchronized void setTimer(TimerService timer) {
+		boolean restart = started;
+		stop();
+		this.timer = timer;
+		if (restart)
+			start();
+	}
+
+	/**
+	 * Gets the exchange of the ongoing transfer to which the specified request
+	 * from the specified peer belongs.
+	 *
+	 * @param request the request
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @return the exchange or null
+	 */
+	public Exchange get(Request request, InetAddress address, int port) {
+		List<Exchange> removed = new ArrayList<Exchange>();
+		Exchange exchange;
+		synchronized (this) {
+			Transfer transfer = transfers.get(getKey(request.getOptions(), address, port));
+			if (transfer == null || !transfer.isFor(request.getOptions(), address, port))
+				return null;
+			transfer.access();
+			evict(transfer, request.getPayloadSize(), removed);
+			exchange = transfer.exchange;
+		}
+		abandon(removed);
+		return exchange;
+	}
+
+	/**
+	 * Stores the exchange of the transfer to which the specified request from
+	 * the specified peer belongs.
+	 *
+	 * @param request the request
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @param exchange the exchange
+	 */
+	public void put(Request request, InetAddress address, int port, Exchange exchange) {
+		List<Exchange> removed = new ArrayList<Exchange>();
+		synchronized (this) {
+			Transfer transfer = new Transfer(exchange, address, port);
+			Transfer previous = transfers.put(getKey(request.getOptions(), address, port), transfer);
+			if (previous != null)
+				bytes -= previous.bytes;
+			transfer.access();
+			evict(transfer, request.getPayloadSize(), removed);
+		}
+		abandon(removed);
+	}
+
+	/**
+	 * Removes the transfer to which the specified request from the specified
+	 * peer belongs if it is stored with the specified exchange.
+	 *
+	 * @param request the request
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @param exchange the exchange
+	 */
+	public synchronized void remove(Request request, InetAddress address, int port, Exchange exchange) {
+		Long key = getKey(request.getOptions(), address, port);
+		Transfer transfer = transfers.get(key);
+		if (transfer != null && transfer.exchange == exchange) {
+			transfers.remove(key);
+			bytes -= transfer.bytes;
+		}
+	}
+
+	/**
+	 * Gets the number of active transfers.
+	 *
+	 * @return the number of transfers
+	 */
+	public synchronized int getSize() {
+		return transfers.size();
+	}
+
+	/**
+	 * Gets the number of bytes buffered by the active transfers when they
+	 * were last accessed.
+	 *
+	 * @return the bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Gets the number of transfers that have been evicted because of the
+	 * limits.
+	 *
+	 * @return the number of evicted transfers
+	 */
+	public synchronized long getEvictedCount() {
+		return evicted;
+	}
+
+	/**
+	 * Gets the number of transfers that have been removed because they have
+	 * been idle for too long.
+	 *
+	 * @return the number of expired transfers
+	 */
+	public synchronized long getExpiredCount() {
+		return expired;
+	}
+
+	public synchronized void clear() {
+		transfers.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Removes the transfers that have been idle for longer than the lifetime.
+	 */
+	public void sweep() {
+		List<Exchange> removed = new ArrayList<Exchange>();
+		synchronized (this) {
+			long oldestAllowed = System.currentTimeMillis() - lifetime;
+			Iterator<Transfer> it = transfers.values().iterator();
+			while (it.hasNext()) {
+				// the transfers are in the order of their last access
+				Transfer transfer = it.next();
+				if (transfer.lastAccess >= oldestAllowed)
+					break;
+				it.remove();
+				bytes -= transfer.bytes;
+				expired++;
+				removed.add(transfer.exchange);
+			}
+		}
+		for (Exchange exchange:removed) {
+			LOGGER.fine("Blockwise transfer has been idle for "+lifetime+" ms, remove "+exchange.getCurrentRequest());
+			abandon(exchange);
+		}
+	}
+
+	/*
+	 * Removes the least recently used transfers other than the specified one
+	 * while the limits are exceeded. The incoming bytes are the payload of
+	 * the block that the specified transfer is about to buffer. Must be
+	 * called while holding the lock.
+	 */
+	private void evict(Transfer current, long incoming, List<Exchange> removed) {
+		Iterator<Transfer> it = transfers.values().iterator();
+		while ((transfers.size() > maxTransfers || bytes + incoming > maxBytes) && it.hasNext()) {
+			Transfer eldest = it.next();
+			if (eldest == current)
+				// the current transfer is the most recently used one
+				break;
+			it.remove();
+			bytes -= eldest.bytes;
+			evicted++;
+			removed.add(eldest.exchange);
+		}
+	}
+
+	private void abandon(List<Exchange> removed) {
+		for (Exchange eldest:removed) {
+			LOGGER.info("Too many blockwise transfers, evict the least recently used one with "+eldest.getCurrentRequest());
+			abandon(eldest);
+		}
+	}
+
+	/*
+	 * Releases the state of a transfer that has been removed and completes
+	 * its exchange.
+	 */
+	private void abandon(Exchange exchange) {
+		BlockwiseStatus status = exchange.getRequestBlockStatus();
+		if (status != null && status.getBuffer() != null)
+			status.getBuffer().release();
+		exchange.setRequestBlockStatus(null);
+		exchange.setResponseBlockStatus(null);
+		exchange.setComplete();
+	}
+
+	private synchronized void schedule() {
+		if (!started || timer == null)
+			return;
+		future = timer.schedule(new Runnable() {
+			public void run() {
+				try {
+					sweep();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception in blockwise store sweep", t);
+				} finally {
+					schedule();
+				}
+			}
+		}, Math.max(1, lifetime / 2), TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Computes a 64-bit FNV-1a hash of the peer and the URI options.
+	 */
+	private static long getKey(OptionSet options, InetAddress address, int port) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ (address.hashCode() & 0xFFFFFFFFL)) * 0x100000001b3L;
+		hash = (hash ^ port) * 0x100000001b3L;
+		if (options.hasURIHost())
+			hash = hash(hash, options.getURIHost());
+		for (String segment:options.getURIPaths())
+			hash = hash(hash, segment);
+		hash = (hash ^ '?') * 0x100000001b3L;
+		for (String query:options.getURIQueries())
+			hash = hash(hash, query);
+		return hash;
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i=0;i<value.length();i++)
+			hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+		return (hash ^ '/') * 0x100000001b3L;
+	}
+
+	/*
+	 * Counts the bytes a transfer buffers. A response that is served from a
+	 * shared representation is not counted.
+	 */
+	private static long getBufferedBytes(Exchange exchange) {
+		long bytes = 0;
+		BlockwiseStatus status = exchange.getRequestBlockStatus();
+		if (status != null) {
+			PayloadBuffer buffer = status.getBuffer();
+			if (buffer != null)
+				bytes += buffer.size();
+		}
+		status = exchange.getResponseBlockStatus();
+		Response response = exchange.getResponse();
+		if (response != null && (status == null || status.getRepresentation() == null))
+			bytes += response.getPayloadSize();
+		return bytes;
+	}
+
+	/*
+	 * An ongoing transfer.
+	 */
+	private class Transfer {
+
+		private final Exchange exchange;
+		private final InetAddress address;
+		private final int port;
+		private long lastAccess;
+		private long bytes;
+
+		private Transfer(Exchange exchange, InetAddress address, int port) {
+			this.exchange = exchange;
+			this.address = address;
+			this.port = port;
+		}
+
+		/*
+		 * Updates the time of the last access and the buffered bytes.
+		 */
+		private void access() {
+			lastAccess = System.currentTimeMillis();
+			long current = getBufferedBytes(exchange);
+			BlockwiseStore.this.bytes += current - bytes;
+			bytes = current;
+		}
+
+		private boolean isFor(OptionSet options, InetAddress address, int port) {
+			Request request = exchange.getCurrentRequest();
+			if (request == null || this.port != port || !this.address.equals(address))
+				return false;
+			OptionSet stored = request.getOptions();
+			return stored.getURIPaths().equals(options.getURIPaths())
+					&& stored.getURIQueries().equals(options.getURIQueries())
+					&& (stored.hasURIHost() ? stored.getURIHost().equals(options.getURIHost()) : !options.hasURIHost());
+		}
+	}
+}
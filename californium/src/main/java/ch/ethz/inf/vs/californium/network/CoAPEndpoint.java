@@ -1,20 +1,25 @@
 package ch.ethz.inf.vs.californium.network;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
 import ch.ethz.inf.vs.californium.coap.EmptyMessage;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.connector.NioUDPConnector;
+import ch.ethz.inf.vs.californium.network.connector.RawDataBatchChannel;
 import ch.ethz.inf.vs.californium.network.interceptors.MessageInterceptor;
 import ch.ethz.inf.vs.californium.network.serialization.DataParser;
 import ch.ethz.inf.vs.californium.network.serialization.Serializer;
@@ -24,10 +29,11 @@ import ch.ethz.inf.vs.californium.network.stack.ExchangeForwarder;
 import ch.ethz.inf.vs.californium.network.stack.ObserveLayer;
 import ch.ethz.inf.vs.californium.network.stack.ReliabilityLayer;
 import ch.ethz.inf.vs.californium.network.stack.TokenLayer;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
+import ch.ethz.inf.vs.californium.network.timer.TimerServiceFactory;
 import ch.ethz.inf.vs.californium.server.MessageDeliverer;
 import ch.ethz.inf.vs.elements.Connector;
 import ch.ethz.inf.vs.elements.RawData;
-import ch.ethz.inf.vs.elements.RawDataChannel;
 import ch.ethz.inf.vs.elements.UDPConnector;
 
 /**
@@ -106,6 +112,12 @@ public class CoAPEndpoint implements Endpoint {
 	/** The executor to run tasks for this endpoint and its layers */
 	private ScheduledExecutorService executor;
 	
+	/** The executor if it keeps the tasks of a peer on one thread or null */
+	private PeerAffinityExecutor affinity;
+	
+	/** The timer service to schedule delayed tasks on the executor */
+	private final TimerService timer;
+	
 	/** Indicates if the endpoint has been started */
 	private boolean started;
 	
@@ -121,6 +133,9 @@ public class CoAPEndpoint implements Endpoint {
 	/** The serializer to serialize messages to bytes */
 	private Serializer serializer;
 	
+	/** Rejects new requests when the endpoint is overloaded */
+	private final AdmissionControl admission;
+	
 	/**
 	 * Instantiates a new endpoint.
 	 */
@@ -172,21 +187,26 @@ public class CoAPEndpoint implements Endpoint {
 		this.connector = connector;
 		this.serializer = new Serializer();
 		
+		this.timer = TimerServiceFactory.getTimerServiceFactory().createTimerService(config);
 		this.matcher = new Matcher(config);		
 		this.coapstack = new CoapStack(config, new ExchangeForwarderImpl());
+		this.admission = new AdmissionControl(config);
 
 		// connector delivers bytes to CoAP stack
 		connector.setRawDataReceiver(new RawDataChannelImpl()); 
 	}
 	
 	/**
-	 * Creates a new UDP connector.
+	 * Creates a new UDP connector. If {@link NetworkConfigDefaults#UDP_CONNECTOR_NIO}
+	 * is set, a selector-based {@link NioUDPConnector} is used.
 	 *
 	 * @param address the address
 	 * @param config the configuration
 	 * @return the connector
 	 */
 	private static Connector createUDPConnector(InetSocketAddress address, NetworkConfig config) {
+		if (config.getBoolean(NetworkConfigDefaults.UDP_CONNECTOR_NIO))
+			return createNioUDPConnector(address, config);
 		UDPConnector c = new UDPConnector(address);
 		c.setReceiverThreadCount(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_RECEIVER_THREAD_COUNT));
 		c.setSenderThreadCount(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_SENDER_THREAD_COUNT));
@@ -197,6 +217,24 @@ public class CoAPEndpoint implements Endpoint {
 		return c;
 	}
 	
+	/**
+	 * Creates a new selector-based UDP connector.
+	 *
+	 * @param address the address
+	 * @param config the configuration
+	 * @return the connector
+	 */
+	private static NioUDPConnector createNioUDPConnector(InetSocketAddress address, NetworkConfig config) {
+		NioUDPConnector c = new NioUDPConnector(address);
+		c.setReceiveBufferSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_RECEIVE_BUFFER));
+		c.setSendBufferSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_SEND_BUFFER));
+		c.setLogPackets(config.getBoolean(NetworkConfigDefaults.UDP_CONNECTOR_LOG_PACKETS));
+		c.setReceiverPacketSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_DATAGRAM_SIZE));
+		c.setBufferPoolSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_BUFFER_POOL_SIZE));
+		c.setReceiveBatchSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_RECEIVE_BATCH_SIZE));
+		return c;
+	}
+	
 	/* (non-Javadoc)
 	 * @see ch.ethz.inf.vs.californium.network.Endpoint#start()
 	 */
@@ -215,6 +253,7 @@ public class CoAPEndpoint implements Endpoint {
 		try {
 			LOGGER.log(Level.INFO, "Starting Endpoint bound to " + getAddress());
 			started = true;
+			timer.start();
 			matcher.start();
 			connector.start();
 			for (EndpointObserver obs:observers)
@@ -253,6 +292,7 @@ public class CoAPEndpoint implements Endpoint {
 			started = false;
 			connector.stop();
 			matcher.stop();
+			timer.stop();
 			for (EndpointObserver obs:observers)
 				obs.stopped(this);
 			matcher.clear();
@@ -294,8 +334,11 @@ public class CoAPEndpoint implements Endpoint {
 	@Override
 	public synchronized void setExecutor(ScheduledExecutorService executor) {
 		this.executor = executor;
+		this.affinity = executor instanceof PeerAffinityExecutor ? (PeerAffinityExecutor) executor : null;
+		this.timer.setExecutor(executor);
 		this.coapstack.setExecutor(executor);
-		this.matcher.setExecutor(executor);
+		this.coapstack.setTimer(timer);
+		this.matcher.setTimer(timer);
 	}
 	
 	/* (non-Javadoc)
@@ -343,7 +386,7 @@ public class CoAPEndpoint implements Endpoint {
 	 */
 	@Override
 	public void sendRequest(final Request request) {
-		executor.execute(new Runnable() {
+		executePeerTask(request.getDestination(), request.getDestinationPort(), new Runnable() {
 			public void run() {
 				try {
 					coapstack.sendRequest(request);
@@ -379,7 +422,7 @@ public class CoAPEndpoint implements Endpoint {
 	 */
 	@Override
 	public void sendEmptyMessage(final Exchange exchange, final EmptyMessage message) {
-		executor.execute(new Runnable() {
+		executePeerTask(message.getDestination(), message.getDestinationPort(), new Runnable() {
 			public void run() {
 				try {
 					coapstack.sendEmptyMessage(exchange, message);
@@ -413,6 +456,25 @@ public class CoAPEndpoint implements Endpoint {
 	public NetworkConfig getConfig() {
 		return config;
 	}
+	
+	/**
+	 * Gets the admission control of this endpoint.
+	 *
+	 * @return the admission control
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return admission;
+	}
+	
+	/**
+	 * Gets the store of the ongoing blockwise transfers of this endpoint. It
+	 * provides the number of active transfers and the bytes they buffer.
+	 *
+	 * @return the blockwise store
+	 */
+	public BlockwiseStore getBlockwiseStore() {
+		return matcher.getBlockwiseStore();
+	}
 
 	/**
 	 * The stack of layers uses this forwarder to send messages. The forwarder
@@ -441,6 +503,7 @@ public class CoAPEndpoint implements Endpoint {
 
 		@Override
 		public void sendResponse(Exchange exchange, Response response) {
+			admission.answered(exchange);
 			matcher.sendResponse(exchange, response);
 
 			/* 
@@ -459,6 +522,8 @@ public class CoAPEndpoint implements Endpoint {
 
 		@Override
 		public void sendEmptyMessage(Exchange exchange, EmptyMessage message) {
+			if (message.getType() == Type.RST && exchange != null)
+				admission.answered(exchange);
 			matcher.sendEmptyMessage(exchange, message);
 
 			/* 
@@ -481,24 +546,212 @@ public class CoAPEndpoint implements Endpoint {
 	 * {@link RawData}) to the endpoint. The endpoint creates a new task to
 	 * process the message. The task consists of invoking the matcher to look
 	 * for an associated Exchange and then forwards the message with the
-	 * exchange to the stack of layers.
+	 * exchange to the stack of layers. A connector that delivers a whole batch
+	 * of messages causes only one task. Outgoing messages are not batched;
+	 * each reply is sent as soon as it is ready.
 	 */
-	private class RawDataChannelImpl implements RawDataChannel {
+	private class RawDataChannelImpl implements RawDataBatchChannel {
 
 		@Override
 		public void receiveData(final RawData raw) {
-			if (raw.getAddress() == null)
-				throw new NullPointerException();
-			if (raw.getPort() == 0)
-				throw new NullPointerException();
+			check(raw);
+			if (admission.isOverloaded() && shed(raw))
+				return;
 			
 			// Create a new task to process this message
-			Runnable task = new Runnable() {
+			admission.queued();
+			try {
+				executePeerTask(raw.getAddress(), raw.getPort(), new Runnable() {
+					public void run() {
+						long start = System.nanoTime();
+						try {
+							receiveMessage(raw);
+						} catch (Throwable t) {
+							t.printStackTrace();
+						} finally {
+							admission.processed(System.nanoTime() - start);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				admission.unqueued(1);
+				LOGGER.warning("Executor has rejected message from " + raw.getInetSocketAddress());
+			}
+		}
+		
+		@Override
+		public void receiveData(List<RawData> received) {
+			for (RawData raw:received)
+				check(raw);
+			
+			final List<RawData> batch;
+			if (admission.isOverloaded()) {
+				batch = new ArrayList<RawData>(received.size());
+				for (RawData raw:received) {
+					if (!shed(raw))
+						batch.add(raw);
+				}
+				if (batch.isEmpty())
+					return;
+			} else {
+				batch = received;
+			}
+			
+			for (int i=0;i<batch.size();i++)
+				admission.queued();
+			PeerAffinityExecutor affinity = CoAPEndpoint.this.affinity;
+			if (affinity == null) {
+				// Create one task to process all messages of the batch
+				try {
+					executor.execute(newBatchTask(batch));
+				} catch (RejectedExecutionException e) {
+					admission.unqueued(batch.size());
+					LOGGER.warning("Executor has rejected a batch of "+batch.size()+" messages");
+				}
+				
+			} else {
+				// Create one task per lane so that each peer stays on its lane
+				@SuppressWarnings({"unchecked", "rawtypes"})
+				List<RawData>[] lanes = new List[affinity.getLaneCount()];
+				for (RawData raw:batch) {
+					int lane = affinity.getLane(PeerAffinityExecutor.getKey(raw.getAddress(), raw.getPort()));
+					if (lanes[lane] == null)
+						lanes[lane] = new ArrayList<RawData>();
+					lanes[lane].add(raw);
+				}
+				for (List<RawData> lane:lanes) {
+					if (lane == null)
+						continue;
+					try {
+						affinity.execute(PeerAffinityExecutor.getKey(lane.get(0).getAddress(), lane.get(0).getPort()), newBatchTask(lane));
+					} catch (RejectedExecutionException e) {
+						admission.unqueued(lane.size());
+						LOGGER.warning("Executor has rejected a batch of "+lane.size()+" messages");
+					}
+				}
+			}
+		}
+		
+		/*
+		 * Creates a task that processes the specified messages one after the
+		 * other.
+		 */
+		private Runnable newBatchTask(final List<RawData> batch) {
+			return new Runnable() {
 				public void run() {
-					receiveMessage(raw);
+					for (RawData raw:batch) {
+						long start = System.nanoTime();
+						try {
+							receiveMessage(raw);
+						} catch (Throwable t) {
+							t.printStackTrace();
+						} finally {
+							admission.processed(System.nanoTime() - start);
+						}
+					}
 				}
 			};
-			executeTask(task);
+		}
+		
+		/*
+		 * Looks up the MID of a request from the header and replies to a
+		 * duplicate straight away with the bytes of the previous reply, so
+		 * that duplicates do not cost a full parse nor a pass through the
+		 * stack. Returns false if the request is no duplicate or the reply
+		 * cannot be replayed from the cache, e.g., because the exchange has
+		 * moved on to a later block. In that case, the request takes the
+		 * usual path.
+		 */
+		private boolean replayDuplicate(int mid, RawData raw) {
+			Exchange previous = matcher.findDuplicate(mid, raw.getAddress(), raw.getPort());
+			if (previous == null) {
+				byte[] reply = matcher.findReply(mid, raw.getAddress(), raw.getPort());
+				if (reply == null)
+					return false;
+				if (reply.length > 0) {
+					LOGGER.fine("Duplicate request, replay the recorded reply");
+					connector.send(new RawData(reply, raw.getAddress(), raw.getPort()));
+				} else {
+					LOGGER.fine("Duplicate request has no recorded reply, ignore the duplicate");
+				}
+				return true;
+			}
+			Request request = previous.getCurrentRequest();
+			if (request == null || request.getMID() != mid)
+				return false;
+			
+			Response response = previous.getCurrentResponse();
+			if (response != null) {
+				byte[] bytes = response.getBytes();
+				if (bytes == null || (response.getType() == Type.ACK && response.getMID() != mid))
+					return false;
+				LOGGER.fine("Duplicate request, replay the current response");
+				connector.send(new RawData(bytes, raw.getAddress(), raw.getPort()));
+			
+			} else if (request.isAcknowledged()) {
+				LOGGER.fine("Duplicate request was acknowledged but not yet responded, retransmit ACK");
+				connector.send(serializer.serialize(EmptyMessage.newACK(request)));
+			
+			} else if (request.isRejected()) {
+				LOGGER.fine("Duplicate request was rejected, reject again");
+				connector.send(serializer.serialize(EmptyMessage.newRST(request)));
+			
+			} else {
+				LOGGER.fine("The server has not yet decided what to do with the request, ignore the duplicate");
+			}
+			return true;
+		}
+		
+		/*
+		 * Sheds the specified message if it is a request while the endpoint
+		 * is overloaded. The connector's thread executes this method and only
+		 * decodes the header and token of the message. A confirmable request
+		 * is rejected with 5.03 (Service Unavailable), a non-confirmable
+		 * request is dropped. Duplicates of requests that have already been
+		 * admitted are not shed but replayed or ignored as usual. Returns
+		 * false if the message must be processed.
+		 */
+		private boolean shed(RawData raw) {
+			DataParser parser = new DataParser(raw.getBytes(), true);
+			if (!parser.isWellFormed() || !parser.isRequest())
+				return false; // ACKs, RSTs and responses keep priority
+			
+			int mid = parser.getMID();
+			if (matcher.findDuplicate(mid, raw.getAddress(), raw.getPort()) != null
+					|| matcher.findReply(mid, raw.getAddress(), raw.getPort()) != null)
+				return false; // the exchange has already been admitted
+			
+			Request request;
+			try {
+				request = parser.parseRequest();
+			} catch (RuntimeException e) {
+				return true; // malformed request
+			}
+			
+			if (request.getType() == Type.CON) {
+				Response response = new Response(ResponseCode.SERVICE_UNAVAILABLE);
+				response.setType(Type.ACK);
+				response.setMID(request.getMID());
+				response.setToken(request.getToken());
+				response.setDestination(raw.getAddress());
+				response.setDestinationPort(raw.getPort());
+				response.getOptions().setMaxAge(admission.getMaxAge());
+				admission.rejected();
+				for (MessageInterceptor interceptor:interceptors)
+					interceptor.sendResponse(response);
+				connector.send(serializer.serialize(response));
+			} else {
+				admission.dropped();
+			}
+			LOGGER.finer("Endpoint overloaded, shed request from " + raw.getInetSocketAddress());
+			return true;
+		}
+		
+		private void check(RawData raw) {
+			if (raw.getAddress() == null)
+				throw new NullPointerException();
+			if (raw.getPort() == 0)
+				throw new NullPointerException();
 		}
 		
 		/*
@@ -507,7 +760,12 @@ public class CoAPEndpoint implements Endpoint {
 		 * the stack of layers.
 		 */
 		private void receiveMessage(RawData raw) {
-			DataParser parser = new DataParser(raw.getBytes());
+			DataParser parser = new DataParser(raw.getBytes(), true);
+			
+			if (parser.isRequest() && parser.isWellFormed() && replayDuplicate(parser.getMID(), raw)) {
+				// This is a duplicate that has been answered from the cache
+				return;
+			}
 			
 			if (parser.isRequest()) {
 				// This is a request
@@ -547,6 +805,8 @@ public class CoAPEndpoint implements Endpoint {
 					Exchange exchange = matcher.receiveRequest(request);
 					if (exchange != null) {
 						exchange.setEndpoint(CoAPEndpoint.this);
+						if (!request.isDuplicate())
+							admission.activate(exchange);
 						coapstack.receiveRequest(exchange, request);
 					}
 				}
@@ -618,6 +878,22 @@ public class CoAPEndpoint implements Endpoint {
 
 	}
 	
+	/**
+	 * Execute the specified task of the specified peer on the endpoint's
+	 * executor. A {@link PeerAffinityExecutor} executes all tasks of a peer on
+	 * the same thread.
+	 *
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @param task the task
+	 */
+	private void executePeerTask(InetAddress address, int port, Runnable task) {
+		PeerAffinityExecutor affinity = this.affinity;
+		if (affinity != null && address != null)
+			affinity.execute(PeerAffinityExecutor.getKey(address, port), task);
+		else executor.execute(task);
+	}
+	
 	/**
 	 * Execute the specified task on the endpoint's executor.
 	 *
@@ -102,8 +102,10 @@ public class EndpointManager {
 		
 		int threadCount = NetworkConfig.getStandard().getInt(
 				NetworkConfigDefaults.DEFAULT_ENDPOINT_THREAD_COUNT);
-		final ScheduledExecutorService executor = 
-				Executors.newScheduledThreadPool(threadCount, new DaemonThreadFactory());
+		final ScheduledExecutorService executor;
+		if (NetworkConfig.getStandard().getBoolean(NetworkConfigDefaults.EXECUTOR_PEER_AFFINITY))
+			executor = new PeerAffinityExecutor(threadCount, new DaemonThreadFactory());
+		else executor = Executors.newScheduledThreadPool(threadCount, new DaemonThreadFactory());
 		/*
 		 * FIXME: With host=null, the default endpoint binds to 0.0.0.0. When
 		 * sending it chooses to send over 192.168.1.37. A server that binds
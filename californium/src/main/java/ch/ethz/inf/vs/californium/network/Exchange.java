@@ -138,6 +138,9 @@ public class Exchange {
 	// handle to cancel retransmission
 	private ScheduledFuture<?> retransmissionHandle = null;
 	
+	// handle to cancel the automatic acknowledgement of the request
+	private ScheduledFuture<?> acceptHandle = null;
+	
 	// handle to re-register for Observe notifications
 	private ScheduledFuture<?> reregistrationHandle = null;
 	
@@ -398,6 +401,17 @@ public class Exchange {
 		this.retransmissionHandle = retransmissionHandle;
 	}
 	
+	public ScheduledFuture<?> getAcceptHandle() {
+		return acceptHandle;
+	}
+
+	public void setAcceptHandle(ScheduledFuture<?> acceptHandle) {
+		if (this.acceptHandle!=null) {
+			this.acceptHandle.cancel(false);
+		}
+		this.acceptHandle = acceptHandle;
+	}
+	
 	public ScheduledFuture<?> getReregistrationHandle() {
 		return this.reregistrationHandle;
 	}
@@ -409,6 +423,10 @@ public class Exchange {
 		this.reregistrationHandle = reregistrationHandle;
 	}
 
+	public ExchangeObserver getObserver() {
+		return observer;
+	}
+
 	public void setObserver(ExchangeObserver observer) {
 		this.observer = observer;
 	}
@@ -470,6 +488,18 @@ public class Exchange {
 			this.hash = (port*31 + MID) * 31 + Arrays.hashCode(address);
 		}
 		
+		public int getMID() {
+			return MID;
+		}
+		
+		public byte[] getAddress() {
+			return address;
+		}
+		
+		public int getPort() {
+			return port;
+		}
+		
 		@Override
 		public int hashCode() {
 			return hash;
@@ -0,0 +1,259 @@
+package ch.ethz.inf.vs.californium.network;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to values. The map uses open addressing
+ * with linear probing in a few independently locked segments. Lookups and
+ * removals do not allocate any objects; insertions only allocate when a
+ * segment grows. Null values are not supported.
+ * <p>
+ * The {@link Matcher} uses this map to find exchanges by keys that pack the
+ * address, port and MID of a peer into a single long.
+ *
+ * @param <V> the type of the values
+ */
+public class LongHashMap<V> {
+
+	/** The number of segments, must be a power of two */
+	private static final int SEGMENTS = 16;
+
+	/** The segments */
+	private final Segment[] segments;
+
+	/**
+	 * Instantiates a new empty map.
+	 */
+	public LongHashMap() {
+		this(256);
+	}
+
+	/**
+	 * Instantiates a new empty map with room for approximately the specified
+	 * number of entries before it needs to grow.
+	 *
+	 * @param expectedSize the expected number of entries
+	 */
+	public LongHashMap(int expectedSize) {
+		int capacity = 4;
+		while (capacity * SEGMENTS < expectedSize * 2)
+			capacity <<= 1;
+		this.segments = new Segment[SEGMENTS];
+		for (int i=0;i<SEGMENTS;i++)
+			segments[i] = new Segment(capacity);
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped or null.
+	 *
+	 * @param key the key
+	 * @return the value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		long hash = mix(key);
+		return (V) segmentFor(hash).get(key, hash);
+	}
+
+	/**
+	 * Associates the specified value with the specified key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the previous value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+		long hash = mix(key);
+		return (V) segmentFor(hash).put(key, hash, value, false);
+	}
+
+	/**
+	 * Associates the specified value with the specified key unless the key is
+	 * already associated with a value.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the previous value or null if the value has been added
+	 */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(long key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+		long hash = mix(key);
+		return (V) segmentFor(hash).put(key, hash, value, true);
+	}
+
+	/**
+	 * Removes the mapping for the specified key.
+	 *
+	 * @param key the key
+	 * @return the removed value or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		long hash = mix(key);
+		return (V) segmentFor(hash).remove(key, hash, null);
+	}
+
+	/**
+	 * Removes the mapping for the specified key only if it is mapped to the
+	 * specified value.
+	 *
+	 * @param key the key
+	 * @param value the expected value
+	 * @return true if the mapping has been removed
+	 */
+	public boolean remove(long key, V value) {
+		if (value == null)
+			return false;
+		long hash = mix(key);
+		return segmentFor(hash).remove(key, hash, value) != null;
+	}
+
+	/**
+	 * Returns the number of entries.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment:segments)
+			size += segment.size();
+		return size;
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		for (Segment segment:segments)
+			segment.clear();
+	}
+
+	private Segment segmentFor(long hash) {
+		return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+	}
+
+	/*
+	 * Spreads the bits of the key so that keys that only differ in a few bits
+	 * do not end up in neighboring slots (the finalizer of MurmurHash3).
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/*
+	 * A segment is a linear probing table. A slot is free if its value is
+	 * null. Removals shift the following entries back instead of leaving
+	 * tombstones.
+	 */
+	private static final class Segment {
+
+		private long[] keys;
+		private Object[] values;
+		private int size;
+
+		private Segment(int capacity) {
+			this.keys = new long[capacity];
+			this.values = new Object[capacity];
+		}
+
+		private synchronized Object get(long key, long hash) {
+			int mask = keys.length - 1;
+			for (int i = (int) hash & mask; values[i] != null; i = (i + 1) & mask)
+				if (keys[i] == key)
+					return values[i];
+			return null;
+		}
+
+		private synchronized Object put(long key, long hash, Object value, boolean onlyIfAbsent) {
+			int mask = keys.length - 1;
+			int i = (int) hash & mask;
+			for (; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					Object previous = values[i];
+					if (!onlyIfAbsent)
+						values[i] = value;
+					return previous;
+				}
+			}
+			keys[i] = key;
+			values[i] = value;
+			if (++size * 2 > keys.length)
+				resize();
+			return null;
+		}
+
+		private synchronized Object remove(long key, long hash, Object expected) {
+			int mask = keys.length - 1;
+			int i = (int) hash & mask;
+			for (; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					Object previous = values[i];
+					if (expected != null && previous != expected)
+						return null;
+					shiftBack(i);
+					size--;
+					return previous;
+				}
+			}
+			return null;
+		}
+
+		/*
+		 * Frees the specified slot and moves back the entries of the same
+		 * probe sequence that follow it.
+		 */
+		private void shiftBack(int free) {
+			int mask = keys.length - 1;
+			int i = free;
+			while (true) {
+				i = (i + 1) & mask;
+				if (values[i] == null)
+					break;
+				int home = (int) mix(keys[i]) & mask;
+				// move the entry if its home slot is not between free and i
+				if (free <= i ? (home <= free || home > i) : (home <= free && home > i)) {
+					keys[free] = keys[i];
+					values[free] = values[i];
+					free = i;
+				}
+			}
+			values[free] = null;
+		}
+
+		private void resize() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new Object[oldValues.length * 2];
+			int mask = keys.length - 1;
+			for (int j=0;j<oldKeys.length;j++) {
+				if (oldValues[j] != null) {
+					int i = (int) mix(oldKeys[j]) & mask;
+					while (values[i] != null)
+						i = (i + 1) & mask;
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized void clear() {
+			Arrays.fill(values, null);
+			size = 0;
+		}
+	}
+}
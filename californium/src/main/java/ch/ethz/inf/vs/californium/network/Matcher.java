@@ -1,11 +1,15 @@
 package ch.ethz.inf.vs.californium.network;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.coap.CoAP.OptionRegistry;
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
 import ch.ethz.inf.vs.californium.coap.EmptyMessage;
 import ch.ethz.inf.vs.californium.coap.Message;
@@ -13,12 +17,12 @@ import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
 import ch.ethz.inf.vs.californium.network.Exchange.KeyToken;
-import ch.ethz.inf.vs.californium.network.Exchange.KeyUri;
 import ch.ethz.inf.vs.californium.network.Exchange.Origin;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
 import ch.ethz.inf.vs.californium.network.deduplication.Deduplicator;
 import ch.ethz.inf.vs.californium.network.deduplication.DeduplicatorFactory;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
 
 public class Matcher {
 
@@ -27,16 +31,21 @@ public class Matcher {
 	private boolean started;
 	private ExchangeObserver exchangeObserver = new ExchangeObserverImpl();
 	
-	/** The executor. */
-	private ScheduledExecutorService executor;
+	/** The timer service. */
+	private TimerService timer;
 	
 	// TODO: Make per endpoint
 	private AtomicInteger currendMID; 
 	
+	// Exchanges with IPv4 peers by keys packed into a long
+	private LongHashMap<Exchange> exchangesByMID4; // Outgoing
+	private LongHashMap<Exchange> exchangesByToken4;
+	
+	// Exchanges with other peers, e.g., IPv6
 	private ConcurrentHashMap<KeyMID, Exchange> exchangesByMID; // Outgoing
 	private ConcurrentHashMap<KeyToken, Exchange> exchangesByToken;
 	
-	private ConcurrentHashMap<KeyUri, Exchange> ongoingExchanges; // for blockwise
+	private BlockwiseStore ongoingExchanges; // for blockwise
 	
 	// TODO: Multicast Exchanges: should not be removed from deduplicator
 	private Deduplicator deduplicator;
@@ -44,9 +53,11 @@ public class Matcher {
 	
 	public Matcher(NetworkConfig config) {
 		this.started = false;
+		this.exchangesByMID4 = new LongHashMap<Exchange>();
+		this.exchangesByToken4 = new LongHashMap<Exchange>();
 		this.exchangesByMID = new ConcurrentHashMap<KeyMID, Exchange>();
 		this.exchangesByToken = new ConcurrentHashMap<KeyToken, Exchange>();
-		this.ongoingExchanges = new ConcurrentHashMap<KeyUri, Exchange>();
+		this.ongoingExchanges = new BlockwiseStore(config);
 
 		DeduplicatorFactory factory = DeduplicatorFactory.getDeduplicatorFactory();
 		this.deduplicator = factory.createDeduplicator(config);
@@ -59,21 +70,24 @@ public class Matcher {
 	public synchronized void start() {
 		if (started) return;
 		else started = true;
-		if (executor == null)
-			throw new IllegalStateException("Matcher has no executor to schedule exchnage removal");
+		if (timer == null)
+			throw new IllegalStateException("Matcher has no timer to schedule exchnage removal");
 		deduplicator.start();
+		ongoingExchanges.start();
 	}
 	
 	public synchronized void stop() {
 		if (!started) return;
 		else started = false;
 		deduplicator.stop();
+		ongoingExchanges.stop();
 		clear();
 	}
 	
-	public synchronized void setExecutor(ScheduledExecutorService executor) {
-		deduplicator.setExecutor(executor);
-		this.executor = executor;
+	public synchronized void setTimer(TimerService timer) {
+		deduplicator.setTimer(timer);
+		ongoingExchanges.setTimer(timer);
+		this.timer = timer;
 	}
 	
 	public void sendRequest(Exchange exchange, Request request) {
@@ -87,17 +101,16 @@ public class Matcher {
 		 * If this request goes lost, we do not get anything back.
 		 */
 		
-		KeyMID idByMID = new KeyMID(request.getMID(), 
-				request.getDestination().getAddress(), request.getDestinationPort());
-		KeyToken idByTok = new KeyToken(request.getToken(),
-				request.getDestination().getAddress(), request.getDestinationPort());
+		InetAddress address = request.getDestination();
+		int port = request.getDestinationPort();
 		
 		exchange.setObserver(exchangeObserver);
 		
-		LOGGER.fine("Stored open request by "+idByMID+", "+idByTok);
+		if (LOGGER.isLoggable(Level.FINE))
+			LOGGER.fine("Stored open request by MID "+request.getMID()+" and token "+request.getTokenString()+" for "+address+":"+port);
 		
-		exchangesByMID.put(idByMID, exchange);
-		exchangesByToken.put(idByTok, exchange);
+		putByMID(request.getMID(), address, port, exchange);
+		putByToken(request.getToken(), address, port, exchange);
 	}
 
 	public void sendResponse(Exchange exchange, Response response) {
@@ -120,21 +133,17 @@ public class Matcher {
 			throw new NullPointerException("Response hsa no destination port set");
 		
 		// Insert CON and NON to match ACKs and RSTs to the exchange
-		KeyMID idByMID = new KeyMID(response.getMID(), 
-				response.getDestination().getAddress(), response.getDestinationPort());
-		exchangesByMID.put(idByMID, exchange);
+		putByMID(response.getMID(), response.getDestination(), response.getDestinationPort(), exchange);
 		
 		if (response.getOptions().hasBlock2()) {
 			Request request = exchange.getRequest();
-			KeyUri idByUri = new KeyUri(request.getURI(),
-					response.getDestination().getAddress(), response.getDestinationPort());
 			if (exchange.getResponseBlockStatus()!=null && !response.getOptions().hasObserve()) {
 				// Remember ongoing blockwise GET requests
-				LOGGER.fine("Ongoing Block2 started, storing "+idByUri + "\nOngoing " + request + "\nOngoing " + response);
-				ongoingExchanges.put(idByUri, exchange);
+				LOGGER.fine("Ongoing Block2 started, storing\nOngoing " + request + "\nOngoing " + response);
+				ongoingExchanges.put(request, response.getDestination(), response.getDestinationPort(), exchange);
 			} else {
-				LOGGER.fine("Ongoing Block2 completed, cleaning up "+idByUri + "\nOngoing " + request + "\nOngoing " + response);
-				ongoingExchanges.remove(idByUri);
+				LOGGER.fine("Ongoing Block2 completed, cleaning up\nOngoing " + request + "\nOngoing " + response);
+				ongoingExchanges.remove(request, response.getDestination(), response.getDestinationPort(), exchange);
 			}
 		}
 		
@@ -160,6 +169,34 @@ public class Matcher {
 			LOGGER.severe("Empy message "+ message+" has no MID // debugging");
 	}
 
+	/**
+	 * Looks up the exchange of a previous request with the specified MID from
+	 * the specified peer without recording anything. The endpoint uses it to
+	 * detect a duplicate from the header alone before it parses the request.
+	 * 
+	 * @param mid the MID of the request
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @return the exchange of the previous request or null
+	 */
+	public Exchange findDuplicate(int mid, InetAddress address, int port) {
+		return deduplicator.find(new KeyMID(mid, address.getAddress(), port));
+	}
+	
+	/**
+	 * Returns the recorded reply to the request with the specified MID from
+	 * the specified peer if the deduplicator has dropped its exchange but kept
+	 * the reply.
+	 * 
+	 * @param mid the MID of the request
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @return the reply, an empty array if there is nothing to replay, or null
+	 */
+	public byte[] findReply(int mid, InetAddress address, int port) {
+		return deduplicator.findReply(new KeyMID(mid, address.getAddress(), port));
+	}
+
 	public Exchange receiveRequest(Request request) {
 		/*
 		 * This request could be
@@ -181,7 +218,7 @@ public class Matcher {
 		 * all exchanges that do not need blockwise transfer have simpler and
 		 * faster code than exchanges with blockwise transfer.
 		 */
-		if (!request.getOptions().hasBlock1() && !request.getOptions().hasBlock2()) {
+		if (!request.hasOption(OptionRegistry.BLOCK1) && !request.hasOption(OptionRegistry.BLOCK2)) {
 
 			Exchange exchange = new Exchange(request, Origin.REMOTE);
 			Exchange previous = deduplicator.findPrevious(idByMID, exchange);
@@ -197,11 +234,7 @@ public class Matcher {
 			
 		} else {
 			
-			KeyUri idByUri = new KeyUri(request.getURI(),
-					request.getSource().getAddress(), request.getSourcePort());
-			
-			LOGGER.fine("Lookup ongoing exchange for "+idByUri);
-			Exchange ongoing = ongoingExchanges.get(idByUri);
+			Exchange ongoing = ongoingExchanges.get(request, request.getSource(), request.getSourcePort());
 			if (ongoing != null) {
 				
 				Exchange prev = deduplicator.findPrevious(idByMID, ongoing);
@@ -223,10 +256,10 @@ public class Matcher {
 				
 				Exchange exchange = new Exchange(request, Origin.REMOTE);
 				Exchange previous = deduplicator.findPrevious(idByMID, exchange);
-				LOGGER.fine("New ongoing exchange for remote Block1 request with key "+idByUri);
+				LOGGER.fine("New ongoing exchange for remote Block1 request "+request);
 				if (previous == null) {
 					exchange.setObserver(exchangeObserver);
-					ongoingExchanges.put(idByUri, exchange);
+					ongoingExchanges.put(request, request.getSource(), request.getSourcePort(), exchange);
 					return exchange;
 				} else {
 					LOGGER.info("Message is a duplicate: "+request);
@@ -246,24 +279,23 @@ public class Matcher {
 		 * 		=> resend ACK
 		 */
 
-		KeyMID idByMID = new KeyMID(response.getMID(), 
-				response.getSource().getAddress(), response.getSourcePort());
+		InetAddress address = response.getSource();
+		int port = response.getSourcePort();
 		
-		KeyToken idByTok = new KeyToken(response.getToken(), 
-				response.getSource().getAddress(), response.getSourcePort());
-		
-		Exchange exchange = exchangesByToken.get(idByTok);
+		Exchange exchange = getByToken(response.getToken(), address, port);
 		
 		if (exchange != null) {
 			// There is an exchange with the given token
 			
+			KeyMID idByMID = new KeyMID(response.getMID(), address.getAddress(), port);
 			Exchange prev = deduplicator.findPrevious(idByMID, exchange);
 			if (prev != null) { // (and thus it holds: prev == exchange)
 				LOGGER.fine("Duplicate response "+response);
 				response.setDuplicate(true);
 			} else {
-				LOGGER.fine("Exchange got reply: Cleaning up "+idByMID);
-				exchangesByMID.remove(idByMID);
+				if (LOGGER.isLoggable(Level.FINE))
+					LOGGER.fine("Exchange got reply: Cleaning up "+idByMID);
+				removeByMID(response.getMID(), address, port);
 			}
 			
 			if (response.getType() == Type.ACK && exchange.getCurrentRequest().getMID() != response.getMID()) {
@@ -279,7 +311,7 @@ public class Matcher {
 		} else {
 			// There is no exchange with the given token.
 			if (response.getType() != Type.ACK) {
-				LOGGER.info("Response with unknown Token "+idByTok+": Rejecting "+response);
+				LOGGER.info("Response with unknown Token "+response.getTokenString()+": Rejecting "+response);
 				// This is a totally unexpected response.
 				EmptyMessage rst = EmptyMessage.newRST(response);
 				sendEmptyMessage(exchange, rst);
@@ -291,14 +323,11 @@ public class Matcher {
 
 	public Exchange receiveEmptyMessage(EmptyMessage message) {
 		
-		KeyMID idByMID = new KeyMID(message.getMID(),
-				message.getSource().getAddress(), message.getSourcePort());
-		
-		Exchange exchange = exchangesByMID.get(idByMID);
+		Exchange exchange = removeByMID(message.getMID(), message.getSource(), message.getSourcePort());
 		
 		if (exchange != null) {
-			LOGGER.fine("Exchange got reply: Cleaning up "+idByMID);
-			exchangesByMID.remove(idByMID);
+			if (LOGGER.isLoggable(Level.FINE))
+				LOGGER.fine("Exchange got reply: Cleaning up MID "+message.getMID()+" of "+message.getSource()+":"+message.getSourcePort());
 			return exchange;
 		} else {
 			LOGGER.info("Matcher received empty message that does not match any exchange: "+message);
@@ -307,13 +336,92 @@ public class Matcher {
 		} // else, this is an ACK for an unknown exchange and we ignore it
 	}
 	
+	/**
+	 * Gets the store of the ongoing blockwise transfers.
+	 * 
+	 * @return the blockwise store
+	 */
+	public BlockwiseStore getBlockwiseStore() {
+		return ongoingExchanges;
+	}
+	
 	public void clear() {
+		this.exchangesByMID4.clear();
+		this.exchangesByToken4.clear();
 		this.exchangesByMID.clear();
 		this.exchangesByToken.clear();
 		this.ongoingExchanges.clear();
 		deduplicator.clear();
 	}
 	
+	/*
+	 * Exchanges with IPv4 peers are stored in primitive maps by keys packed
+	 * into a long so that lookups and removals do not allocate. Exchanges with
+	 * other peers are stored by key objects.
+	 */
+	
+	private void putByMID(int mid, InetAddress address, int port, Exchange exchange) {
+		if (address instanceof Inet4Address)
+			exchangesByMID4.put(getMIDKey(mid, address, port), exchange);
+		else exchangesByMID.put(new KeyMID(mid, address.getAddress(), port), exchange);
+	}
+	
+	private Exchange removeByMID(int mid, InetAddress address, int port) {
+		if (address instanceof Inet4Address)
+			return exchangesByMID4.remove(getMIDKey(mid, address, port));
+		else return exchangesByMID.remove(new KeyMID(mid, address.getAddress(), port));
+	}
+	
+	private void putByToken(byte[] token, InetAddress address, int port, Exchange exchange) {
+		if (address instanceof Inet4Address)
+			exchangesByToken4.put(getTokenKey(token, address, port), exchange);
+		else exchangesByToken.put(new KeyToken(token, address.getAddress(), port), exchange);
+	}
+	
+	private Exchange getByToken(byte[] token, InetAddress address, int port) {
+		if (address instanceof Inet4Address) {
+			Exchange exchange = exchangesByToken4.get(getTokenKey(token, address, port));
+			// the token key is a hash and might collide
+			if (exchange != null && !isRequestFor(exchange.getCurrentRequest(), token, address, port))
+				return null;
+			return exchange;
+		} else return exchangesByToken.get(new KeyToken(token, address.getAddress(), port));
+	}
+	
+	private void removeByToken(byte[] token, InetAddress address, int port, Exchange exchange) {
+		if (address instanceof Inet4Address)
+			exchangesByToken4.remove(getTokenKey(token, address, port), exchange);
+		else exchangesByToken.remove(new KeyToken(token, address.getAddress(), port), exchange);
+	}
+	
+	private static boolean isRequestFor(Request request, byte[] token, InetAddress address, int port) {
+		return request != null && request.getDestinationPort() == port
+				&& address.equals(request.getDestination())
+				&& Arrays.equals(token, request.getToken());
+	}
+	
+	/*
+	 * Packs the IPv4 address, port and MID into a long. The hash code of an
+	 * Inet4Address is its address, which, unlike getAddress(), does not copy
+	 * anything.
+	 */
+	private static long getMIDKey(int mid, InetAddress address, int port) {
+		return (long) address.hashCode() << 32 | (long) (port & 0xFFFF) << 16 | mid & 0xFFFF;
+	}
+	
+	/*
+	 * Computes a 64-bit FNV-1a hash of the token, IPv4 address and port.
+	 */
+	private static long getTokenKey(byte[] token, InetAddress address, int port) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b:token)
+			hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+		hash = (hash ^ token.length) * 0x100000001b3L;
+		hash = (hash ^ (address.hashCode() & 0xFFFFFFFFL)) * 0x100000001b3L;
+		hash = (hash ^ port) * 0x100000001b3L;
+		return hash;
+	}
+	
 	private class ExchangeObserverImpl implements ExchangeObserver {
 
 		@Override
@@ -327,23 +435,19 @@ public class Matcher {
 			if (exchange.getOrigin() == Origin.LOCAL) {
 				// this endpoint created the Exchange by issuing a request
 				Request request = exchange.getRequest();
-				KeyToken idByTok = new KeyToken(exchange.getCurrentRequest().getToken(), request.getDestination().getAddress(), request.getDestinationPort());
-				KeyMID idByMID = new KeyMID(request.getMID(), request.getDestination().getAddress(), request.getDestinationPort());
 				
-//				LOGGER.fine("Exchange completed: Cleaning up "+idByTok);
-				exchangesByToken.remove(idByTok);
+//				LOGGER.fine("Exchange completed: Cleaning up "+request.getTokenString());
+				removeByToken(exchange.getCurrentRequest().getToken(), request.getDestination(), request.getDestinationPort(), exchange);
 				// in case an empty ACK was lost
-				exchangesByMID.remove(idByMID);
+				removeByMID(request.getMID(), request.getDestination(), request.getDestinationPort());
 			
 			} else {
 				// this endpoint created the Exchange to respond a request
 				Request request = exchange.getCurrentRequest();
 				if (request != null) {
 					// TODO: We can optimize this and only do it, when the request really had blockwise transfer
-					KeyUri uriKey = new KeyUri(request.getURI(),
-							request.getSource().getAddress(), request.getSourcePort());
-//					LOGGER.warning("++++++++++++++++++Remote ongoing completed, cleaning up "+uriKey);
-					ongoingExchanges.remove(uriKey);
+//					LOGGER.warning("++++++++++++++++++Remote ongoing completed, cleaning up "+request);
+					ongoingExchanges.remove(request, request.getSource(), request.getSourcePort(), exchange);
 				}
 				// TODO: What if the request is only a block?
 				// TODO: This should only happen if the transfer was blockwise
@@ -351,10 +455,8 @@ public class Matcher {
 				Response response = exchange.getResponse();
 				if (response != null) {
 					// only response MIDs are stored for ACK and RST, no reponse Tokens
-					KeyMID midKey = new KeyMID(response.getMID(), 
-							response.getDestination().getAddress(), response.getDestinationPort());
-//					LOGGER.warning("++++++++++++++++++Remote ongoing completed, cleaning up "+midKey);
-					exchangesByMID.remove(midKey);
+//					LOGGER.warning("++++++++++++++++++Remote ongoing completed, cleaning up "+response.getMID());
+					removeByMID(response.getMID(), response.getDestination(), response.getDestinationPort());
 				}
 			}
 		}
@@ -0,0 +1,292 @@
+package ch.ethz.inf.vs.californium.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An executor with a fixed number of lanes. Each lane is a queue with a single
+ * thread that executes its tasks one after another in the order they have
+ * been submitted. A {@link CoAPEndpoint} submits the tasks of a peer with
+ * {@link #execute(int, Runnable)} and the hash of the peer's address and port,
+ * so that all messages and exchanges of a peer are processed by the same
+ * thread and in order. Different peers are processed in parallel.
+ * <p>
+ * A task submitted without key from a lane's thread stays on that lane. This
+ * also holds for delayed tasks, e.g., retransmissions: The task runs on the
+ * lane that has scheduled it. Tasks submitted from other threads without key
+ * are distributed among the lanes round-robin.
+ * <p>
+ * This executor is based on the WorkQueueExecutor of the benchmark.
+ */
+public class PeerAffinityExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(PeerAffinityExecutor.class.getCanonicalName());
+
+	/** The task that stops a lane */
+	private static final Runnable STOP = new Runnable() {
+		public void run() { }
+	};
+
+	private final Lane[] lanes;
+
+	/** The lane of the current thread or null */
+	private final ThreadLocal<Lane> current = new ThreadLocal<Lane>();
+
+	/** The timer thread that hands delayed tasks to their lanes */
+	private final ScheduledThreadPoolExecutor timer;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private volatile boolean shutdown;
+
+	/**
+	 * Instantiates a new executor with the specified number of lanes.
+	 *
+	 * @param lanes the number of lanes
+	 */
+	public PeerAffinityExecutor(int lanes) {
+		this(lanes, Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * Instantiates a new executor with the specified number of lanes whose
+	 * threads are created by the specified thread factory.
+	 *
+	 * @param lanes the number of lanes
+	 * @param threadFactory the thread factory
+	 */
+	public PeerAffinityExecutor(int lanes, ThreadFactory threadFactory) {
+		if (lanes <= 0)
+			throw new IllegalArgumentException("Executor must start at least 1 lane");
+		if (threadFactory == null)
+			throw new NullPointerException();
+		this.timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+		this.lanes = new Lane[lanes];
+		for (int i=0;i<lanes;i++) {
+			this.lanes[i] = new Lane();
+			this.lanes[i].thread = threadFactory.newThread(this.lanes[i]);
+			this.lanes[i].thread.start();
+		}
+	}
+
+	/**
+	 * Computes the key of the peer with the specified address and port.
+	 *
+	 * @param address the address
+	 * @param port the port
+	 * @return the key
+	 */
+	public static int getKey(Object address, int port) {
+		return address.hashCode() * 31 + port;
+	}
+
+	/**
+	 * Executes the specified task on the lane of the specified key. All tasks
+	 * with the same key are executed by the same thread in the order they
+	 * have been submitted.
+	 *
+	 * @param key the key, e.g., of a peer
+	 * @param command the task
+	 */
+	public void execute(int key, Runnable command) {
+		lanes[getLane(key)].execute(command);
+	}
+
+	/**
+	 * Gets the index of the lane of the specified key.
+	 *
+	 * @param key the key
+	 * @return the index of the lane
+	 */
+	public int getLane(int key) {
+		key ^= key >>> 16;
+		key *= 0x85ebca6b;
+		key ^= key >>> 13;
+		return (key & 0x7FFFFFFF) % lanes.length;
+	}
+
+	/**
+	 * Gets the number of lanes.
+	 *
+	 * @return the number of lanes
+	 */
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * Returns the lane of the current thread as executor or null if the
+	 * current thread does not belong to this executor. A timer can use it to
+	 * execute a delayed task on the lane that has scheduled it.
+	 *
+	 * @return the lane or null
+	 */
+	public Executor getCurrentLane() {
+		return current.get();
+	}
+
+	/**
+	 * Executes the specified task on the lane of the current thread or on the
+	 * next lane if the current thread does not belong to this executor.
+	 */
+	@Override
+	public void execute(Runnable command) {
+		laneForCaller().execute(command);
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return timer.schedule(new Handoff(laneForCaller(), command), delay, unit);
+	}
+
+	/**
+	 * Schedules the specified callable. Unlike runnables, callables run on the
+	 * timer thread of this executor, not on a lane.
+	 */
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		return timer.schedule(callable, delay, unit);
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		return timer.scheduleAtFixedRate(new Handoff(laneForCaller(), command), initialDelay, period, unit);
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		return timer.scheduleWithFixedDelay(new Handoff(laneForCaller(), command), initialDelay, delay, unit);
+	}
+
+	/**
+	 * Stops accepting new tasks. The lanes execute the tasks they have
+	 * already accepted and terminate. Pending delayed tasks are canceled.
+	 */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		timer.shutdownNow();
+		for (Lane lane:lanes)
+			lane.queue.offer(STOP);
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		timer.shutdownNow();
+		List<Runnable> pending = new ArrayList<Runnable>();
+		for (Lane lane:lanes) {
+			lane.queue.drainTo(pending);
+			lane.queue.offer(STOP);
+			lane.thread.interrupt();
+		}
+		pending.remove(STOP);
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		if (!shutdown || !timer.isTerminated())
+			return false;
+		for (Lane lane:lanes)
+			if (lane.thread.isAlive())
+				return false;
+		return true;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Lane lane:lanes) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (millis <= 0)
+				return isTerminated();
+			lane.thread.join(millis);
+		}
+		long nanos = deadline - System.nanoTime();
+		return timer.awaitTermination(Math.max(0, nanos), TimeUnit.NANOSECONDS) && isTerminated();
+	}
+
+	private Lane laneForCaller() {
+		Lane lane = current.get();
+		if (lane != null)
+			return lane;
+		return lanes[(next.getAndIncrement() & 0x7FFFFFFF) % lanes.length];
+	}
+
+	/*
+	 * A task of the timer that hands a delayed task to its lane.
+	 */
+	private static class Handoff implements Runnable {
+
+		private final Lane lane;
+		private final Runnable command;
+
+		private Handoff(Lane lane, Runnable command) {
+			this.lane = lane;
+			this.command = command;
+		}
+
+		public void run() {
+			lane.execute(command);
+		}
+	}
+
+	/*
+	 * A lane is a queue and the thread that executes its tasks.
+	 */
+	private class Lane implements Executor, Runnable {
+
+		private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+		private Thread thread;
+
+		public void execute(Runnable command) {
+			if (command == null)
+				throw new NullPointerException();
+			if (shutdown)
+				throw new RejectedExecutionException("Executor has been shut down");
+			queue.offer(command);
+		}
+
+		public void run() {
+			current.set(this);
+			while (true) {
+				Runnable command;
+				try {
+					command = queue.take();
+				} catch (InterruptedException e) {
+					if (shutdown) return;
+					continue;
+				}
+				if (command == STOP)
+					return;
+				try {
+					command.run();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception in lane of executor", t);
+				}
+			}
+		}
+	}
+}
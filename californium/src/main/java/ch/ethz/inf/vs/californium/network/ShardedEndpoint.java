@@ -0,0 +1,413 @@
+package ch.ethz.inf.vs.californium.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.EmptyMessage;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.connector.BatchConnector;
+import ch.ethz.inf.vs.californium.network.connector.NioUDPConnector;
+import ch.ethz.inf.vs.californium.network.connector.RawDataBatchChannel;
+import ch.ethz.inf.vs.californium.network.connector.ReusePortUDPConnector;
+import ch.ethz.inf.vs.californium.network.interceptors.MessageInterceptor;
+import ch.ethz.inf.vs.californium.server.MessageDeliverer;
+import ch.ethz.inf.vs.elements.Connector;
+import ch.ethz.inf.vs.elements.RawData;
+import ch.ethz.inf.vs.elements.RawDataChannel;
+
+/**
+ * A sharded endpoint consists of several {@link CoAPEndpoint}s (shards) that
+ * serve the same port. Each shard has its own {@link Matcher} with its own
+ * deduplicator, its own {@link ch.ethz.inf.vs.californium.network.stack.CoapStack}
+ * and its own single-threaded executor. Since all exchanges of a peer are
+ * processed by the same shard, the shards do not share any state and scale
+ * with the number of cores. All shards deliver to the same
+ * {@link MessageDeliverer}, i.e., to the same resource tree of a server.
+ * <p>
+ * If the platform supports SO_REUSEPORT, each shard binds its own socket to
+ * the port and the kernel spreads the peers among the sockets. Otherwise, a
+ * single {@link NioUDPConnector} receives all datagrams and dispatches them to
+ * the shards by the hash of the peer's address.
+ * <p>
+ * The sharded endpoint uses the executors of its shards. An executor set with
+ * {@link #setExecutor(ScheduledExecutorService)}, e.g., by the server, is not
+ * used to process messages. Note that with SO_REUSEPORT the kernel decides
+ * which socket receives a response. Therefore, the sharded endpoint is meant
+ * for servers and should not be used to send requests.
+ */
+public class ShardedEndpoint implements Endpoint {
+
+	/** the logger. */
+	private final static Logger LOGGER = Logger.getLogger(ShardedEndpoint.class.getCanonicalName());
+
+	/** The shards */
+	private final CoAPEndpoint[] shards;
+
+	/** The connectors of the shards */
+	private final Connector[] connectors;
+
+	/** The executors of the shards */
+	private final ScheduledExecutorService[] executors;
+
+	/** The common connector if SO_REUSEPORT is not used */
+	private final NioUDPConnector shared;
+
+	/** The address to bind to */
+	private final InetSocketAddress address;
+
+	/** The configuration of this endpoint */
+	private final NetworkConfig config;
+
+	/** Indicates if the endpoint has been started */
+	private boolean started;
+
+	/**
+	 * Instantiates a new sharded endpoint with the specified port.
+	 *
+	 * @param port the port
+	 */
+	public ShardedEndpoint(int port) {
+		this(new InetSocketAddress(port));
+	}
+
+	/**
+	 * Instantiates a new sharded endpoint with the specified address.
+	 *
+	 * @param address the address
+	 */
+	public ShardedEndpoint(InetSocketAddress address) {
+		this(address, NetworkConfig.getStandard());
+	}
+
+	/**
+	 * Instantiates a new sharded endpoint with the specified address and
+	 * configuration. The number of shards is defined by
+	 * {@link NetworkConfigDefaults#ENDPOINT_SHARD_COUNT}.
+	 *
+	 * @param address the address
+	 * @param config the configuration
+	 */
+	public ShardedEndpoint(InetSocketAddress address, NetworkConfig config) {
+		this(address, config.getInt(NetworkConfigDefaults.ENDPOINT_SHARD_COUNT), config);
+	}
+
+	/**
+	 * Instantiates a new sharded endpoint with the specified address, number
+	 * of shards and configuration.
+	 *
+	 * @param address the address
+	 * @param count the number of shards
+	 * @param config the configuration
+	 */
+	public ShardedEndpoint(InetSocketAddress address, int count, NetworkConfig config) {
+		if (count < 1)
+			throw new IllegalArgumentException("Sharded endpoint requires at least one shard but got "+count);
+		this.address = address;
+		this.config = config;
+		this.shards = new CoAPEndpoint[count];
+		this.connectors = new Connector[count];
+		this.executors = new ScheduledExecutorService[count];
+
+		boolean reusePort = count > 1 && ReusePortUDPConnector.isReusePortSupported();
+		if (reusePort) {
+			this.shared = null;
+		} else {
+			this.shared = createConnector(new NioUDPConnector(address));
+			this.shared.setRawDataReceiver(new Dispatcher());
+			if (count > 1)
+				LOGGER.info("SO_REUSEPORT is not supported, sharded endpoint uses one socket for "+count+" shards");
+		}
+
+		for (int i=0;i<count;i++) {
+			if (reusePort)
+				connectors[i] = createConnector(new ReusePortUDPConnector(address));
+			else
+				connectors[i] = new ShardConnector();
+			shards[i] = new CoAPEndpoint(connectors[i], config);
+			executors[i] = Executors.newSingleThreadScheduledExecutor(new ShardThreadFactory(i));
+			shards[i].setExecutor(executors[i]);
+		}
+	}
+
+	private NioUDPConnector createConnector(NioUDPConnector c) {
+		c.setReceiveBufferSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_RECEIVE_BUFFER));
+		c.setSendBufferSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_SEND_BUFFER));
+		c.setLogPackets(config.getBoolean(NetworkConfigDefaults.UDP_CONNECTOR_LOG_PACKETS));
+		c.setReceiverPacketSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_DATAGRAM_SIZE));
+		c.setBufferPoolSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_BUFFER_POOL_SIZE));
+		c.setReceiveBatchSize(config.getInt(NetworkConfigDefaults.UDP_CONNECTOR_RECEIVE_BATCH_SIZE));
+		return c;
+	}
+
+	/**
+	 * Returns the index of the shard responsible for the specified peer. The
+	 * hash code of the address is computed from its bytes without copying
+	 * them, unlike {@link InetAddress#getAddress()}.
+	 */
+	private int getShardIndex(InetAddress address, int port) {
+		int hash = address.hashCode() * 31 + port;
+		return (hash & 0x7FFFFFFF) % shards.length;
+	}
+
+	private CoAPEndpoint getShard(InetAddress address, int port) {
+		return shards[getShardIndex(address, port)];
+	}
+
+	/**
+	 * Gets the shards of this endpoint.
+	 *
+	 * @return the shards
+	 */
+	public List<CoAPEndpoint> getShards() {
+		return Arrays.asList(shards);
+	}
+
+	/**
+	 * Returns true if each shard has its own socket bound with SO_REUSEPORT.
+	 *
+	 * @return true if SO_REUSEPORT is used
+	 */
+	public boolean isReusePort() {
+		return shared == null;
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (started) {
+			LOGGER.log(Level.FINE, "Sharded endpoint bound to " + getAddress() + " is already started");
+			return;
+		}
+		LOGGER.log(Level.INFO, "Starting sharded endpoint bound to " + address + " with " + shards.length + " shards");
+		started = true;
+		try {
+			int first = 0;
+			if (shared != null) {
+				shared.start();
+			} else {
+				// all shards bind to the port of the first shard
+				shards[0].start();
+				InetSocketAddress bound = new InetSocketAddress(address.getAddress(), shards[0].getAddress().getPort());
+				for (int i=1;i<shards.length;i++)
+					((NioUDPConnector) connectors[i]).setAddress(bound);
+				first = 1;
+			}
+			for (int i=first;i<shards.length;i++)
+				shards[i].start();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Cannot start sharded endpoint at " + address, e);
+			stop();
+			throw e;
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!started) {
+			LOGGER.log(Level.INFO, "Sharded endpoint at address " + getAddress() + " is already stopped");
+			return;
+		}
+		started = false;
+		for (CoAPEndpoint shard:shards)
+			shard.stop();
+		if (shared != null)
+			shared.stop();
+	}
+
+	@Override
+	public synchronized void destroy() {
+		LOGGER.log(Level.INFO, "Destroying sharded endpoint at address " + getAddress());
+		if (started)
+			stop();
+		for (CoAPEndpoint shard:shards)
+			shard.destroy();
+		if (shared != null)
+			shared.destroy();
+		for (ScheduledExecutorService executor:executors)
+			executor.shutdown();
+	}
+
+	@Override
+	public void clear() {
+		for (CoAPEndpoint shard:shards)
+			shard.clear();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * The shards keep their own executors. The specified executor is not
+	 * used.
+	 */
+	@Override
+	public void setExecutor(ScheduledExecutorService executor) {
+		LOGGER.fine("Sharded endpoint uses the executors of its shards");
+	}
+
+	@Override
+	public void addObserver(EndpointObserver obs) {
+		for (CoAPEndpoint shard:shards)
+			shard.addObserver(obs);
+	}
+
+	@Override
+	public void removeObserver(EndpointObserver obs) {
+		for (CoAPEndpoint shard:shards)
+			shard.removeObserver(obs);
+	}
+
+	@Override
+	public void addInterceptor(MessageInterceptor interceptor) {
+		for (CoAPEndpoint shard:shards)
+			shard.addInterceptor(interceptor);
+	}
+
+	@Override
+	public void removeInterceptor(MessageInterceptor interceptor) {
+		for (CoAPEndpoint shard:shards)
+			shard.removeInterceptor(interceptor);
+	}
+
+	@Override
+	public List<MessageInterceptor> getInterceptors() {
+		return shards[0].getInterceptors();
+	}
+
+	@Override
+	public void sendRequest(Request request) {
+		getShard(request.getDestination(), request.getDestinationPort()).sendRequest(request);
+	}
+
+	@Override
+	public void sendResponse(Exchange exchange, Response response) {
+		Endpoint endpoint = exchange.getEndpoint();
+		if (endpoint != null && endpoint != this)
+			endpoint.sendResponse(exchange, response);
+		else
+			getShard(response.getDestination(), response.getDestinationPort()).sendResponse(exchange, response);
+	}
+
+	@Override
+	public void sendEmptyMessage(Exchange exchange, EmptyMessage message) {
+		Endpoint endpoint = exchange.getEndpoint();
+		if (endpoint != null && endpoint != this)
+			endpoint.sendEmptyMessage(exchange, message);
+		else
+			getShard(message.getDestination(), message.getDestinationPort()).sendEmptyMessage(exchange, message);
+	}
+
+	@Override
+	public void setMessageDeliverer(MessageDeliverer deliverer) {
+		for (CoAPEndpoint shard:shards)
+			shard.setMessageDeliverer(deliverer);
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		if (shared != null)
+			return shared.getAddress();
+		else
+			return shards[0].getAddress();
+	}
+
+	@Override
+	public NetworkConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Dispatches the datagrams of the common connector to the shards. A batch
+	 * is split into one batch per shard.
+	 */
+	private class Dispatcher implements RawDataBatchChannel {
+
+		@Override
+		public void receiveData(RawData raw) {
+			int index = getShardIndex(raw.getAddress(), raw.getPort());
+			((ShardConnector) connectors[index]).receiver.receiveData(raw);
+		}
+
+		@Override
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public void receiveData(List<RawData> batch) {
+			List<RawData>[] split = new List[shards.length];
+			for (RawData raw:batch) {
+				int index = getShardIndex(raw.getAddress(), raw.getPort());
+				if (split[index] == null)
+					split[index] = new ArrayList<RawData>(batch.size());
+				split[index].add(raw);
+			}
+			for (int i=0;i<split.length;i++) {
+				if (split[i] == null)
+					continue;
+				RawDataChannel receiver = ((ShardConnector) connectors[i]).receiver;
+				if (receiver instanceof RawDataBatchChannel)
+					((RawDataBatchChannel) receiver).receiveData(split[i]);
+				else
+					for (RawData raw:split[i])
+						receiver.receiveData(raw);
+			}
+		}
+	}
+
+	/**
+	 * The connector of a shard if the shards share the common connector. The
+	 * common connector is started and stopped by the sharded endpoint.
+	 */
+	private class ShardConnector implements BatchConnector {
+
+		private RawDataChannel receiver;
+
+		public void start() throws IOException { }
+
+		public void stop() { }
+
+		public void destroy() { }
+
+		public void send(RawData msg) {
+			shared.send(msg);
+		}
+
+		public void send(List<RawData> batch) {
+			shared.send(batch);
+		}
+
+		public void setRawDataReceiver(RawDataChannel receiver) {
+			this.receiver = receiver;
+		}
+
+		public InetSocketAddress getAddress() {
+			return shared.getAddress();
+		}
+	}
+
+	/**
+	 * Creates the non-daemon thread of a shard.
+	 */
+	private class ShardThreadFactory implements ThreadFactory {
+
+		private final int index;
+
+		private ShardThreadFactory(int index) {
+			this.index = index;
+		}
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "ShardedEndpoint-"+address.getPort()+"-shard-"+index);
+		}
+	}
+}
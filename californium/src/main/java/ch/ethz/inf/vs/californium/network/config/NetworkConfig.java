@@ -99,6 +99,9 @@ public class NetworkConfig {
 	
 	private List<NetworkConfigObserver> observers = new LinkedList<NetworkConfigObserver>();
 	
+	/** The parsed values for hot paths or null if a value has changed. */
+	private volatile NetworkConfigSnapshot snapshot;
+	
 	/**
 	 * Instantiates a new network configiguration and sets the default values
 	 * defined in {@link NetworkConfigDefaults}.
@@ -117,6 +120,7 @@ public class NetworkConfig {
 	public void load(File file) throws IOException {
 		InputStream inStream = new FileInputStream(file);
 		properties.load(inStream);
+		invalidateSnapshot();
 	}
 	
 	/**
@@ -265,6 +269,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig set(String key, Object value) {
 		properties.put(key, String.valueOf(value));
+		invalidateSnapshot();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -279,6 +284,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setString(String key, String value) {
 		properties.put(key, String.valueOf(value));
+		invalidateSnapshot();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -293,6 +299,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setInt(String key, int value) {
 		properties.put(key, String.valueOf(value));
+		invalidateSnapshot();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -307,6 +314,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setLong(String key, long value) {
 		properties.put(key, String.valueOf(value));
+		invalidateSnapshot();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -321,6 +329,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setFloat(String key, float value) {
 		properties.put(key, String.valueOf(value));
+		invalidateSnapshot();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -335,6 +344,7 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setDouble(String key, double value) {
 		properties.put(key, String.valueOf(value));
+		invalidateSnapshot();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
@@ -349,11 +359,38 @@ public class NetworkConfig {
 	 */
 	public NetworkConfig setBoolean(String key, boolean value) {
 		properties.put(key, String.valueOf(value));
+		invalidateSnapshot();
 		for (NetworkConfigObserver obs:observers)
 			obs.changed(key, value);
 		return this;
 	}
 	
+	/**
+	 * Gets the snapshot of the values that are read on every message. The
+	 * snapshot is created when it is first needed after a value has changed.
+	 *
+	 * @return the snapshot
+	 */
+	public NetworkConfigSnapshot getSnapshot() {
+		NetworkConfigSnapshot current = snapshot;
+		if (current != null)
+			return current;
+		synchronized (this) {
+			if (snapshot == null)
+				snapshot = new NetworkConfigSnapshot(this);
+			return snapshot;
+		}
+	}
+	
+	/*
+	 * Discards the snapshot after a value has changed. Since creating and
+	 * discarding the snapshot hold the same lock, a snapshot that has been
+	 * created concurrently with a change is discarded as well.
+	 */
+	private synchronized void invalidateSnapshot() {
+		snapshot = null;
+	}
+	
 	public NetworkConfig addConfigObserver(NetworkConfigObserver observer) {
 		observers.add(observer);
 		return this;
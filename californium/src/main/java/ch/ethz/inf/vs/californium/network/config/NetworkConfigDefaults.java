@@ -1,6 +1,7 @@
 package ch.ethz.inf.vs.californium.network.config;
 
 import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.connector.NioUDPConnector;
 import ch.ethz.inf.vs.elements.UDPConnector;
 
 public class NetworkConfigDefaults {
@@ -26,8 +27,15 @@ public class NetworkConfigDefaults {
 	public static final String NSTART = "NSTART";
 	public static final String DEFAULT_LEISURE = "DEFAULT_LEISURE";
 	public static final String PROBING_RATE = "PROBING_RATE";
+	public static final String USE_CONGESTION_CONTROL = "USE_CONGESTION_CONTROL";
 	public static final String MAX_MESSAGE_SIZE = "MAX_MESSAGE_SIZE";
 	public static final String DEFAULT_BLOCK_SIZE = "DEFAULT_BLOCK_SIZE";
+	public static final String BLOCKWISE_SPILL_THRESHOLD = "BLOCKWISE_SPILL_THRESHOLD";
+	public static final String BLOCKWISE_REPRESENTATION_CACHE_SIZE = "BLOCKWISE_REPRESENTATION_CACHE_SIZE";
+	public static final String BLOCKWISE_PIPELINE_WINDOW = "BLOCKWISE_PIPELINE_WINDOW";
+	public static final String BLOCKWISE_STATUS_LIFETIME = "BLOCKWISE_STATUS_LIFETIME";
+	public static final String MAX_BLOCKWISE_TRANSFERS = "MAX_BLOCKWISE_TRANSFERS";
+	public static final String MAX_BLOCKWISE_BYTES = "MAX_BLOCKWISE_BYTES";
 	public static final String NOTIFICATION_MAX_AGE = "NOTIFICATION_MAX_AGE";
 	public static final String NOTIFICATION_CHECK_INTERVAL_TIME = "NOTIFICATION_CHECK_INTERVAL";
 	public static final String NOTIFICATION_CHECK_INTERVAL_COUNT = "NOTIFICATION_CHECK_INTERVAL_COUNT";
@@ -35,13 +43,30 @@ public class NetworkConfigDefaults {
 	public static final String DEDUPLICATOR = "DEDUPLICATOR";
 	public static final String DEDUPLICATOR_MARK_AND_SWEEP = "DEDUPLICATOR_MARK_AND_SWEEP";
 	public static final String DEDUPLICATOR_CROP_ROTATION = "DEDUPLICATOR_CROP_ROTATIO";
+	public static final String DEDUPLICATOR_BOUNDED = "DEDUPLICATOR_BOUNDED";
+	public static final String DEDUPLICATOR_TIME_BUCKETS = "DEDUPLICATOR_TIME_BUCKETS";
 	public static final String NO_DEDUPLICATOR = "NO_DEDUPLICATOR";
 	public static final String MARK_AND_SWEEP_INTERVAL = "MARK_AND_SWEEP_INTERVAL";
 	public static final String CROP_ROTATION_PERIOD = "CROP_ROTATION_PERIOD";
+	public static final String MAX_DEDUPLICATOR_ENTRIES = "MAX_DEDUPLICATOR_ENTRIES";
+	public static final String MAX_DEDUPLICATOR_BYTES = "MAX_DEDUPLICATOR_BYTES";
+	public static final String TIME_BUCKET_COUNT = "TIME_BUCKET_COUNT";
+	public static final String TIME_BUCKET_SIZE = "TIME_BUCKET_SIZE";
+	public static final String TIMER = "TIMER";
+	public static final String TIMER_HASHED_WHEEL = "TIMER_HASHED_WHEEL";
+	public static final String TIMER_EXECUTOR = "TIMER_EXECUTOR";
+	public static final String TIMER_TICK_DURATION = "TIMER_TICK_DURATION";
+	public static final String TIMER_WHEEL_SIZE = "TIMER_WHEEL_SIZE";
 	public static final String EXCHANGE_LIFECYCLE = "EXCHANGE_LIFECYCLE";
 	public static final String MAX_RETRANSMIT = "MAX_RETRANSMIT";
+	public static final String AUTO_ACCEPT_DELAY = "AUTO_ACCEPT_DELAY";
 	public static final String DEFAULT_ENDPOINT_THREAD_COUNT = "DEFAULT_ENDPOINT_THREAD_COUNT";
 	public static final String SERVER_THRESD_NUMER = "SERVER_THRESD_NUMER";
+	public static final String EXECUTOR_PEER_AFFINITY = "EXECUTOR_PEER_AFFINITY";
+	public static final String ENDPOINT_SHARD_COUNT = "ENDPOINT_SHARD_COUNT";
+	public static final String MAX_QUEUED_MESSAGES = "MAX_QUEUED_MESSAGES";
+	public static final String MAX_ACTIVE_EXCHANGES = "MAX_ACTIVE_EXCHANGES";
+	public static final String OVERLOAD_MAX_AGE = "OVERLOAD_MAX_AGE";
 	
 	public static final String USE_RANDOM_TOKEN_START = "USE_RANDOM_TOKEN_START";
 	public static final String USE_RANDOM_MID_START = "USE_RANDOM_MID_START";
@@ -53,6 +78,9 @@ public class NetworkConfigDefaults {
 	public static final String UDP_CONNECTOR_DATAGRAM_SIZE = "UDP_CONNECTOR_DATAGRAM_SIZE";
 	public static final String UDP_CONNECTOR_OUT_CAPACITY = "UDP_CONNECTOR_OUT_CAPACITY";
 	public static final String UDP_CONNECTOR_LOG_PACKETS = "UDP_CONNECTOR_LOG_PACKETS";
+	public static final String UDP_CONNECTOR_NIO = "UDP_CONNECTOR_NIO";
+	public static final String UDP_CONNECTOR_BUFFER_POOL_SIZE = "UDP_CONNECTOR_BUFFER_POOL_SIZE";
+	public static final String UDP_CONNECTOR_RECEIVE_BATCH_SIZE = "UDP_CONNECTOR_RECEIVE_BATCH_SIZE";
 	
 	public static final String HTTP_PORT = "HTTP_PORT";
 	public static final String HTTP_SERVER_SOCKET_TIMEOUT = "HTTP_SERVER_SOCKET_TIMEOUT";
@@ -70,14 +98,23 @@ public class NetworkConfigDefaults {
 		config.setInt(NSTART, 1);
 		config.setInt(DEFAULT_LEISURE, 5000);
 		config.setFloat(PROBING_RATE, 1f);
+		config.setBoolean(USE_CONGESTION_CONTROL, false);
 		config.setInt(MAX_RETRANSMIT, 4);
+		config.setLong(AUTO_ACCEPT_DELAY, 0); // ms, 0 to disable
 		config.setLong(EXCHANGE_LIFECYCLE, 247 * 1000); // in ms
 		config.setBoolean(USE_RANDOM_TOKEN_START, true);
 		config.setBoolean(USE_RANDOM_MID_START, true);
 		
 		config.setInt(MAX_MESSAGE_SIZE, 1024);
 		config.setInt(DEFAULT_BLOCK_SIZE, 512);
+		config.setInt(BLOCKWISE_SPILL_THRESHOLD, 64 * 1024); // bytes of a Block1 upload kept in memory
+		config.setInt(BLOCKWISE_REPRESENTATION_CACHE_SIZE, 4 * 1024 * 1024); // bytes of shared Block2 representations, 0 to disable
+		config.setInt(BLOCKWISE_PIPELINE_WINDOW, 1); // Block2 requests in flight per download, 1 to disable pipelining
+		config.setLong(BLOCKWISE_STATUS_LIFETIME, 5 * 60 * 1000); // ms a transfer may be idle
+		config.setInt(MAX_BLOCKWISE_TRANSFERS, 10000);
+		config.setLong(MAX_BLOCKWISE_BYTES, 64 * 1024 * 1024);
 		config.setInt(SERVER_THRESD_NUMER, Runtime.getRuntime().availableProcessors());
+		config.setBoolean(EXECUTOR_PEER_AFFINITY, false);
 		
 		config.setLong(NOTIFICATION_MAX_AGE, 128 * 1000); // ms
 		config.setLong(NOTIFICATION_CHECK_INTERVAL_TIME, 24 * 60 * 60 * 1000); // ms
@@ -86,7 +123,18 @@ public class NetworkConfigDefaults {
 		config.setString(DEDUPLICATOR, DEDUPLICATOR_MARK_AND_SWEEP);
 		config.setLong(MARK_AND_SWEEP_INTERVAL, 10 * 1000);
 		config.setInt(CROP_ROTATION_PERIOD, 2000);
+		config.setInt(MAX_DEDUPLICATOR_ENTRIES, 100000);
+		config.setLong(MAX_DEDUPLICATOR_BYTES, 16 * 1024 * 1024);
+		config.setInt(TIME_BUCKET_COUNT, 8);
+		config.setInt(TIME_BUCKET_SIZE, 4096);
+		config.setString(TIMER, TIMER_HASHED_WHEEL);
+		config.setLong(TIMER_TICK_DURATION, 10); // ms
+		config.setInt(TIMER_WHEEL_SIZE, 512);
 		config.setInt(DEFAULT_ENDPOINT_THREAD_COUNT, 1);
+		config.setInt(ENDPOINT_SHARD_COUNT, Runtime.getRuntime().availableProcessors());
+		config.setInt(MAX_QUEUED_MESSAGES, 0); // 0 for unlimited
+		config.setInt(MAX_ACTIVE_EXCHANGES, 0); // 0 for unlimited
+		config.setInt(OVERLOAD_MAX_AGE, 60); // s
 		
 		config.setInt(UDP_CONNECTOR_RECEIVE_BUFFER, UDPConnector.UNDEFINED);
 		config.setInt(UDP_CONNECTOR_SEND_BUFFER, UDPConnector.UNDEFINED);
@@ -95,6 +143,9 @@ public class NetworkConfigDefaults {
 		config.setInt(UDP_CONNECTOR_DATAGRAM_SIZE, 2000);
 		config.setInt(UDP_CONNECTOR_OUT_CAPACITY, Integer.MAX_VALUE); // unbounded
 		config.setBoolean(UDP_CONNECTOR_LOG_PACKETS, false);
+		config.setBoolean(UDP_CONNECTOR_NIO, false);
+		config.setInt(UDP_CONNECTOR_BUFFER_POOL_SIZE, NioUDPConnector.DEFAULT_BUFFER_POOL_SIZE);
+		config.setInt(UDP_CONNECTOR_RECEIVE_BATCH_SIZE, NioUDPConnector.DEFAULT_RECEIVE_BATCH_SIZE);
 		
 		config.setInt(HTTP_PORT, 8080);
 		config.setInt(HTTP_SERVER_SOCKET_TIMEOUT, 100000);
@@ -0,0 +1,121 @@
+package ch.ethz.inf.vs.californium.network.config;
+
+/**
+ * An immutable snapshot of the values of a {@link NetworkConfig} that are
+ * read on every message, e.g., to compute retransmission timeouts. The values
+ * are parsed once when the snapshot is created. The network configuration
+ * replaces its snapshot whenever a value changes, so that a component that
+ * calls {@link NetworkConfig#getSnapshot()} always sees a consistent set of
+ * current values without parsing any strings.
+ */
+public final class NetworkConfigSnapshot {
+
+	private final int ackTimeout;
+	private final float ackRandomFactor;
+	private final int ackTimeoutScale;
+	private final int maxRetransmit;
+	private final int nstart;
+	private final long exchangeLifecycle;
+	private final long markAndSweepInterval;
+	private final long autoAcceptDelay;
+	private final long notificationMaxAge;
+
+	/**
+	 * Instantiates a new snapshot with the current values of the specified
+	 * configuration.
+	 *
+	 * @param config the configuration
+	 */
+	public NetworkConfigSnapshot(NetworkConfig config) {
+		this.ackTimeout = config.getInt(NetworkConfigDefaults.ACK_TIMEOUT);
+		this.ackRandomFactor = config.getFloat(NetworkConfigDefaults.ACK_RANDOM_FACTOR);
+		this.ackTimeoutScale = config.getInt(NetworkConfigDefaults.ACK_TIMEOUT_SCALE);
+		this.maxRetransmit = config.getInt(NetworkConfigDefaults.MAX_RETRANSMIT);
+		this.nstart = config.getInt(NetworkConfigDefaults.NSTART);
+		this.exchangeLifecycle = config.getLong(NetworkConfigDefaults.EXCHANGE_LIFECYCLE);
+		this.markAndSweepInterval = config.getLong(NetworkConfigDefaults.MARK_AND_SWEEP_INTERVAL);
+		this.autoAcceptDelay = config.getLong(NetworkConfigDefaults.AUTO_ACCEPT_DELAY);
+		this.notificationMaxAge = config.getLong(NetworkConfigDefaults.NOTIFICATION_MAX_AGE);
+	}
+
+	/**
+	 * Gets ACK_TIMEOUT in milliseconds.
+	 *
+	 * @return the ACK timeout
+	 */
+	public int getAckTimeout() {
+		return ackTimeout;
+	}
+
+	/**
+	 * Gets ACK_RANDOM_FACTOR.
+	 *
+	 * @return the ACK random factor
+	 */
+	public float getAckRandomFactor() {
+		return ackRandomFactor;
+	}
+
+	/**
+	 * Gets ACK_TIMEOUT_SCALE.
+	 *
+	 * @return the ACK timeout scale
+	 */
+	public int getAckTimeoutScale() {
+		return ackTimeoutScale;
+	}
+
+	/**
+	 * Gets MAX_RETRANSMIT.
+	 *
+	 * @return the maximum number of retransmissions
+	 */
+	public int getMaxRetransmit() {
+		return maxRetransmit;
+	}
+
+	/**
+	 * Gets NSTART.
+	 *
+	 * @return the number of simultaneous confirmable messages to a peer
+	 */
+	public int getNStart() {
+		return nstart;
+	}
+
+	/**
+	 * Gets EXCHANGE_LIFECYCLE in milliseconds.
+	 *
+	 * @return the exchange lifecycle
+	 */
+	public long getExchangeLifecycle() {
+		return exchangeLifecycle;
+	}
+
+	/**
+	 * Gets MARK_AND_SWEEP_INTERVAL in milliseconds.
+	 *
+	 * @return the sweep interval
+	 */
+	public long getMarkAndSweepInterval() {
+		return markAndSweepInterval;
+	}
+
+	/**
+	 * Gets AUTO_ACCEPT_DELAY in milliseconds.
+	 *
+	 * @return the auto accept delay
+	 */
+	public long getAutoAcceptDelay() {
+		return autoAcceptDelay;
+	}
+
+	/**
+	 * Gets NOTIFICATION_MAX_AGE in milliseconds.
+	 *
+	 * @return the notification max age
+	 */
+	public long getNotificationMaxAge() {
+		return notificationMaxAge;
+	}
+}
@@ -0,0 +1,20 @@
+package ch.ethz.inf.vs.californium.network.connector;
+
+import java.util.List;
+
+import ch.ethz.inf.vs.elements.Connector;
+import ch.ethz.inf.vs.elements.RawData;
+
+/**
+ * A {@link Connector} that can send several datagrams with one call.
+ */
+public interface BatchConnector extends Connector {
+
+	/**
+	 * Sends the specified datagrams in the order of the list.
+	 *
+	 * @param batch the datagrams
+	 */
+	public void send(List<RawData> batch);
+
+}
@@ -0,0 +1,144 @@
+package ch.ethz.inf.vs.californium.network.connector;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size pool of direct {@link ByteBuffer}s of equal capacity. All
+ * buffers are allocated up front so that acquiring and releasing a buffer in
+ * the steady state does not allocate. If the pool is exhausted, a new buffer is
+ * allocated and counted as a miss; released buffers that do not fit back into
+ * the pool are dropped.
+ * <p>
+ * The pool exposes its occupancy as simple counters that can be polled for
+ * metrics.
+ */
+public class DirectBufferPool {
+
+	/** The idle buffers */
+	private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+	/** The number of buffers the pool holds when idle */
+	private final int capacity;
+
+	/** The size of each buffer in bytes */
+	private final int bufferSize;
+
+	/** The number of buffers currently handed out */
+	private final AtomicInteger inUse = new AtomicInteger();
+
+	/** The highest number of buffers that have been handed out at once */
+	private final AtomicInteger peakInUse = new AtomicInteger();
+
+	/** The number of acquisitions that found the pool empty */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Instantiates a new pool with the specified number of buffers.
+	 *
+	 * @param capacity the number of buffers
+	 * @param bufferSize the size of each buffer in bytes
+	 */
+	public DirectBufferPool(int capacity, int bufferSize) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Pool capacity must be at least 1");
+		this.capacity = capacity;
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(capacity);
+		for (int i=0;i<capacity;i++)
+			buffers.offer(ByteBuffer.allocateDirect(bufferSize));
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool. If the pool is empty, a new buffer
+	 * is allocated.
+	 *
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			misses.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		int used = inUse.incrementAndGet();
+		int peak = peakInUse.get();
+		while (used > peak && !peakInUse.compareAndSet(peak, used))
+			peak = peakInUse.get();
+		return buffer;
+	}
+
+	/**
+	 * Returns the specified buffer to the pool.
+	 *
+	 * @param buffer the buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		inUse.decrementAndGet();
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * Gets the number of buffers the pool holds when idle.
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the size of each buffer in bytes.
+	 *
+	 * @return the buffer size
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Gets the number of idle buffers in the pool.
+	 *
+	 * @return the number of available buffers
+	 */
+	public int getAvailable() {
+		return buffers.size();
+	}
+
+	/**
+	 * Gets the number of buffers currently handed out.
+	 *
+	 * @return the number of buffers in use
+	 */
+	public int getInUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * Gets the highest number of buffers that have been in use at once.
+	 *
+	 * @return the peak number of buffers in use
+	 */
+	public int getPeakInUse() {
+		return peakInUse.get();
+	}
+
+	/**
+	 * Gets the number of acquisitions that had to allocate a new buffer because
+	 * the pool was empty.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DirectBufferPool[capacity="+capacity+", available="+getAvailable()
+				+", inUse="+getInUse()+", peak="+getPeakInUse()+", misses="+getMisses()+"]";
+	}
+}
@@ -0,0 +1,434 @@
+package ch.ethz.inf.vs.californium.network.connector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.elements.RawData;
+import ch.ethz.inf.vs.elements.RawDataChannel;
+import ch.ethz.inf.vs.elements.UDPConnector;
+
+/**
+ * A UDP connector that runs on a non-blocking {@link DatagramChannel} and a
+ * single {@link Selector} thread instead of blocking receiver and sender
+ * threads. Datagrams are received into and sent from direct buffers taken from
+ * a {@link DirectBufferPool}.
+ * <p>
+ * Outgoing datagrams are written directly by the calling thread. Only if the
+ * socket's send buffer is full, they are queued and flushed by the selector
+ * thread once the channel becomes writable again.
+ * <p>
+ * If the receiver is a {@link RawDataBatchChannel}, the selector thread drains
+ * up to {@link #getReceiveBatchSize()} ready datagrams and hands them over as
+ * one batch.
+ */
+public class NioUDPConnector implements BatchConnector {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(NioUDPConnector.class.getCanonicalName());
+
+	/** The default number of buffers in the pool */
+	public static final int DEFAULT_BUFFER_POOL_SIZE = 16;
+
+	/** The default maximum number of datagrams handed over as one batch */
+	public static final int DEFAULT_RECEIVE_BATCH_SIZE = 16;
+
+	/** The address to bind to or the bound address after start */
+	private InetSocketAddress localAddr;
+
+	/** The receiver of incoming datagrams */
+	private RawDataChannel receiver;
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private SelectionKey key;
+	private Thread selectorThread;
+
+	private volatile boolean running;
+
+	/** Datagrams that could not be sent because the send buffer was full */
+	private final ConcurrentLinkedQueue<RawData> outgoing = new ConcurrentLinkedQueue<RawData>();
+
+	/** Set by senders when the selector must watch for writability */
+	private volatile boolean writeInterest;
+
+	private DirectBufferPool pool;
+
+	private int receiveBufferSize = UDPConnector.UNDEFINED;
+	private int sendBufferSize = UDPConnector.UNDEFINED;
+	private int datagramSize = 2000;
+	private int bufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+	private int receiveBatchSize = DEFAULT_RECEIVE_BATCH_SIZE;
+	private boolean logPackets = false;
+
+	/**
+	 * Instantiates a new connector bound to an ephemeral port.
+	 */
+	public NioUDPConnector() {
+		this(new InetSocketAddress(0));
+	}
+
+	/**
+	 * Instantiates a new connector bound to the specified address.
+	 *
+	 * @param address the address
+	 */
+	public NioUDPConnector(InetSocketAddress address) {
+		this.localAddr = address;
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (running) return;
+
+		pool = new DirectBufferPool(bufferPoolSize, datagramSize);
+
+		channel = DatagramChannel.open();
+		if (receiveBufferSize != UDPConnector.UNDEFINED)
+			channel.socket().setReceiveBufferSize(receiveBufferSize);
+		if (sendBufferSize != UDPConnector.UNDEFINED)
+			channel.socket().setSendBufferSize(sendBufferSize);
+		bind(channel, localAddr);
+		channel.configureBlocking(false);
+		localAddr = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+
+		selector = Selector.open();
+		key = channel.register(selector, SelectionKey.OP_READ);
+
+		running = true;
+		selectorThread = new Thread(new SelectorLoop(), "NioUDPConnector-"+localAddr);
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+
+		LOGGER.info("NioUDPConnector listening on "+localAddr+", recv buf = "+channel.socket().getReceiveBufferSize()
+				+", send buf = "+channel.socket().getSendBufferSize()+", datagram size = "+datagramSize
+				+", buffer pool = "+bufferPoolSize+", receive batch = "+receiveBatchSize);
+	}
+
+	/**
+	 * Binds the specified channel to the specified address. Subclasses may
+	 * override this method to set additional socket options before binding.
+	 *
+	 * @param channel the unbound channel
+	 * @param address the address
+	 * @throws IOException if the channel cannot be bound
+	 */
+	protected void bind(DatagramChannel channel, InetSocketAddress address) throws IOException {
+		channel.socket().bind(address);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		selector.wakeup();
+		try {
+			selectorThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Exception while closing selector", e);
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Exception while closing channel", e);
+		}
+		outgoing.clear();
+		LOGGER.info("NioUDPConnector on "+localAddr+" has stopped");
+	}
+
+	@Override
+	public void destroy() {
+		stop();
+	}
+
+	@Override
+	public void send(RawData msg) {
+		if (msg == null)
+			throw new NullPointerException();
+		if (!running) {
+			LOGGER.fine("NioUDPConnector on "+localAddr+" is not running, dropping message to "+msg.getInetSocketAddress());
+			return;
+		}
+		// preserve the order of queued messages
+		if (!outgoing.isEmpty() || !write(msg)) {
+			outgoing.offer(msg);
+			writeInterest = true;
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Sends the specified datagrams using a single buffer from the pool. If
+	 * the send buffer becomes full, the remaining datagrams are queued.
+	 */
+	@Override
+	public void send(List<RawData> batch) {
+		if (!running) {
+			LOGGER.fine("NioUDPConnector on "+localAddr+" is not running, dropping "+batch.size()+" messages");
+			return;
+		}
+		int size = batch.size();
+		int index = 0;
+		if (outgoing.isEmpty()) {
+			ByteBuffer buffer = pool.acquire();
+			try {
+				while (index < size && write(batch.get(index), buffer))
+					index++;
+			} finally {
+				pool.release(buffer);
+			}
+		}
+		if (index < size) {
+			for (;index<size;index++)
+				outgoing.offer(batch.get(index));
+			writeInterest = true;
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Writes the specified datagram to the channel.
+	 *
+	 * @param msg the datagram
+	 * @return true if the datagram has been written, false if the send buffer is full
+	 */
+	private boolean write(RawData msg) {
+		ByteBuffer buffer = pool.acquire();
+		try {
+			return write(msg, buffer);
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Writes the specified datagram to the channel using the specified buffer.
+	 *
+	 * @param msg the datagram
+	 * @param pooled the buffer from the pool
+	 * @return true if the datagram has been written, false if the send buffer is full
+	 */
+	private boolean write(RawData msg, ByteBuffer pooled) {
+		try {
+			ByteBuffer buffer = pooled;
+			byte[] bytes = msg.getBytes();
+			if (bytes.length > buffer.capacity()) {
+				// rare oversized datagram, do not let it spoil the pool
+				buffer = ByteBuffer.wrap(bytes);
+			} else {
+				buffer.clear();
+				buffer.put(bytes);
+				buffer.flip();
+			}
+			int sent = channel.send(buffer, msg.getInetSocketAddress());
+			if (sent > 0 && logPackets)
+				LOGGER.info(String.format("NioUDPConnector (%s) sent %d bytes to %s:%d", localAddr, sent, msg.getAddress(), msg.getPort()));
+			return sent > 0;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Exception while sending datagram to "+msg.getInetSocketAddress(), e);
+			return true; // drop it
+		}
+	}
+
+	@Override
+	public void setRawDataReceiver(RawDataChannel receiver) {
+		this.receiver = receiver;
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		return localAddr;
+	}
+
+	/**
+	 * Sets the address to bind to when the connector is started next. The
+	 * connector must not be running.
+	 *
+	 * @param address the address
+	 */
+	public synchronized void setAddress(InetSocketAddress address) {
+		if (running)
+			throw new IllegalStateException("Connector is already bound to "+localAddr);
+		this.localAddr = address;
+	}
+
+	/**
+	 * Gets the buffer pool of this connector or null if the connector has not
+	 * been started yet. The pool's counters reflect the buffer occupancy.
+	 *
+	 * @return the buffer pool
+	 */
+	public DirectBufferPool getBufferPool() {
+		return pool;
+	}
+
+	/**
+	 * Gets the number of datagrams waiting for the send buffer to drain.
+	 *
+	 * @return the number of queued datagrams
+	 */
+	public int getOutgoingQueueSize() {
+		return outgoing.size();
+	}
+
+	public void setReceiveBufferSize(int size) {
+		this.receiveBufferSize = size;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public void setSendBufferSize(int size) {
+		this.sendBufferSize = size;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	public void setReceiverPacketSize(int size) {
+		this.datagramSize = size;
+	}
+
+	public int getReceiverPacketSize() {
+		return datagramSize;
+	}
+
+	public void setBufferPoolSize(int size) {
+		this.bufferPoolSize = size;
+	}
+
+	public int getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+
+	/**
+	 * Sets the maximum number of datagrams that are drained from the socket
+	 * and handed over to a {@link RawDataBatchChannel} as one batch. A value
+	 * of 1 hands over each datagram separately.
+	 *
+	 * @param size the maximum batch size
+	 */
+	public void setReceiveBatchSize(int size) {
+		this.receiveBatchSize = size;
+	}
+
+	public int getReceiveBatchSize() {
+		return receiveBatchSize;
+	}
+
+	public void setLogPackets(boolean b) {
+		this.logPackets = b;
+	}
+
+	public boolean isLogPackets() {
+		return logPackets;
+	}
+
+	/**
+	 * The selector loop receives all ready datagrams whenever the channel
+	 * becomes readable and flushes queued datagrams when it becomes writable.
+	 */
+	private class SelectorLoop implements Runnable {
+
+		public void run() {
+			ByteBuffer buffer = pool.acquire();
+			try {
+				while (running) {
+					try {
+						selector.select();
+						if (!running) break;
+						// Only one key is registered, so we do not need to
+						// iterate over the selected keys.
+						selector.selectedKeys().clear();
+
+						if (writeInterest) {
+							writeInterest = false;
+							key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						}
+						if (key.isValid() && key.isReadable())
+							receiveAll(buffer);
+						if (key.isValid() && key.isWritable())
+							flush();
+
+					} catch (IOException e) {
+						if (running)
+							LOGGER.log(Level.WARNING, "Exception in selector loop of NioUDPConnector on "+localAddr, e);
+					} catch (Throwable t) {
+						LOGGER.log(Level.SEVERE, "Throwable in selector loop of NioUDPConnector on "+localAddr, t);
+					}
+				}
+			} finally {
+				pool.release(buffer);
+			}
+		}
+
+		private void receiveAll(ByteBuffer buffer) throws IOException {
+			if (receiveBatchSize > 1 && receiver instanceof RawDataBatchChannel) {
+				RawDataBatchChannel batchReceiver = (RawDataBatchChannel) receiver;
+				List<RawData> batch;
+				do {
+					batch = new ArrayList<RawData>(receiveBatchSize);
+					RawData raw;
+					while (batch.size() < receiveBatchSize && (raw = receive(buffer)) != null)
+						batch.add(raw);
+					if (batch.size() == 1)
+						receiver.receiveData(batch.get(0));
+					else if (!batch.isEmpty())
+						batchReceiver.receiveData(batch);
+				} while (batch.size() == receiveBatchSize);
+
+			} else {
+				RawData raw;
+				while ((raw = receive(buffer)) != null)
+					receiver.receiveData(raw);
+			}
+		}
+
+		/**
+		 * Receives the next datagram or returns null if none is ready.
+		 */
+		private RawData receive(ByteBuffer buffer) throws IOException {
+			InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+			if (source == null)
+				return null;
+			buffer.flip();
+			// RawData requires an array of the exact length
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			buffer.clear();
+
+			if (logPackets)
+				LOGGER.info(String.format("NioUDPConnector (%s) received %d bytes from %s:%d", localAddr, bytes.length, source.getAddress(), source.getPort()));
+
+			return new RawData(bytes, source.getAddress(), source.getPort());
+		}
+
+		private void flush() {
+			RawData msg;
+			while ((msg = outgoing.peek()) != null) {
+				if (!write(msg))
+					return; // still full, wait for the next OP_WRITE
+				outgoing.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			// a sender might have queued a message in the meantime
+			if (!outgoing.isEmpty())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+}
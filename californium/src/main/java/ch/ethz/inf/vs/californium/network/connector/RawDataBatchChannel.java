@@ -0,0 +1,23 @@
+package ch.ethz.inf.vs.californium.network.connector;
+
+import java.util.List;
+
+import ch.ethz.inf.vs.elements.RawData;
+import ch.ethz.inf.vs.elements.RawDataChannel;
+
+/**
+ * A {@link RawDataChannel} that can also receive several datagrams at once. A
+ * connector that drains multiple datagrams per wakeup hands them over as one
+ * batch so that the receiver can process them in a single task.
+ */
+public interface RawDataBatchChannel extends RawDataChannel {
+
+	/**
+	 * Receives a batch of datagrams. The list must not be modified by the
+	 * caller after this call.
+	 *
+	 * @param batch the datagrams in the order they have been received
+	 */
+	public void receiveData(List<RawData> batch);
+
+}
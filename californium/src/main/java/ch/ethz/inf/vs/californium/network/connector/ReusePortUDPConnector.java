@@ -0,0 +1,83 @@
+package ch.ethz.inf.vs.californium.network.connector;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link NioUDPConnector} that sets SO_REUSEPORT before binding, so that
+ * several connectors can bind to the same port and the kernel spreads the
+ * incoming datagrams among them by peer.
+ * <p>
+ * The option is only available on Java 9 and newer on platforms that support
+ * it. Use {@link #isReusePortSupported()} to find out whether it can be used
+ * on the running platform.
+ */
+public class ReusePortUDPConnector extends NioUDPConnector {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(ReusePortUDPConnector.class.getCanonicalName());
+
+	/** The socket option SO_REUSEPORT or null if not supported */
+	private static final Object SO_REUSEPORT;
+
+	/** The method NetworkChannel.setOption(SocketOption, Object) */
+	private static final Method SET_OPTION;
+
+	static {
+		Object option = null;
+		Method setOption = null;
+		try {
+			Class<?> options = Class.forName("java.net.StandardSocketOptions");
+			Class<?> socketOption = Class.forName("java.net.SocketOption");
+			option = options.getField("SO_REUSEPORT").get(null);
+			setOption = DatagramChannel.class.getMethod("setOption", socketOption, Object.class);
+			DatagramChannel probe = DatagramChannel.open();
+			try {
+				setOption.invoke(probe, option, Boolean.TRUE);
+			} finally {
+				probe.close();
+			}
+		} catch (Exception e) {
+			LOGGER.fine("SO_REUSEPORT is not supported on this platform: "+e);
+			option = null;
+			setOption = null;
+		}
+		SO_REUSEPORT = option;
+		SET_OPTION = setOption;
+	}
+
+	/**
+	 * Returns true if SO_REUSEPORT can be set on the running platform.
+	 *
+	 * @return true if SO_REUSEPORT is supported
+	 */
+	public static boolean isReusePortSupported() {
+		return SO_REUSEPORT != null;
+	}
+
+	/**
+	 * Instantiates a new connector bound to the specified address.
+	 *
+	 * @param address the address
+	 */
+	public ReusePortUDPConnector(InetSocketAddress address) {
+		super(address);
+	}
+
+	@Override
+	protected void bind(DatagramChannel channel, InetSocketAddress address) throws IOException {
+		if (!isReusePortSupported())
+			throw new IOException("SO_REUSEPORT is not supported on this platform");
+		try {
+			SET_OPTION.invoke(channel, SO_REUSEPORT, Boolean.TRUE);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Cannot set SO_REUSEPORT", e);
+			throw new IOException("Cannot set SO_REUSEPORT: "+e.getMessage());
+		}
+		super.bind(channel, address);
+	}
+}
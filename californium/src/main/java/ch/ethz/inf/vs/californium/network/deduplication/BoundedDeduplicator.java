@@ -0,0 +1,336 @@
+package ch.ethz.inf.vs.californium.network.deduplication;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.EmptyMessage;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.serialization.Serializer;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
+
+/**
+ * This deduplicator bounds the memory it uses. It keeps a record for each
+ * incoming message in the order of arrival. As soon as the exchange of a
+ * record has completed, the deduplicator compacts the record: It keeps only
+ * the serialized reply to the message and drops the reference to the
+ * exchange, so that the exchange and its messages can be garbage collected.
+ * A duplicate of a compacted message is answered with the reply bytes.
+ * <p>
+ * When the number of records exceeds MAX_DEDUPLICATOR_ENTRIES or the size of
+ * the records exceeds MAX_DEDUPLICATOR_BYTES, the deduplicator evicts the
+ * oldest records, even if their EXCHANGE_LIFECYCLE has not yet expired. A
+ * duplicate of an evicted message is processed again. The deduplicator
+ * periodically removes the records that are older than EXCHANGE_LIFECYCLE.
+ * <p>
+ * Since an early eviction breaks the guarantee that a request is executed
+ * only once, this deduplicator is not the default. Choose it with
+ * DEDUPLICATOR_BOUNDED and set MAX_DEDUPLICATOR_ENTRIES to at least the
+ * expected message rate times EXCHANGE_LIFECYCLE.
+ */
+public class BoundedDeduplicator implements Deduplicator {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(BoundedDeduplicator.class.getCanonicalName());
+
+	/** The estimated size of a record without the reply bytes */
+	public static final int RECORD_OVERHEAD = 128;
+
+	/** The reply of a message that has not been answered */
+	private static final byte[] NO_REPLY = new byte[0];
+
+	private final ConcurrentHashMap<KeyMID, Record> records;
+
+	/** The records in the order of their arrival */
+	private final ConcurrentLinkedQueue<Record> queue;
+
+	private final AtomicInteger count = new AtomicInteger();
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	private final int maxEntries;
+	private final long maxBytes;
+
+	private final Serializer serializer = new Serializer();
+
+	private NetworkConfig config;
+	private SweepAlgorithm algorithm;
+
+	private TimerService timer;
+
+	private volatile boolean started = false;
+
+	public BoundedDeduplicator(NetworkConfig config) {
+		this.config = config;
+		this.maxEntries = config.getInt(NetworkConfigDefaults.MAX_DEDUPLICATOR_ENTRIES);
+		this.maxBytes = config.getLong(NetworkConfigDefaults.MAX_DEDUPLICATOR_BYTES);
+		this.records = new ConcurrentHashMap<KeyMID, Record>();
+		this.queue = new ConcurrentLinkedQueue<Record>();
+		this.algorithm = new SweepAlgorithm();
+	}
+
+	public synchronized void start() {
+		started = true;
+		algorithm.schedule();
+	}
+
+	public synchronized void stop() {
+		started = false;
+		algorithm.cancel();
+	}
+
+	public synchronized void setTimer(TimerService timer) {
+		boolean restart = started;
+		stop();
+		this.timer = timer;
+		if (restart)
+			start();
+	}
+
+	/**
+	 * If the message with the specified {@link KeyMID} has already arrived
+	 * before, this method returns the corresponding exchange. If the record
+	 * of the message has already been compacted, this method returns the
+	 * specified exchange itself, so that the duplicate is ignored. If the
+	 * KeyMID has not yet arrived, this method returns null.
+	 */
+	public Exchange findPrevious(KeyMID key, Exchange exchange) {
+		Record record = new Record(key, exchange);
+		Record previous = records.putIfAbsent(key, record);
+		if (previous != null) {
+			Exchange prev = previous.exchange;
+			return prev != null ? prev : exchange;
+		}
+		queue.add(record);
+		count.incrementAndGet();
+		size.addAndGet(RECORD_OVERHEAD);
+		evict();
+		return null;
+	}
+
+	public Exchange find(KeyMID key) {
+		Record record = records.get(key);
+		if (record == null)
+			return null;
+		compact(record);
+		return record.exchange;
+	}
+
+	/**
+	 * Returns the reply to the message with the specified {@link KeyMID} if
+	 * its record has been compacted. The reply is empty if the message has
+	 * not been answered with a message that can be replayed.
+	 */
+	@Override
+	public byte[] findReply(KeyMID key) {
+		Record record = records.get(key);
+		if (record == null)
+			return null;
+		compact(record);
+		return record.reply;
+	}
+
+	public void clear() {
+		Record record;
+		while ((record = queue.poll()) != null)
+			remove(record);
+	}
+
+	/**
+	 * Gets the number of records.
+	 *
+	 * @return the number of records
+	 */
+	public int getSize() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the estimated number of bytes the records use.
+	 *
+	 * @return the size of the records in bytes
+	 */
+	public long getBytes() {
+		return size.get();
+	}
+
+	/**
+	 * Gets the number of records that have been evicted before their
+	 * lifecycle has expired.
+	 *
+	 * @return the number of evicted records
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/*
+	 * Evicts the oldest records until the number and size of all records are
+	 * within the limits.
+	 */
+	private void evict() {
+		while ((maxEntries > 0 && count.get() > maxEntries) || (maxBytes > 0 && size.get() > maxBytes)) {
+			Record oldest = queue.poll();
+			if (oldest == null) return;
+			if (remove(oldest)) {
+				LOGGER.finer("Deduplicator evicts "+oldest.key);
+				evicted.incrementAndGet();
+			}
+		}
+	}
+
+	private boolean remove(Record record) {
+		synchronized (record) {
+			if (record.removed || !records.remove(record.key, record))
+				return false;
+			record.removed = true;
+			count.decrementAndGet();
+			size.addAndGet(-record.getSize());
+			return true;
+		}
+	}
+
+	/*
+	 * Replaces the exchange of the specified record with the serialized reply
+	 * if the exchange has completed.
+	 */
+	private void compact(Record record) {
+		Exchange exchange = record.exchange;
+		if (exchange == null)
+			return;
+		Request request = exchange.getCurrentRequest();
+		boolean rejected = request != null && request.isRejected();
+		if (!exchange.isComplete() && !rejected)
+			return;
+
+		byte[] reply = getReply(record.key, exchange);
+		synchronized (record) {
+			if (record.exchange == null)
+				return;
+			record.reply = reply;
+			record.exchange = null;
+			if (!record.removed)
+				size.addAndGet(reply.length);
+		}
+		if (maxBytes > 0 && size.get() > maxBytes)
+			evict();
+	}
+
+	private byte[] getReply(KeyMID key, Exchange exchange) {
+		Request request = exchange.getCurrentRequest();
+		if (request == null || request.getMID() != key.getMID())
+			return NO_REPLY; // an older block of a blockwise transfer
+		Response response = exchange.getCurrentResponse();
+		if (response != null) {
+			byte[] bytes = response.getBytes();
+			if (bytes == null || (response.getType() == Type.ACK && response.getMID() != request.getMID()))
+				return NO_REPLY;
+			return bytes;
+		}
+		if (request.isRejected())
+			return serializer.serialize(EmptyMessage.newRST(request)).getBytes();
+		return NO_REPLY;
+	}
+
+	/**
+	 * The record of an incoming message. It holds the exchange until the
+	 * exchange has completed and the reply afterwards.
+	 */
+	private static class Record {
+
+		private final KeyMID key;
+		private final long timestamp;
+		private volatile Exchange exchange;
+		private volatile byte[] reply;
+		private boolean removed;
+
+		private Record(KeyMID key, Exchange exchange) {
+			this.key = key;
+			this.exchange = exchange;
+			this.timestamp = System.currentTimeMillis();
+		}
+
+		private int getSize() {
+			byte[] reply = this.reply;
+			return RECORD_OVERHEAD + (reply != null ? reply.length : 0);
+		}
+	}
+
+	/**
+	 * The sweep algorithm periodically removes the expired records and
+	 * compacts the records whose exchanges have completed.
+	 */
+	private class SweepAlgorithm implements Runnable {
+
+		private ScheduledFuture<?> future;
+
+		/**
+		 * This method wraps the method sweep() to catch any Exceptions that
+		 * might be thrown.
+		 */
+		@Override
+		public void run() {
+			try {
+				LOGGER.finest("Start sweep with "+count.get()+" records and "+size.get()+" bytes");
+				sweep();
+
+			} catch (Throwable t) {
+				LOGGER.log(Level.WARNING, "Exception in sweep algorithm", t);
+
+			} finally {
+				try {
+					schedule();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while scheduling sweep algorithm", t);
+				}
+			}
+		}
+
+		/**
+		 * Removes the records from the head of the queue until the first that
+		 * has not yet expired and compacts the remaining ones.
+		 */
+		private void sweep() {
+			long lifecycle = config.getSnapshot().getExchangeLifecycle();
+			long oldestAllowed = System.currentTimeMillis() - lifecycle;
+
+			Record oldest;
+			while ((oldest = queue.peek()) != null && oldest.timestamp < oldestAllowed) {
+				if (queue.remove(oldest)) {
+					LOGGER.finer("Sweep removes "+oldest.key);
+					remove(oldest);
+				}
+			}
+			for (Record record:queue)
+				compact(record);
+		}
+
+		/**
+		 * Reschedule this task again.
+		 */
+		private synchronized void schedule() {
+			if (!started) return;
+			long period = config.getSnapshot().getMarkAndSweepInterval();
+			future = timer.schedule(this, period, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Cancel the schedule for this algorithm.
+		 */
+		private synchronized void cancel() {
+			if (future != null)
+				future.cancel(true);
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package ch.ethz.inf.vs.californium.network.deduplication;
 
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -11,6 +10,7 @@ import ch.ethz.inf.vs.californium.network.Exchange;
 import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
 
 /**
  * This deduplicator is probably inferior to the {@link SweepDeduplicator}. This
@@ -26,7 +26,7 @@ public class CropRotation implements Deduplicator {
 
 	private final static Logger LOGGER = Logger.getLogger(CropRotation.class.getCanonicalName());
 	
-	private ScheduledExecutorService executor;
+	private TimerService timer;
 	
 	private ExchangeMap[] maps;
 	private int first;
@@ -62,10 +62,10 @@ public class CropRotation implements Deduplicator {
 	}
 
 	@Override
-	public synchronized void setExecutor(ScheduledExecutorService executor) {
+	public synchronized void setTimer(TimerService timer) {
 		started = false;
 		rotation.cancel();
-		this.executor = executor;
+		this.timer = timer;
 		if (started)
 			start();
 	}
@@ -92,6 +92,11 @@ public class CropRotation implements Deduplicator {
 		return prev;
 	}
 
+	@Override
+	public byte[] findReply(KeyMID key) {
+		return null;
+	}
+
 	@Override
 	public void clear() {
 		maps[0].clear();
@@ -106,7 +111,6 @@ public class CropRotation implements Deduplicator {
 		public void run() {
 			try {
 				rotation();
-				System.gc();
 				
 			} catch (Throwable t) {
 				LOGGER.log(Level.WARNING, "Exception in Crop-Rotation algorithm", t);
@@ -129,7 +133,7 @@ public class CropRotation implements Deduplicator {
 		
 		private void schedule() {
 			LOGGER.fine("CR schedules in "+period+" ms");
-			future = executor.schedule(this, period, TimeUnit.MILLISECONDS);
+			future = timer.schedule(this, period, TimeUnit.MILLISECONDS);
 		}
 		
 		private void cancel() {
@@ -1,9 +1,8 @@
 package ch.ethz.inf.vs.californium.network.deduplication;
 
-import java.util.concurrent.ScheduledExecutorService;
-
 import ch.ethz.inf.vs.californium.network.Exchange;
 import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
 
 /**
  * The deduplicator has to detect duplicates. Notice that CONs and NONs can be
@@ -22,11 +21,11 @@ public interface Deduplicator {
 	public void stop();
 	
 	/**
-	 * Set the specified executor. This method might call stop(), replace the
-	 * executor and then start() again.
-	 * @param executor the executor
+	 * Set the specified timer service. This method might call stop(), replace
+	 * the timer service and then start() again.
+	 * @param timer the timer service
 	 */
-	public void setExecutor(ScheduledExecutorService executor);
+	public void setTimer(TimerService timer);
 	
 	/**
 	 * Checks if the specified key is already associated with a previous
@@ -50,6 +49,17 @@ public interface Deduplicator {
 	
 	public Exchange find(KeyMID key);
 	
+	/**
+	 * Returns the serialized reply to the message with the specified key if
+	 * the deduplicator no longer holds its exchange but only the reply. The
+	 * reply is empty if there is nothing to send back for a duplicate. This
+	 * method returns null if the deduplicator holds no reply for the key.
+	 * 
+	 * @param key the key
+	 * @return the reply, an empty array, or <tt>null</tt>
+	 */
+	public byte[] findReply(KeyMID key);
+	
 	/**
 	 * Clears the state of this deduplicator.
 	 */
@@ -1,9 +1,8 @@
 package ch.ethz.inf.vs.californium.network.deduplication;
 
-import java.util.concurrent.ScheduledExecutorService;
-
 import ch.ethz.inf.vs.californium.network.Exchange;
 import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
 
 /**
  * This is a dummy implementation that does no deduplication. If a matcher
@@ -19,7 +18,7 @@ public class NoDeduplicator implements Deduplicator {
 	public void stop() { }
 
 	@Override
-	public void setExecutor(ScheduledExecutorService executor) { }
+	public void setTimer(TimerService timer) { }
 
 	@Override
 	public Exchange findPrevious(KeyMID key, Exchange exchange) {
@@ -31,6 +30,11 @@ public class NoDeduplicator implements Deduplicator {
 		return null;
 	}
 
+	@Override
+	public byte[] findReply(KeyMID key) {
+		return null;
+	}
+
 	@Override
 	public void clear() { }
 
@@ -2,7 +2,6 @@ package ch.ethz.inf.vs.californium.network.deduplication;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -11,7 +10,7 @@ import java.util.logging.Logger;
 import ch.ethz.inf.vs.californium.network.Exchange;
 import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
-import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
 
 /**
  * This deduplicator uses a hash map to store incoming messages. The
@@ -29,7 +28,7 @@ public class SweepDeduplicator implements Deduplicator {
 	private NetworkConfig config;
 	private SweepAlgorithm algorithm;
 	
-	private ScheduledExecutorService executor;
+	private TimerService timer;
 	
 	private boolean started = false;
 	
@@ -49,9 +48,9 @@ public class SweepDeduplicator implements Deduplicator {
 		algorithm.cancel();
 	}
 	
-	public void setExecutor(ScheduledExecutorService executor) {
+	public void setTimer(TimerService timer) {
 		stop();
-		this.executor = executor;
+		this.timer = timer;
 		if (started)
 			start();
 	}
@@ -71,6 +70,10 @@ public class SweepDeduplicator implements Deduplicator {
 		return incommingMessages.get(key);
 	}
 	
+	public byte[] findReply(KeyMID key) {
+		return null;
+	}
+	
 	public void clear() {
 		incommingMessages.clear();
 	}
@@ -109,7 +112,7 @@ public class SweepDeduplicator implements Deduplicator {
 		 * Iterate through all entries and remove the obsolete ones.
 		 */
 		private void sweep() {
-			int lifecycle = config.getInt(NetworkConfigDefaults.EXCHANGE_LIFECYCLE);
+			long lifecycle = config.getSnapshot().getExchangeLifecycle();
 			long oldestAllowed = System.currentTimeMillis() - lifecycle;
 			
 			// Notice that the guarantees from the ConcurrentHashMap guarantee
@@ -131,8 +134,8 @@ public class SweepDeduplicator implements Deduplicator {
 		 * Reschedule this task again.
 		 */
 		private void schedule() {
-			long period = config.getLong(NetworkConfigDefaults.MARK_AND_SWEEP_INTERVAL);
-			future = executor.schedule(this, period, TimeUnit.MILLISECONDS);
+			long period = config.getSnapshot().getMarkAndSweepInterval();
+			future = timer.schedule(this, period, TimeUnit.MILLISECONDS);
 		}
 		
 		/**
@@ -0,0 +1,239 @@
+package ch.ethz.inf.vs.californium.network.deduplication;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
+import ch.ethz.inf.vs.californium.network.LongHashMap;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
+
+/**
+ * This deduplicator generalizes the {@link CropRotation} to a configurable
+ * number of time buckets. Each bucket covers EXCHANGE_LIFECYCLE / (n-1)
+ * milliseconds. A new message is only added to the current bucket but looked
+ * up in all buckets. When the time of the current bucket is over, the
+ * deduplicator clears the oldest bucket and makes it the current one.
+ * Therefore, a message is remembered for at least one lifecycle and at most
+ * n / (n-1) lifecycles.
+ * <p>
+ * The buckets are {@link LongHashMap}s that are pre-sized to TIME_BUCKET_SIZE
+ * entries and reused after they have been cleared, so that a rotation neither
+ * allocates new tables nor leaves garbage behind. Messages from IPv6 peers,
+ * whose key does not fit into a long, are kept in a separate hash map.
+ */
+public class TimeBucketDeduplicator implements Deduplicator {
+
+	private final static Logger LOGGER = Logger.getLogger(TimeBucketDeduplicator.class.getCanonicalName());
+
+	private final Bucket[] buckets;
+
+	/** The index of the current bucket */
+	private int current;
+
+	/** Rotations exclude lookups so that no message is added to an old bucket */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private NetworkConfig config;
+	private Rotation rotation;
+
+	private TimerService timer;
+
+	private volatile boolean started;
+
+	public TimeBucketDeduplicator(NetworkConfig config) {
+		this.config = config;
+		int count = Math.max(2, config.getInt(NetworkConfigDefaults.TIME_BUCKET_COUNT));
+		int size = config.getInt(NetworkConfigDefaults.TIME_BUCKET_SIZE);
+		this.buckets = new Bucket[count];
+		for (int i=0;i<count;i++)
+			buckets[i] = new Bucket(size);
+		this.rotation = new Rotation();
+	}
+
+	@Override
+	public synchronized void start() {
+		started = true;
+		rotation.schedule();
+	}
+
+	@Override
+	public synchronized void stop() {
+		started = false;
+		rotation.cancel();
+	}
+
+	@Override
+	public synchronized void setTimer(TimerService timer) {
+		boolean restart = started;
+		stop();
+		this.timer = timer;
+		if (restart)
+			start();
+	}
+
+	@Override
+	public Exchange findPrevious(KeyMID key, Exchange exchange) {
+		long packed = pack(key);
+		lock.readLock().lock();
+		try {
+			int n = buckets.length;
+			for (int i=1;i<n;i++) {
+				Exchange prev = buckets[(current + n - i) % n].get(key, packed);
+				if (prev != null)
+					return prev;
+			}
+			return buckets[current].putIfAbsent(key, packed, exchange);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Exchange find(KeyMID key) {
+		long packed = pack(key);
+		lock.readLock().lock();
+		try {
+			int n = buckets.length;
+			for (int i=0;i<n;i++) {
+				Exchange prev = buckets[(current + n - i) % n].get(key, packed);
+				if (prev != null)
+					return prev;
+			}
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public byte[] findReply(KeyMID key) {
+		return null;
+	}
+
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			for (Bucket bucket:buckets)
+				bucket.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of messages in all buckets.
+	 *
+	 * @return the number of messages
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Bucket bucket:buckets)
+			size += bucket.size();
+		return size;
+	}
+
+	/*
+	 * Packs the IPv4 address, port and MID into a long. Returns -1 for
+	 * other addresses, which never collides with a packed key because the
+	 * port is at most 16 bits.
+	 */
+	private static long pack(KeyMID key) {
+		byte[] address = key.getAddress();
+		if (address.length != 4)
+			return -1;
+		long ip = (address[0] & 0xFFL) << 24 | (address[1] & 0xFFL) << 16 | (address[2] & 0xFFL) << 8 | address[3] & 0xFFL;
+		return ip << 32 | (long) (key.getPort() & 0xFFFF) << 16 | key.getMID() & 0xFFFF;
+	}
+
+	/*
+	 * A bucket holds the messages that have arrived within one time slice.
+	 */
+	private static class Bucket {
+
+		private final LongHashMap<Exchange> ipv4;
+		private final ConcurrentHashMap<KeyMID, Exchange> others;
+
+		private Bucket(int size) {
+			this.ipv4 = new LongHashMap<Exchange>(size);
+			this.others = new ConcurrentHashMap<KeyMID, Exchange>();
+		}
+
+		private Exchange get(KeyMID key, long packed) {
+			if (packed != -1)
+				return ipv4.get(packed);
+			else return others.get(key);
+		}
+
+		private Exchange putIfAbsent(KeyMID key, long packed, Exchange exchange) {
+			if (packed != -1)
+				return ipv4.putIfAbsent(packed, exchange);
+			else return others.putIfAbsent(key, exchange);
+		}
+
+		private int size() {
+			return ipv4.size() + others.size();
+		}
+
+		private void clear() {
+			ipv4.clear();
+			others.clear();
+		}
+	}
+
+	private class Rotation implements Runnable {
+
+		private ScheduledFuture<?> future;
+
+		public void run() {
+			try {
+				rotation();
+
+			} catch (Throwable t) {
+				LOGGER.log(Level.WARNING, "Exception in time bucket rotation", t);
+
+			} finally {
+				try {
+					schedule();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while scheduling time bucket rotation", t);
+				}
+			}
+		}
+
+		/*
+		 * Clears the oldest bucket and makes it the current one.
+		 */
+		private void rotation() {
+			lock.writeLock().lock();
+			try {
+				int next = (current + 1) % buckets.length;
+				buckets[next].clear();
+				current = next;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private synchronized void schedule() {
+			if (!started) return;
+			long lifecycle = config.getSnapshot().getExchangeLifecycle();
+			long period = Math.max(1, lifecycle / (buckets.length - 1));
+			LOGGER.fine("Time bucket rotation in "+period+" ms");
+			future = timer.schedule(this, period, TimeUnit.MILLISECONDS);
+		}
+
+		private synchronized void cancel() {
+			if (future != null)
+				future.cancel(true);
+		}
+	}
+}
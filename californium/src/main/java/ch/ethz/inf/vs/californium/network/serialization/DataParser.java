@@ -1,22 +1,21 @@
 package ch.ethz.inf.vs.californium.network.serialization;
 
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.CODE_BITS;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.EMPTY_CODE;
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.MESSAGE_ID_BITS;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.PAYLOAD_MARKER;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.REQUEST_CODE_LOWER_BOUND;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.REQUEST_CODE_UPPER_BOUNT;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.RESPONSE_CODE_LOWER_BOUND;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.RESPONSE_CODE_UPPER_BOUND;
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.TOKEN_LENGTH_BITS;
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.TYPE_BITS;
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.VERSION_BITS;
+
+import java.util.Arrays;
+
 import ch.ethz.inf.vs.californium.coap.CoAP;
 import ch.ethz.inf.vs.californium.coap.CoAP.Code;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
 import ch.ethz.inf.vs.californium.coap.EmptyMessage;
 import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Message.ContentDecoder;
 import ch.ethz.inf.vs.californium.coap.Option;
 import ch.ethz.inf.vs.californium.coap.OptionSet;
 import ch.ethz.inf.vs.californium.coap.Request;
@@ -24,10 +23,23 @@ import ch.ethz.inf.vs.californium.coap.Response;
 
 /**
  * The DataParser parses incoming byte arrays to messages.
+ * <p>
+ * The parser decodes the 4-byte header and the token right away but only
+ * scans the option headers to validate the format and to find the payload.
+ * In lazy mode, the options and the payload remain in the byte array and are
+ * decoded when {@link Message#getOptions()} or {@link Message#getPayload()}
+ * is called for the first time. The
+ * {@link ch.ethz.inf.vs.californium.network.Matcher} only needs the MID, token,
+ * type and code and thus can route ACKs, RSTs, duplicates and responses
+ * without decoding any option. The byte array must not be modified after it
+ * has been handed to a lazy parser.
  */
 public class DataParser {
 
-	private DatagramReader reader;
+	private static final byte[] EMPTY = new byte[0];
+
+	private byte[] bytes;
+	private boolean lazy;
 	
 	private int version;
 	private int type;
@@ -36,16 +48,40 @@ public class DataParser {
 	private int mid;
 	
 	public DataParser(byte[] bytes) {
+		this(bytes, false);
+	}
+	
+	/**
+	 * Instantiates a new parser for the specified bytes.
+	 * 
+	 * @param bytes the bytes
+	 * @param lazy true if options and payload should be decoded on demand
+	 */
+	public DataParser(byte[] bytes, boolean lazy) {
+		this.lazy = lazy;
 		setBytes(bytes);
 	}
 	
 	public void setBytes(byte[] bytes) {
-		this.reader = new DatagramReader(bytes);
-		this.version = reader.read(VERSION_BITS);
-		this.type = reader.read(TYPE_BITS);
-		this.tokenlength = reader.read(TOKEN_LENGTH_BITS);
-		this.code = reader.read(CODE_BITS);
-		this.mid = reader.read(MESSAGE_ID_BITS);
+		this.bytes = bytes;
+		int header = getByte(0);
+		this.version = header >> 6;
+		this.type = header >> 4 & 0x3;
+		this.tokenlength = header & 0xF;
+		this.code = getByte(1);
+		this.mid = getByte(2) << 8 | getByte(3);
+	}
+	
+	/*
+	 * Returns the unsigned byte at the specified index. Missing bytes of a
+	 * truncated header read as 0xFF.
+	 */
+	private int getByte(int index) {
+		return index < bytes.length ? bytes[index] & 0xFF : 0xFF;
+	}
+	
+	public boolean isLazy() {
+		return lazy;
 	}
 	
 	public boolean isWellFormed() {
@@ -101,92 +137,215 @@ public class DataParser {
 	
 	private void parseMessage(Message message) {
 		message.setType(Type.valueOf(type));
-		message.setMID(mid);		
+		message.setMID(mid);
 		
+		int offset = 4 + tokenlength;
+		if (offset > bytes.length)
+			throw new IllegalStateException("Token exceeds the message");
 		if (tokenlength>0) {
-			message.setToken(reader.readBytes(tokenlength));
+			message.setToken(Arrays.copyOfRange(bytes, 4, offset));
 		} else {
 			message.setToken(new byte[0]);
 		}
 		
-		int currentOption = 0;
-		byte nextByte = 0;
-		while(reader.bytesAvailable()) {
-			nextByte = reader.readNextByte();
-			if (nextByte != PAYLOAD_MARKER) {
-				// the first 4 bits of the byte represent the option delta
-				int optionDeltaNibble = (0xF0 & nextByte) >> 4;
-				currentOption += readOptionValueFromNibble(optionDeltaNibble);
-				
-				// the second 4 bits represent the option length
-				int optionLengthNibble = (0x0F & nextByte);
-				int optionLength = readOptionValueFromNibble(optionLengthNibble);
-				
-				// read option
-				Option option = new Option(currentOption);
-				option.setValue(reader.readBytes(optionLength));
-				
-				// add option to message
-				addOptionToSet(option, message.getOptions());
-			} else break;
-		}
-		
-		if (nextByte == PAYLOAD_MARKER) {
-			// the presence of a marker followed by a zero-length payload must be processed as a message format error
-			if (!reader.bytesAvailable())
-				throw new IllegalStateException();
-			
-			// get payload
-			message.setPayload(reader.readBytesLeft());
+		LazyContent content = new LazyContent(bytes, offset);
+		if (lazy) {
+			message.setContentDecoder(content);
 		} else {
-			message.setPayload(new byte[0]); // or null?
-		}
-	}
-	
-	// TODO: Can we optimize this a little by not creating new option objects for known options
-	private void addOptionToSet(Option option, OptionSet optionSet) {
-		switch (option.getNumber()) {
-			case CoAP.OptionRegistry.IF_MATCH:       optionSet.addIfMatch(option.getValue()); break;
-			case CoAP.OptionRegistry.URI_HOST:       optionSet.setURIHost(option.getStringValue()); break;
-			case CoAP.OptionRegistry.ETAG:           optionSet.addETag(option.getValue()); break;
-			case CoAP.OptionRegistry.IF_NONE_MATCH:  optionSet.setIfNoneMatch(true); break;
-			case CoAP.OptionRegistry.URI_PORT:       optionSet.setURIPort(option.getIntegerValue()); break;
-			case CoAP.OptionRegistry.LOCATION_PATH:  optionSet.addLocationPath(option.getStringValue()); break;
-			case CoAP.OptionRegistry.URI_PATH:       optionSet.addURIPath(option.getStringValue()); break;
-			case CoAP.OptionRegistry.CONTENT_FORMAT: optionSet.setContentFormat(option.getIntegerValue()); break;
-			case CoAP.OptionRegistry.MAX_AGE:        optionSet.setMaxAge(option.getLongValue()); break;
-			case CoAP.OptionRegistry.URI_QUERY:      optionSet.addURIQuery(option.getStringValue()); break;
-			case CoAP.OptionRegistry.ACCEPT:         optionSet.setAccept(option.getIntegerValue()); break;
-			case CoAP.OptionRegistry.LOCATION_QUERY: optionSet.addLocationQuery(option.getStringValue()); break;
-			case CoAP.OptionRegistry.PROXY_URI:      optionSet.setProxyURI(option.getStringValue()); break;
-			case CoAP.OptionRegistry.PROXY_SCHEME:   optionSet.setProxyScheme(option.getStringValue()); break;
-			case CoAP.OptionRegistry.BLOCK1:         optionSet.setBlock1(option.getValue()); break;
-			case CoAP.OptionRegistry.BLOCK2:         optionSet.setBlock2(option.getValue()); break;
-			case CoAP.OptionRegistry.OBSERVE:        optionSet.setObserve(option.getIntegerValue()); break;
-			default: optionSet.addOption(option);
+			message.setOptions(content.decodeOptions());
+			message.setPayload(content.decodePayload());
 		}
 	}
 	
 	/**
-	 * Calculates the value used in the extended option fields as specified in
-	 * draft-ietf-core-coap-14, section 3.1
-	 * 
-	 * @param nibble
-	 *            the 4-bit option header value.
-	 * @param datagram
-	 *            the datagram.
-	 * @return the value calculated from the nibble and the extended option
-	 *         value.
+	 * The options and payload of a message that remain in the received byte
+	 * array until they are decoded. The constructor walks the option headers
+	 * once without creating any objects to validate the format, to remember
+	 * the option numbers and to find the payload.
 	 */
-	private int readOptionValueFromNibble(int nibble) {
-		if (nibble <= 12) {
-			return nibble;
-		} else if (nibble == 13) {
-			return reader.read(8) + 13;
-		} else if (nibble == 14) {
-			return reader.read(16) + 269;
-		} else {
-			throw new IllegalArgumentException("Unsupported option delta "+nibble);
+	private static class LazyContent implements ContentDecoder {
+		
+		private final byte[] bytes;
+		private final int optionsOffset;
+		private int payloadOffset;
+		
+		/** The bit i is set if there is an option with number i < 64 */
+		private long numbers;
+		
+		/** True if there is an option with a number of 64 or greater */
+		private boolean highNumbers;
+		
+		private LazyContent(byte[] bytes, int offset) {
+			this.bytes = bytes;
+			this.optionsOffset = offset;
+			this.payloadOffset = bytes.length;
+			
+			int currentOption = 0;
+			while (offset < bytes.length) {
+				byte nextByte = bytes[offset];
+				if (nextByte == PAYLOAD_MARKER) {
+					// the presence of a marker followed by a zero-length payload must be processed as a message format error
+					if (offset + 1 == bytes.length)
+						throw new IllegalStateException();
+					payloadOffset = offset + 1;
+					break;
+				}
+				offset = skipOptionHeader(offset);
+				currentOption += optionDelta;
+				if (currentOption < 64)
+					numbers |= 1L << currentOption;
+				else
+					highNumbers = true;
+				offset += optionLength;
+				if (offset > bytes.length)
+					throw new IllegalStateException("Option exceeds the message");
+			}
+		}
+		
+		/* The delta and length of the option read by skipOptionHeader() */
+		private int optionDelta;
+		private int optionLength;
+		
+		/*
+		 * Reads the option header at the specified offset and returns the
+		 * offset of the option value.
+		 */
+		private int skipOptionHeader(int offset) {
+			int nextByte = bytes[offset++] & 0xFF;
+			
+			// the first 4 bits of the byte represent the option delta
+			int optionDeltaNibble = nextByte >> 4;
+			optionDelta = readOptionValueFromNibble(optionDeltaNibble, offset);
+			offset += getExtendedLength(optionDeltaNibble);
+			
+			// the second 4 bits represent the option length
+			int optionLengthNibble = nextByte & 0x0F;
+			optionLength = readOptionValueFromNibble(optionLengthNibble, offset);
+			offset += getExtendedLength(optionLengthNibble);
+			return offset;
+		}
+		
+		@Override
+		public synchronized boolean hasOption(int number) {
+			if (number < 64)
+				return (numbers & 1L << number) != 0;
+			if (!highNumbers)
+				return false;
+			int offset = optionsOffset;
+			int currentOption = 0;
+			while (offset < payloadOffset && bytes[offset] != PAYLOAD_MARKER) {
+				offset = skipOptionHeader(offset);
+				currentOption += optionDelta;
+				if (currentOption == number)
+					return true;
+				offset += optionLength;
+			}
+			return false;
+		}
+		
+		@Override
+		public synchronized OptionSet decodeOptions() {
+			OptionSet optionSet = new OptionSet();
+			int offset = optionsOffset;
+			int currentOption = 0;
+			while (offset < payloadOffset && bytes[offset] != PAYLOAD_MARKER) {
+				offset = skipOptionHeader(offset);
+				currentOption += optionDelta;
+				addOptionToSet(currentOption, offset, optionLength, optionSet);
+				offset += optionLength;
+			}
+			return optionSet;
+		}
+		
+		@Override
+		public byte[] decodePayload() {
+			if (payloadOffset == bytes.length)
+				return EMPTY; // or null?
+			return Arrays.copyOfRange(bytes, payloadOffset, bytes.length);
+		}
+		
+		/*
+		 * Adds the option to the set. Known options are decoded directly from
+		 * the byte array without creating an Option object.
+		 */
+		private void addOptionToSet(int number, int offset, int length, OptionSet optionSet) {
+			switch (number) {
+				case CoAP.OptionRegistry.IF_MATCH:       optionSet.addIfMatch(getBytes(offset, length)); break;
+				case CoAP.OptionRegistry.URI_HOST:       optionSet.setURIHost(getString(offset, length)); break;
+				case CoAP.OptionRegistry.ETAG:           optionSet.addETag(getBytes(offset, length)); break;
+				case CoAP.OptionRegistry.IF_NONE_MATCH:  optionSet.setIfNoneMatch(true); break;
+				case CoAP.OptionRegistry.URI_PORT:       optionSet.setURIPort((int) getLong(offset, length)); break;
+				case CoAP.OptionRegistry.LOCATION_PATH:  optionSet.addLocationPath(getString(offset, length)); break;
+				case CoAP.OptionRegistry.URI_PATH:       optionSet.addURIPath(getString(offset, length)); break;
+				case CoAP.OptionRegistry.CONTENT_FORMAT: optionSet.setContentFormat((int) getLong(offset, length)); break;
+				case CoAP.OptionRegistry.MAX_AGE:        optionSet.setMaxAge(getLong(offset, length)); break;
+				case CoAP.OptionRegistry.URI_QUERY:      optionSet.addURIQuery(getString(offset, length)); break;
+				case CoAP.OptionRegistry.ACCEPT:         optionSet.setAccept((int) getLong(offset, length)); break;
+				case CoAP.OptionRegistry.LOCATION_QUERY: optionSet.addLocationQuery(getString(offset, length)); break;
+				case CoAP.OptionRegistry.PROXY_URI:      optionSet.setProxyURI(getString(offset, length)); break;
+				case CoAP.OptionRegistry.PROXY_SCHEME:   optionSet.setProxyScheme(getString(offset, length)); break;
+				case CoAP.OptionRegistry.BLOCK1:         optionSet.setBlock1(getBytes(offset, length)); break;
+				case CoAP.OptionRegistry.BLOCK2:         optionSet.setBlock2(getBytes(offset, length)); break;
+				case CoAP.OptionRegistry.OBSERVE:        optionSet.setObserve((int) getLong(offset, length)); break;
+				case CoAP.OptionRegistry.SIZE1:          optionSet.setSize1((int) getLong(offset, length)); break;
+				default: optionSet.addOption(new Option(number, getBytes(offset, length)));
+			}
+		}
+		
+		private byte[] getBytes(int offset, int length) {
+			return Arrays.copyOfRange(bytes, offset, offset + length);
+		}
+		
+		private String getString(int offset, int length) {
+			return new String(bytes, offset, length, CoAP.UTF8_CHARSET);
+		}
+		
+		/*
+		 * Decodes an unsigned integer in network byte order.
+		 */
+		private long getLong(int offset, int length) {
+			long value = 0;
+			for (int i=0;i<length;i++)
+				value = value << 8 | (bytes[offset + i] & 0xFF);
+			return value;
+		}
+		
+		/**
+		 * Calculates the value used in the extended option fields as specified in
+		 * draft-ietf-core-coap-14, section 3.1
+		 * 
+		 * @param nibble
+		 *            the 4-bit option header value.
+		 * @param offset
+		 *            the offset of the extended option field.
+		 * @return the value calculated from the nibble and the extended option
+		 *         value.
+		 */
+		private int readOptionValueFromNibble(int nibble, int offset) {
+			if (nibble <= 12) {
+				return nibble;
+			} else if (offset + getExtendedLength(nibble) > bytes.length) {
+				throw new IllegalStateException("Option header exceeds the message");
+			} else if (nibble == 13) {
+				return (bytes[offset] & 0xFF) + 13;
+			} else {
+				return ((bytes[offset] & 0xFF) << 8 | (bytes[offset + 1] & 0xFF)) + 269;
+			}
+		}
+		
+		/*
+		 * Returns the number of bytes of the extended option field.
+		 */
+		private static int getExtendedLength(int nibble) {
+			if (nibble <= 12) {
+				return 0;
+			} else if (nibble == 13) {
+				return 1;
+			} else if (nibble == 14) {
+				return 2;
+			} else {
+				throw new IllegalArgumentException("Unsupported option delta "+nibble);
+			}
 		}
 	}
 }
@@ -1,108 +1,385 @@
 package ch.ethz.inf.vs.californium.network.serialization;
 
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.CODE_BITS;
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.MESSAGE_ID_BITS;
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.OPTION_DELTA_BITS;
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.OPTION_LENGTH_BITS;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.PAYLOAD_MARKER;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.TOKEN_LENGTH_BITS;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.TYPE_BITS;
 import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.VERSION;
-import static ch.ethz.inf.vs.californium.coap.CoAP.MessageFormat.VERSION_BITS;
 
+import java.util.Arrays;
 import java.util.List;
 
+import ch.ethz.inf.vs.californium.coap.BlockOption;
 import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.OptionRegistry;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.coap.Response.SharedContent;
 
 /**
  * The DataSerialized serializes outgoing messages to byte arrays.
+ * <p>
+ * The serializer walks the message twice: The first pass only computes the
+ * exact size of the message, the second pass writes the header, token,
+ * options and payload byte by byte into an array of exactly that size. The
+ * options are written in the order of their numbers directly from the fields
+ * of the {@link OptionSet} without creating {@link Option} objects. A
+ * serializer is not thread-safe but can be reused for many messages.
+ * <p>
+ * Responses that share their options and payload with other responses (see
+ * {@link Response#createSharedResponse(Response)}) only encode them once and
+ * then copy the encoded content behind their own header and token.
  */
 // TODO: Should we call this "Encoder/Decoder"?
 public class DataSerializer {
-	
-	private DatagramWriter writer;
-	
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/** The target array or null while computing the size */
+	private byte[] bytes;
+
+	/** The current position in the target array */
+	private int position;
+
+	/** The number of the previously written option */
+	private int lastOptionNumber;
+
+	/** The sorted options without a dedicated field in the option set */
+	private Option[] others;
+
+	/** The index of the next other option to write */
+	private int othersIndex;
+
 	public byte[] serializeRequest(Request request) {
-		writer = new DatagramWriter();
 		Code code = request.getCode();
-		serializeMessage(request, code == null ? 0 : code.value);
-		return writer.toByteArray();
+		return serializeMessage(request, code == null ? 0 : code.value);
 	}
-	
+
 	public byte[] serializeResponse(Response response) {
-		writer = new DatagramWriter();
-		serializeMessage(response, response.getCode().value);
-		return writer.toByteArray();
+		SharedContent shared = response.getSharedContent();
+		if (shared != null && shared.isContentOf(response)) {
+			byte[] content = shared.getBytes();
+			if (content == null) {
+				content = serializeContent(response);
+				shared.setBytes(content);
+			}
+			return serializeMessage(response, response.getCode().value, content);
+		}
+		return serializeMessage(response, response.getCode().value);
 	}
-	
+
 	public byte[] serializeEmptyMessage(Message message) {
-		writer = new DatagramWriter();
-		serializeMessage(message, 0);
-		return writer.toByteArray();
+		return serializeMessage(message, 0);
+	}
+
+	private byte[] serializeMessage(Message message, int code) {
+		return serializeMessage(message, code, null);
 	}
-	
-	private void serializeMessage(Message message, int code) {
+
+	/*
+	 * Serializes the message. If the encoded options and payload are given,
+	 * they are copied behind the token instead of encoding them again.
+	 */
+	private byte[] serializeMessage(Message message, int code, byte[] content) {
 		if (message.getToken() == null)
 			throw new NullPointerException("No Token has been set, not even an empty byte[0]");
-		writer.write(VERSION, VERSION_BITS);
-		writer.write(message.getType().value, TYPE_BITS);
-		writer.write(message.getToken().length, TOKEN_LENGTH_BITS);
-		writer.write(code, CODE_BITS);
-		writer.write(message.getMID(), MESSAGE_ID_BITS);
-		writer.writeBytes(message.getToken());
-		
-		List<Option> options = message.getOptions().asSortedList(); // already sorted
-		int lastOptionNumber = 0;
-		for (Option option:options) {
-			
-			// write 4-bit option delta
-			int optionDelta = option.getNumber() - lastOptionNumber;
-			int optionDeltaNibble = getOptionNibble(optionDelta);
-			writer.write(optionDeltaNibble, OPTION_DELTA_BITS);
-			
-			// write 4-bit option length
-			int optionLength = option.getLength();
-			int optionLengthNibble = getOptionNibble(optionLength);
-			writer.write(optionLengthNibble, OPTION_LENGTH_BITS);
-			
-			// write extended option delta field (0 - 2 bytes)
-			if (optionDeltaNibble == 13) {
-				writer.write(optionDelta - 13, 8);
-			} else if (optionDeltaNibble == 14) {
-				writer.write(optionDelta - 269, 16);
-			}
-			
-			// write extended option length field (0 - 2 bytes)
-			if (optionLengthNibble == 13) {
-				writer.write(optionLength - 13, 8);
-			} else if (optionLengthNibble == 14) {
-				writer.write(optionLength - 269, 16);
-			}
+		try {
+			// first pass: compute size
+			bytes = null;
+			writeMessage(message, code, content);
+
+			// second pass: write
+			bytes = new byte[position];
+			writeMessage(message, code, content);
+			return bytes;
+		} finally {
+			bytes = null;
+			others = null;
+		}
+	}
 
-			// write option value
-			writer.writeBytes(option.getValue());
+	/*
+	 * Encodes only the options and payload of the message.
+	 */
+	private byte[] serializeContent(Message message) {
+		try {
+			bytes = null;
+			position = 0;
+			writeContent(message);
 
-			// update last option number
-			lastOptionNumber = option.getNumber();
+			bytes = new byte[position];
+			position = 0;
+			writeContent(message);
+			return bytes;
+		} finally {
+			bytes = null;
+			others = null;
 		}
-		
+	}
+
+	private void writeMessage(Message message, int code, byte[] content) {
+		byte[] token = message.getToken();
+		if (token.length >= 1 << TOKEN_LENGTH_BITS)
+			throw new IllegalArgumentException("Token length must be between 0 and 8 inclusive but was "+token.length);
+
+		position = 0;
+		writeByte(VERSION << (TYPE_BITS + TOKEN_LENGTH_BITS) | message.getType().value << TOKEN_LENGTH_BITS | token.length);
+		writeByte(code);
+		writeByte(message.getMID() >> 8);
+		writeByte(message.getMID());
+		writeBytes(token);
+
+		if (content != null)
+			writeBytes(content);
+		else
+			writeContent(message);
+	}
+
+	private void writeContent(Message message) {
+		writeOptions(message.getOptions());
+
 		byte[] payload = message.getPayload();
 		if (payload != null && payload.length > 0) {
 			// if payload is present and of non-zero length, it is prefixed by
 			// an one-byte Payload Marker (0xFF) which indicates the end of
 			// options and the start of the payload
-			writer.writeByte(PAYLOAD_MARKER);
-			writer.writeBytes(payload);
+			writeByte(PAYLOAD_MARKER);
+			writeBytes(payload);
 		}
 	}
-	
+
+	/*
+	 * Writes the options in the order of their numbers. Options without a
+	 * dedicated field are merged in and follow the dedicated options with the
+	 * same number, as in OptionSet.asSortedList().
+	 */
+	private void writeOptions(OptionSet options) {
+		lastOptionNumber = 0;
+		othersIndex = 0;
+		if (bytes == null)
+			others = sortOthers(options);
+
+		if (options.getIfMatchCount() > 0)
+			for (byte[] value:options.getIfMatch())
+				writeOption(OptionRegistry.IF_MATCH, value);
+		if (options.hasURIHost())
+			writeOption(OptionRegistry.URI_HOST, options.getURIHost());
+		if (options.getETagCount() > 0)
+			for (byte[] value:options.getETags())
+				writeOption(OptionRegistry.ETAG, value);
+		if (options.hasIfNoneMatch())
+			writeOption(OptionRegistry.IF_NONE_MATCH, EMPTY);
+		if (options.hasObserve())
+			writeOption(OptionRegistry.OBSERVE, options.getObserve().intValue());
+		if (options.hasURIPort())
+			writeOption(OptionRegistry.URI_PORT, options.getURIPort().intValue());
+		if (options.getLocationPathCount() > 0)
+			for (String value:options.getLocationPaths())
+				writeOption(OptionRegistry.LOCATION_PATH, value);
+		if (options.getURIPathCount() > 0)
+			for (String value:options.getURIPaths())
+				writeOption(OptionRegistry.URI_PATH, value);
+		if (options.hasContentFormat())
+			writeOption(OptionRegistry.CONTENT_FORMAT, options.getContentFormat());
+		if (options.hasMaxAge())
+			writeOption(OptionRegistry.MAX_AGE, options.getMaxAge().longValue());
+		if (options.getURIQueryCount() > 0)
+			for (String value:options.getURIQueries())
+				writeOption(OptionRegistry.URI_QUERY, value);
+		if (options.hasAccept())
+			writeOption(OptionRegistry.ACCEPT, options.getAccept());
+		if (options.getLocationQueryCount() > 0)
+			for (String value:options.getLocationQueries())
+				writeOption(OptionRegistry.LOCATION_QUERY, value);
+		if (options.hasBlock2())
+			writeOption(OptionRegistry.BLOCK2, options.getBlock2());
+		if (options.hasBlock1())
+			writeOption(OptionRegistry.BLOCK1, options.getBlock1());
+		if (options.hasProxyURI())
+			writeOption(OptionRegistry.PROXY_URI, options.getProxyURI());
+		if (options.hasProxyScheme())
+			writeOption(OptionRegistry.PROXY_SCHEME, options.getProxyScheme());
+		if (options.hasSize1())
+			writeOption(OptionRegistry.SIZE1, options.getSize1().intValue());
+
+		writeOthers(Integer.MAX_VALUE);
+	}
+
+	private static Option[] sortOthers(OptionSet options) {
+		if (options.getOthersCount() == 0)
+			return null;
+		List<Option> list = options.getOthers();
+		Option[] sorted = list.toArray(new Option[list.size()]);
+		Arrays.sort(sorted); // stable
+		return sorted;
+	}
+
+	/*
+	 * Writes the other options with a number lower than the specified one.
+	 */
+	private void writeOthers(int number) {
+		if (others == null)
+			return;
+		while (othersIndex < others.length && others[othersIndex].getNumber() < number) {
+			Option option = others[othersIndex++];
+			writeOptionHeader(option.getNumber(), option.getLength());
+			writeBytes(option.getValue());
+		}
+	}
+
+	private void writeOption(int number, byte[] value) {
+		writeOthers(number);
+		writeOptionHeader(number, value.length);
+		writeBytes(value);
+	}
+
+	private void writeOption(int number, String value) {
+		writeOthers(number);
+		writeOptionHeader(number, getUTF8Length(value));
+		writeUTF8(value);
+	}
+
+	private void writeOption(int number, int value) {
+		writeOthers(number);
+		int length = 0;
+		for (int i=0;i<4;i++)
+			if (value >= 1<<(i*8) || value < 0) length++;
+			else break;
+		writeOptionHeader(number, length);
+		for (int i=length-1;i>=0;i--)
+			writeByte(value >> i*8);
+	}
+
+	private void writeOption(int number, long value) {
+		writeOthers(number);
+		int length = 0;
+		for (int i=0;i<8;i++)
+			if (value >= 1L<<(i*8) || value < 0) length++;
+			else break;
+		writeOptionHeader(number, length);
+		for (int i=length-1;i>=0;i--)
+			writeByte((int) (value >> i*8));
+	}
+
+	/*
+	 * Writes the block option as in BlockOption.getValue().
+	 */
+	private void writeOption(int number, BlockOption block) {
+		writeOthers(number);
+		int num = block.getNum();
+		int last = block.getSzx() | (block.isM() ? 1<<3 : 0);
+		if (num == 0 && last == 0) {
+			writeOptionHeader(number, 0);
+		} else if (num < 1 << 4) {
+			writeOptionHeader(number, 1);
+			writeByte(last | (num << 4));
+		} else if (num < 1 << 12) {
+			writeOptionHeader(number, 2);
+			writeByte(num >> 4);
+			writeByte(last | (num << 4));
+		} else {
+			writeOptionHeader(number, 3);
+			writeByte(num >> 12);
+			writeByte(num >> 4);
+			writeByte(last | (num << 4));
+		}
+	}
+
+	private void writeOptionHeader(int number, int length) {
+		int optionDelta = number - lastOptionNumber;
+		int optionDeltaNibble = getOptionNibble(optionDelta);
+		int optionLengthNibble = getOptionNibble(length);
+
+		// write 4-bit option delta and 4-bit option length
+		writeByte(optionDeltaNibble << 4 | optionLengthNibble);
+
+		// write extended option delta field (0 - 2 bytes)
+		if (optionDeltaNibble == 13) {
+			writeByte(optionDelta - 13);
+		} else if (optionDeltaNibble == 14) {
+			writeByte((optionDelta - 269) >> 8);
+			writeByte(optionDelta - 269);
+		}
+
+		// write extended option length field (0 - 2 bytes)
+		if (optionLengthNibble == 13) {
+			writeByte(length - 13);
+		} else if (optionLengthNibble == 14) {
+			writeByte((length - 269) >> 8);
+			writeByte(length - 269);
+		}
+
+		// update last option number
+		lastOptionNumber = number;
+	}
+
+	private void writeByte(int b) {
+		if (bytes != null)
+			bytes[position] = (byte) b;
+		position++;
+	}
+
+	private void writeBytes(byte[] b) {
+		if (bytes != null)
+			System.arraycopy(b, 0, bytes, position, b.length);
+		position += b.length;
+	}
+
+	/*
+	 * Writes the string in UTF-8, which is the encoding CoAP prescribes for
+	 * string options. Unpaired surrogates are replaced by '?'.
+	 */
+	private void writeUTF8(String str) {
+		int length = str.length();
+		for (int i=0;i<length;i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				writeByte(c);
+			} else if (c < 0x800) {
+				writeByte(0xC0 | c >> 6);
+				writeByte(0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(str.charAt(i+1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				writeByte(0xF0 | cp >> 18);
+				writeByte(0x80 | cp >> 12 & 0x3F);
+				writeByte(0x80 | cp >> 6 & 0x3F);
+				writeByte(0x80 | cp & 0x3F);
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				writeByte('?');
+			} else {
+				writeByte(0xE0 | c >> 12);
+				writeByte(0x80 | c >> 6 & 0x3F);
+				writeByte(0x80 | c & 0x3F);
+			}
+		}
+	}
+
+	private static int getUTF8Length(String str) {
+		int length = str.length();
+		int bytes = 0;
+		for (int i=0;i<length;i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				bytes += 1;
+			} else if (c < 0x800) {
+				bytes += 2;
+			} else if (Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(str.charAt(i+1))) {
+				bytes += 4;
+				i++;
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				bytes += 1;
+			} else {
+				bytes += 3;
+			}
+		}
+		return bytes;
+	}
+
 	/**
 	 * Returns the 4-bit option header value.
-	 * 
+	 *
 	 * @param optionValue
 	 *            the option value (delta or length) to be encoded.
 	 * @return the 4-bit option header value.
@@ -118,5 +395,5 @@ public class DataSerializer {
 			throw new IllegalArgumentException("Unsupported option delta "+optionValue);
 		}
 	}
-	
+
 }
@@ -11,6 +11,14 @@ import ch.ethz.inf.vs.elements.RawData;
  */
 public class Serializer {
 
+	/** The data serializers are reusable but not thread-safe */
+	private static final ThreadLocal<DataSerializer> SERIALIZER = new ThreadLocal<DataSerializer>() {
+		@Override
+		protected DataSerializer initialValue() {
+			return new DataSerializer();
+		}
+	};
+
 	/**
 	 * Serializes the specified request. Message identifier, message code,
 	 * token, options and payload are converted into a byte array and wrapped in
@@ -24,7 +32,7 @@ public class Serializer {
 	public RawData serialize(Request request) {
 		byte[] bytes = request.getBytes();
 		if (bytes == null)
-			bytes = new DataSerializer().serializeRequest(request);
+			bytes = SERIALIZER.get().serializeRequest(request);
 		request.setBytes(bytes);
 		return new RawData(bytes, request.getDestination(), request.getDestinationPort());
 	}
@@ -41,7 +49,7 @@ public class Serializer {
 	public RawData serialize(Response response) {
 		byte[] bytes = response.getBytes();
 		if (bytes == null)
-			bytes = new DataSerializer().serializeResponse(response);
+			bytes = SERIALIZER.get().serializeResponse(response);
 		response.setBytes(bytes);
 		return new RawData(bytes, response.getDestination(), response.getDestinationPort());
 	}
@@ -59,7 +67,7 @@ public class Serializer {
 	public RawData serialize(EmptyMessage message) {
 		byte[] bytes = message.getBytes();
 		if (bytes == null)
-			bytes = new DataSerializer().serializeEmptyMessage(message);
+			bytes = SERIALIZER.get().serializeEmptyMessage(message);
 		message.setBytes(bytes);
 		return new RawData(bytes, message.getDestination(), message.getDestinationPort());
 	}
@@ -9,6 +9,7 @@ import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
 
 /**
  * A partial implementation of a layer. Override receive and send-methods call
@@ -29,6 +30,9 @@ public abstract class AbstractLayer implements Layer {
 	/** The executor. */
 	protected ScheduledExecutorService executor;
 	
+	/** The timer service to schedule delayed tasks. */
+	protected TimerService timer;
+	
 	/* (non-Javadoc)
 	 * @see ch.inf.vs.californium.network.layer.Layer#sendRequest(ch.inf.vs.californium.network.Exchange, ch.inf.vs.californium.coap.Request)
 	 */
@@ -123,6 +127,14 @@ public abstract class AbstractLayer implements Layer {
 		this.executor = executor;
 	}
 	
+	/* (non-Javadoc)
+	 * @see ch.ethz.inf.vs.californium.network.stack.Layer#setTimer(ch.ethz.inf.vs.californium.network.timer.TimerService)
+	 */
+	@Override
+	public void setTimer(TimerService timer) {
+		this.timer = timer;
+	}
+	
 	/**
 	 * Reject the specified message. Rejecting an ACK or RST is not allowed.
 	 *
@@ -1,7 +1,11 @@
 package ch.ethz.inf.vs.californium.network.stack;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.coap.BlockObserver;
 import ch.ethz.inf.vs.californium.coap.BlockOption;
 import ch.ethz.inf.vs.californium.coap.CoAP.Code;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
@@ -10,9 +14,11 @@ import ch.ethz.inf.vs.californium.coap.EmptyMessage;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
 import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.PayloadBuffer;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.Origin;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigObserverAdapter;
@@ -64,10 +70,30 @@ public class BlockwiseLayer extends AbstractLayer {
 	
 	private int maxMsgSize;
 	private int defaultBlockSize;
+	private int spillThreshold;
+	
+	/** The largest upload that is accepted or 0 if unlimited */
+	private final int maxUploadSize;
+	
+	/** The representations shared by all clients of a large resource or null */
+	private final BlockwiseRepresentationCache representations;
+	
+	/** The number of Block2 requests in flight per download */
+	private int pipelineWindow;
 	
 	public BlockwiseLayer(NetworkConfig config) {
 		this.maxMsgSize = config.getInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE);
 		this.defaultBlockSize = config.getInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE);
+		this.spillThreshold = config.getInt(NetworkConfigDefaults.BLOCKWISE_SPILL_THRESHOLD);
+		// an upload larger than all transfers may buffer would be evicted anyway
+		long maxBytes = config.getLong(NetworkConfigDefaults.MAX_BLOCKWISE_BYTES);
+		this.maxUploadSize = (int) Math.max(0, Math.min(Integer.MAX_VALUE, maxBytes));
+		int cacheSize = config.getInt(NetworkConfigDefaults.BLOCKWISE_REPRESENTATION_CACHE_SIZE);
+		this.representations = cacheSize > 0 ? new BlockwiseRepresentationCache(cacheSize) : null;
+		this.pipelineWindow = config.getInt(NetworkConfigDefaults.BLOCKWISE_PIPELINE_WINDOW);
+		if (config.getBoolean(NetworkConfigDefaults.USE_CONGESTION_CONTROL))
+			// the congestion control would only queue the requests beyond NSTART
+			pipelineWindow = Math.min(pipelineWindow, config.getInt(NetworkConfigDefaults.NSTART));
 		LOGGER.config("Blockwise14 layer uses MAX_MESSAGE_SIZE: "+maxMsgSize+" and DEFAULT_BLOCK_SIZE:"+defaultBlockSize);
 		
 		config.addConfigObserver(new NetworkConfigObserverAdapter() {
@@ -77,6 +103,8 @@ public class BlockwiseLayer extends AbstractLayer {
 					maxMsgSize = value;
 				if (NetworkConfigDefaults.DEFAULT_BLOCK_SIZE.equals(key))
 					defaultBlockSize = value;
+				if (NetworkConfigDefaults.BLOCKWISE_SPILL_THRESHOLD.equals(key))
+					spillThreshold = value;
 			}
 		});
 	}
@@ -111,18 +139,46 @@ public class BlockwiseLayer extends AbstractLayer {
 			if (block1.getNum() == 0 && status.getCurrentNum() > 0) {
 				// reset the blockwise transfer
 				LOGGER.finer("Block1 num is 0, the client has restarted the blockwise transfer. Reset status.");
+				releaseBuffer(status);
 				status = new BlockwiseStatus(request.getOptions().getContentFormat());
 				exchange.setRequestBlockStatus(status);
 			}
+			int size = getSize1(request);
+			if (status.getBuffer() == null && maxUploadSize > 0 && size > maxUploadSize) {
+				LOGGER.fine("Announced upload of "+size+" bytes exceeds "+maxUploadSize+" bytes. Respond with 4.13 (Request Entity Too Large)");
+				Response error = Response.createPiggybackedResponse(request, ResponseCode.REQUEST_ENTITY_TOO_LARGE);
+				error.getOptions().setSize1(maxUploadSize);
+				exchange.setRequestBlockStatus(null);
+				request.setAcknowledged(true);
+				exchange.setCurrentResponse(error);
+				super.sendResponse(exchange, error);
+				return;
+			}
+			if (status.getBuffer() == null)
+				status.setBuffer(new PayloadBuffer(size, spillThreshold));
 			
 			if (block1.getNum() == status.getCurrentNum()) {
 				
+				if (maxUploadSize > 0 && status.getBuffer().size() + request.getPayloadSize() > maxUploadSize) {
+					// the client might not have announced the size
+					LOGGER.fine("Upload exceeds "+maxUploadSize+" bytes. Respond with 4.13 (Request Entity Too Large)");
+					Response error = Response.createPiggybackedResponse(request, ResponseCode.REQUEST_ENTITY_TOO_LARGE);
+					error.getOptions().setSize1(maxUploadSize);
+					releaseBuffer(status);
+					exchange.setRequestBlockStatus(null);
+					request.setAcknowledged(true);
+					exchange.setCurrentResponse(error);
+					super.sendResponse(exchange, error);
+					return;
+				}
+				
 				if (request.getOptions().getContentFormat()==status.getContentFormat()) {
 					status.addBlock(request.getPayload());
 				} else {
 					Response error = Response.createPiggybackedResponse(request, ResponseCode.REQUEST_ENTITY_INCOMPLETE);
 					error.getOptions().setBlock1(block1.getSzx(), block1.isM(), block1.getNum());
 					error.setPayload("Changed Content-Format");
+					releaseBuffer(status);
 					request.setAcknowledged(true);
 					exchange.setCurrentResponse(error);
 					super.sendResponse(exchange, error);
@@ -166,9 +222,10 @@ public class BlockwiseLayer extends AbstractLayer {
 				Response error = Response.createPiggybackedResponse(request, ResponseCode.REQUEST_ENTITY_INCOMPLETE);
 				error.getOptions().setBlock1(block1.getSzx(), block1.isM(), block1.getNum());
 				error.setPayload("Wrong block number");
-				request.setAcknowledged(true);
+				releaseBuffer(status);
+				request.setAcknowledged(true);
 				exchange.setCurrentResponse(error);
-				super.sendResponse(exchange, error);
+				super.sendResponse(exchange, error);
 			}
 			
 		} else if (exchange.getResponse()!=null && request.getOptions().hasBlock2()) {
@@ -214,6 +271,7 @@ public class BlockwiseLayer extends AbstractLayer {
 			LOGGER.fine("Response payload "+response.getPayloadSize()+"/"+maxMsgSize+" requires Blockwise");
 			
 			BlockwiseStatus status = findResponseBlockStatus(exchange, response);
+			status.setRepresentation(findRepresentation(exchange, response));
 			
 			Response block = getNextResponseBlock(response, status);
 			block.setType(response.getType()); // This is only true for the first block
@@ -235,10 +293,25 @@ public class BlockwiseLayer extends AbstractLayer {
 			exchange.setCurrentResponse(response);
 			super.sendResponse(exchange, response);
 		}
+		
+		if (response.getCode() != ResponseCode.CONTINUE && exchange.getRequest() != null) {
+			// the upload has been answered; delete the file of a large payload
+			PayloadBuffer buffer = exchange.getRequest().getPayloadBuffer();
+			if (buffer != null && buffer.isSpilled())
+				buffer.release();
+		}
 	}
 	
 	@Override
 	public void receiveResponse(Exchange exchange, Response response) {
+		BlockwiseStatus pipelined = exchange.getResponseBlockStatus();
+		if (pipelined != null && pipelined.getPipeline() != null
+				&& pipelined.getPipeline().getExchange() != exchange) {
+			// This is the response to one of several block requests in flight
+			receivePipelinedBlock(exchange, response, pipelined.getPipeline());
+			return;
+		}
+		
 		if (!response.getOptions().hasBlock1() && !response.getOptions().hasBlock2()) {
 			// There is no block1 or block2 option, therefore it is a normal response
 			exchange.setResponse(response);
@@ -280,40 +353,34 @@ public class BlockwiseLayer extends AbstractLayer {
 			BlockOption block2 = response.getOptions().getBlock2();
 			BlockwiseStatus status = findResponseBlockStatus(exchange, response);
 			
-			if (block2.getNum() == status.getCurrentNum()) {
+			BlockObserver observer = exchange.getRequest().getBlockObserver();
+			if (block2.getNum() == status.getCurrentNum()
+					&& observer != null && !response.getOptions().hasObserve()) {
+				// Hand the block over instead of adding it to the status
+				LOGGER.finer("Stream response block "+block2.getNum()+" to the block observer");
+				status.setCurrentNum(block2.getNum() + 1);
+				observer.onBlock(response, new NextBlock(exchange, status, response));
+				
+			} else if (block2.getNum() == status.getCurrentNum()) {
 				// We got the block we expected :-)
 				status.addBlock(response.getPayload());
 				if (response.getOptions().hasObserve())
 					status.setObserve(response.getOptions().getObserve());
 				
-				if (block2.isM()) {
+				if (block2.isM() && pipelineWindow > 1 && !response.getOptions().hasObserve()) {
+					LOGGER.finer("Request the next "+pipelineWindow+" response blocks at once");
+					status.setCurrentNum(block2.getNum() + 1);
+					BlockwisePipeline pipeline = new BlockwisePipeline(exchange, status, block2.getSzx(), pipelineWindow);
+					status.setPipeline(pipeline);
+					requestBlocks(pipeline, pipeline.fill());
+					
+				} else if (block2.isM()) {
 					LOGGER.finer("Request the next response block");
 					// TODO: If this is a notification, do we have to use
 					// another token now?
-
-					Request request = exchange.getRequest();
 					int num = block2.getNum() + 1;
-					int szx = block2.getSzx();
-					boolean m = false;
-					Request block = new Request(request.getCode());
-					block.setOptions(new OptionSet(request.getOptions()));
-					block.setDestination(request.getDestination());
-					block.setDestinationPort(request.getDestinationPort());
-					
-					block.setType(request.getType()); // NON could make sense over SMS or similar transports
-					block.getOptions().setBlock2(szx, m, num);
 					status.setCurrentNum(num);
-					
-					// to make it easier for Observe, we do not re-use the Token
-//					if (!response.getOptions().hasObserve()) {
-//						block.setToken(request.getToken());
-//					}
-					
-					// make sure not to use Observe for block retrieval
-					block.getOptions().removeObserve();
-					
-					exchange.setCurrentRequest(block);
-					super.sendRequest(exchange, block);
+					requestNextBlock(exchange, block2.getSzx(), num);
 					
 				} else {
 					LOGGER.finer("We have received all "+status.getBlockCount()+" blocks of the response. Assemble and deliver");
@@ -420,6 +487,8 @@ public class BlockwiseLayer extends AbstractLayer {
 		
 		boolean m = (to < request.getPayloadSize());
 		block.getOptions().setBlock1(szx, m, num);
+		if (num == 0)
+			block.getOptions().setSize1(request.getPayloadSize()); // lets the server prepare
 		
 		status.setComplete(!m);
 		return block;
@@ -436,9 +505,20 @@ public class BlockwiseLayer extends AbstractLayer {
 		block.setOptions(new OptionSet(response.getOptions()));
 		block.addMessageObserver(new TimeoutForwarder(response));
 		
-		if (response.getPayloadSize() > 0) {
+		BlockwiseRepresentation representation = status.getRepresentation();
+		if (representation != null) {
+			// the block is shared with all other clients and must not be modified
+			byte[] blockPayload = representation.getBlock(szx, num);
+			boolean m = blockPayload != null && representation.hasMore(szx, num);
+			block.setPayload(blockPayload != null ? blockPayload : new byte[0]);
+			block.getOptions().setBlock2(szx, m, num);
+			block.setLast(!m);
+			
+			status.setComplete(!m);
+		} else if (response.getPayloadSize() > 0) {
 			int currentSize = 1 << (4 + szx);
-			int from = num * currentSize;
+			// a pipelining client might request blocks beyond the end
+			int from = Math.min(num * currentSize, response.getPayloadSize());
 			int to = Math.min((num + 1) * currentSize, response.getPayloadSize());
 			int length = to - from;
 			byte[] blockPayload = new byte[length];
@@ -467,18 +547,162 @@ public class BlockwiseLayer extends AbstractLayer {
 		message.setType(last.getType());
 		message.setOptions(new OptionSet(last.getOptions()));
 		
-		int length = 0;
-		for (byte[] block:status.getBlocks())
-			length += block.length;
+		// The payload stays in the buffer and is only copied if requested
+		if (status.getBuffer() != null)
+			message.setPayloadBuffer(status.getBuffer());
+	}
+	
+	/*
+	 * Sends the request for the next block of a sequential Block2 download
+	 * with the exchange of the original request.
+	 */
+	private void requestNextBlock(Exchange exchange, int szx, int num) {
+		Request request = exchange.getRequest();
+		Request block = new Request(request.getCode());
+		block.setOptions(new OptionSet(request.getOptions()));
+		block.setDestination(request.getDestination());
+		block.setDestinationPort(request.getDestinationPort());
+		
+		block.setType(request.getType()); // NON could make sense over SMS or similar transports
+		block.getOptions().setBlock2(szx, false, num);
+		
+		// to make it easier for Observe, we do not re-use the Token
+//		if (!response.getOptions().hasObserve()) {
+//			block.setToken(request.getToken());
+//		}
 		
-		byte[] payload = new byte[length];
-		int offset = 0;
-		for (byte[] block:status.getBlocks()) {
-			System.arraycopy(block, 0, payload, offset, block.length);
-			offset += block.length;
+		// make sure not to use Observe for block retrieval
+		block.getOptions().removeObserve();
+		block.addMessageObserver(new TimeoutForwarder(request));
+		
+		exchange.setCurrentRequest(block);
+		super.sendRequest(exchange, block);
+	}
+	
+	/*
+	 * Sends a request for each of the specified blocks of a pipelined
+	 * download. Each block request has its own exchange with a new token, so
+	 * that the lower layers match and retransmit it independently. The
+	 * exchange shares the blockwise status of the original exchange.
+	 */
+	private void requestBlocks(BlockwisePipeline pipeline, List<Integer> nums) {
+		Exchange exchange = pipeline.getExchange();
+		Request request = exchange.getRequest();
+		for (int num:nums) {
+			Request block = new Request(request.getCode());
+			block.setOptions(new OptionSet(request.getOptions()));
+			block.setDestination(request.getDestination());
+			block.setDestinationPort(request.getDestinationPort());
+			block.setType(request.getType());
+			block.getOptions().setBlock2(pipeline.getSzx(), false, num);
+			block.getOptions().removeObserve();
+			
+			Exchange child = new Exchange(block, Origin.LOCAL);
+			child.setRequest(block);
+			child.setEndpoint(exchange.getEndpoint());
+			child.setResponseBlockStatus(exchange.getResponseBlockStatus());
+			block.addMessageObserver(new PipelinedBlockObserver(pipeline, child, num));
+			if (!pipeline.sent(num, child))
+				return;
+			super.sendRequest(child, block);
 		}
+	}
+	
+	/*
+	 * Adds a block of a pipelined download to the original exchange. Delivers
+	 * the assembled response when all blocks have arrived and requests the
+	 * next blocks otherwise.
+	 */
+	private void receivePipelinedBlock(Exchange child, Response response, BlockwisePipeline pipeline) {
+		// the block request is over, clean up its token and MID
+		child.setComplete();
+		Exchange exchange = pipeline.getExchange();
+		BlockOption block2 = response.getOptions().getBlock2();
+		int num = child.getRequest().getOptions().getBlock2().getNum();
+		List<Integer> nums;
 		
-		message.setPayload(payload);
+		if (exchange.getRequest().isCanceled()) {
+			if (pipeline.fail())
+				completeBlockRequests(pipeline);
+			
+		} else if (block2 == null && (nums = pipeline.truncate(child, num)) != null) {
+			// the server has responded with an error to a block beyond the end
+			LOGGER.fine("Pipelined request for block "+num+" received "+response.getCode()+", the representation ends before");
+			requestBlocks(pipeline, nums);
+			
+		} else if (block2 == null || block2.getSzx() != pipeline.getSzx()) {
+			// the server has responded with an error or has changed the block size
+			LOGGER.warning("Pipelined block request received "+response+". Abort download");
+			if (pipeline.fail()) {
+				completeBlockRequests(pipeline);
+				exchange.setResponseBlockStatus(null);
+				exchange.setResponse(response);
+				super.receiveResponse(exchange, response);
+			}
+			
+		} else {
+			nums = pipeline.receive(child, block2.getNum(), block2.isM(), response.getPayload());
+			if (nums == null) {
+				completeBlockRequests(pipeline);
+				BlockwiseStatus status = exchange.getResponseBlockStatus();
+				LOGGER.finer("We have received all "+status.getBlockCount()+" blocks of the response. Assemble and deliver");
+				Response assembled = new Response(response.getCode());
+				assembleMessage(status, assembled, response);
+				assembled.setType(response.getType());
+				
+				LOGGER.fine("Assembled response: "+assembled);
+				exchange.setResponse(assembled);
+				super.receiveResponse(exchange, assembled);
+			} else {
+				requestBlocks(pipeline, nums);
+			}
+		}
+	}
+	
+	/*
+	 * Cancels the block requests of a pipelined download that are still in
+	 * flight, e.g., requests for blocks beyond the end of the representation.
+	 */
+	private void completeBlockRequests(BlockwisePipeline pipeline) {
+		for (Exchange child:pipeline.finish()) {
+			child.getCurrentRequest().cancel();
+			child.setComplete();
+		}
+	}
+	
+	/*
+	 * Returns the representation of the specified response that is shared by
+	 * all clients of the resource or null if the response cannot be shared.
+	 * The response drops its own payload in favor of the shared one, so that
+	 * the exchange does not keep a copy while the client fetches the blocks.
+	 */
+	private BlockwiseRepresentation findRepresentation(Exchange exchange, Response response) {
+		if (representations == null || response.getPayloadSize() == 0
+				|| response.getOptions().getETagCount() != 1)
+			return null;
+		OptionSet options = exchange.getRequest().getOptions();
+		String uri = options.getURIPathString()+"?"+options.getURIQueryString();
+		BlockwiseRepresentation representation = representations.get(uri,
+				response.getOptions().getETags().get(0),
+				response.getOptions().getContentFormat(),
+				response.getPayload());
+		if (representation != null && representation.getPayload() != response.getPayload())
+			response.setPayload(representation.getPayload());
+		return representation;
+	}
+	
+	private void releaseBuffer(BlockwiseStatus status) {
+		if (status.getBuffer() != null)
+			status.getBuffer().release();
+	}
+	
+	/*
+	 * Returns the upload size the specified request announces in its Size1
+	 * option or 0 if the request has no Size1 option.
+	 */
+	private int getSize1(Request request) {
+		Integer size = request.getOptions().getSize1();
+		return size != null ? size : 0;
 	}
 	
 	private boolean requiresBlockwise(Request request) {
@@ -505,6 +729,86 @@ public class BlockwiseLayer extends AbstractLayer {
 		return (int)(Math.log(blockSize)/Math.log(2)) - 4;
 	}
 	
+	// When the request for a block of a pipelined download times out, the
+	// block is requested again or the whole download fails.
+	private class PipelinedBlockObserver extends MessageObserverAdapter {
+		
+		private final BlockwisePipeline pipeline;
+		private final Exchange child;
+		private final int num;
+		
+		private PipelinedBlockObserver(BlockwisePipeline pipeline, Exchange child, int num) {
+			this.pipeline = pipeline;
+			this.child = child;
+			this.num = num;
+		}
+		
+		@Override
+		public void onTimeout() {
+			int result = pipeline.retry(child, num);
+			if (result == BlockwisePipeline.RETRY) {
+				LOGGER.fine("Request for block "+num+" timed out. Request it again");
+				requestBlocks(pipeline, Collections.singletonList(num));
+			} else if (result == BlockwisePipeline.FAIL && pipeline.fail()) {
+				LOGGER.warning("Request for block "+num+" timed out "+BlockwisePipeline.MAX_ATTEMPTS+" times. Download has failed");
+				completeBlockRequests(pipeline);
+				Exchange exchange = pipeline.getExchange();
+				exchange.getRequest().setTimedOut(true);
+				exchange.setTimedOut();
+			}
+		}
+		
+		@Override
+		public void onReject() {
+			if (pipeline.fail()) {
+				LOGGER.warning("Request for block "+num+" has been rejected. Download has failed");
+				completeBlockRequests(pipeline);
+				Exchange exchange = pipeline.getExchange();
+				exchange.getRequest().setRejected(true);
+				exchange.setComplete();
+			}
+		}
+	}
+	
+	// The continuation of a streamed Block2 download. It requests the next
+	// block or, after the last block, delivers the response without payload.
+	private class NextBlock implements Runnable {
+		
+		private final Exchange exchange;
+		private final BlockwiseStatus status;
+		private final Response block;
+		private final AtomicBoolean invoked = new AtomicBoolean();
+		
+		private NextBlock(Exchange exchange, BlockwiseStatus status, Response block) {
+			this.exchange = exchange;
+			this.status = status;
+			this.block = block;
+		}
+		
+		public void run() {
+			if (!invoked.compareAndSet(false, true))
+				return; // the observer must continue only once
+			Request request = exchange.getRequest();
+			BlockOption block2 = block.getOptions().getBlock2();
+			if (request.isCanceled()) {
+				LOGGER.fine("Streamed download has been canceled after block "+block2.getNum());
+				exchange.setComplete();
+				
+			} else if (block2.isM()) {
+				LOGGER.finer("Block observer requests the next response block");
+				requestNextBlock(exchange, block2.getSzx(), status.getCurrentNum());
+				
+			} else {
+				LOGGER.finer("We have streamed all "+status.getCurrentNum()+" blocks of the response. Deliver");
+				Response last = new Response(block.getCode());
+				assembleMessage(status, last, block);
+				last.setPayload(new byte[0]); // like a parsed response without payload
+				exchange.setResponse(last);
+				BlockwiseLayer.super.receiveResponse(exchange, last);
+			}
+		}
+	}
+	
 	// When a timeout occurs for a block it has to be forwarded to the origin
 	// response.
 	public static class TimeoutForwarder extends MessageObserverAdapter {
@@ -0,0 +1,248 @@
+package ch.ethz.inf.vs.californium.network.stack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ch.ethz.inf.vs.californium.network.Exchange;
+
+/**
+ * The state of a pipelined Block2 download. The client keeps up to a window
+ * of block requests in flight. Each block request is sent with its own
+ * exchange, so that the matcher and the reliability layer treat it like any
+ * other request. Blocks that arrive out of order are held back until the gap
+ * before them is filled. The contiguous blocks are added to the
+ * {@link BlockwiseStatus} of the original exchange as usual, i.e., the current
+ * num of the status is always the next block that is missing.
+ * <p>
+ * The client does not know the number of blocks in advance. Thus, the last
+ * window might request blocks beyond the end of the representation. They are
+ * ignored and their exchanges are completed when the download has finished.
+ * A server might answer such a request with an error instead of an empty last
+ * block. The error then marks the end of the representation and only an error
+ * for the next missing block fails the download.
+ * <p>
+ * This class is package private and only used by the {@link BlockwiseLayer}.
+ */
+class BlockwisePipeline {
+
+	/** The number of times a block is requested before the download fails */
+	static final int MAX_ATTEMPTS = 3;
+
+	/** The results of {@link #retry(Exchange, int)} */
+	static final int RETRY = 0;
+	static final int IGNORE = 1;
+	static final int FAIL = 2;
+
+	/** The exchange of the original request */
+	private final Exchange exchange;
+
+	private final BlockwiseStatus status;
+
+	private final int szx;
+
+	private final int window;
+
+	/** The blocks that have arrived before a block with a lower num */
+	private final TreeMap<Integer, byte[]> pending = new TreeMap<Integer, byte[]>();
+
+	/** The exchanges of the block requests in flight and their nums */
+	private final Map<Exchange, Integer> inFlight = new HashMap<Exchange, Integer>();
+
+	/** The number of times each block has been requested */
+	private final Map<Integer, Integer> attempts = new HashMap<Integer, Integer>();
+
+	/** The number of block requests that have been handed out and not answered */
+	private int outstanding;
+
+	/** The next block that has not been requested yet */
+	private int nextNum;
+
+	/** The num of the last block or MAX_VALUE if not yet known */
+	private int lastNum = Integer.MAX_VALUE;
+
+	private boolean done;
+
+	/**
+	 * Instantiates a new pipeline for the exchange whose first block has
+	 * already been added to the specified status.
+	 *
+	 * @param exchange the exchange of the original request
+	 * @param status the blockwise status of the response
+	 * @param szx the block size the server has chosen
+	 * @param window the maximum number of block requests in flight
+	 */
+	BlockwisePipeline(Exchange exchange, BlockwiseStatus status, int szx, int window) {
+		this.exchange = exchange;
+		this.status = status;
+		this.szx = szx;
+		this.window = window;
+		this.nextNum = status.getCurrentNum();
+	}
+
+	Exchange getExchange() {
+		return exchange;
+	}
+
+	int getSzx() {
+		return szx;
+	}
+
+	/**
+	 * Returns the nums of the blocks to request in order to fill the window.
+	 *
+	 * @return the nums to request
+	 */
+	synchronized List<Integer> fill() {
+		List<Integer> nums = new ArrayList<Integer>();
+		while (!done && outstanding < window && nextNum <= lastNum) {
+			nums.add(nextNum);
+			attempts.put(nextNum, 1);
+			nextNum++;
+			outstanding++;
+		}
+		return nums;
+	}
+
+	/**
+	 * Remembers the exchange of a block request that has been sent.
+	 *
+	 * @param num the num of the block
+	 * @param child the exchange of the block request
+	 * @return false if the download has already finished
+	 */
+	synchronized boolean sent(int num, Exchange child) {
+		if (done)
+			return false;
+		inFlight.put(child, num);
+		return true;
+	}
+
+	/**
+	 * Adds the specified block. Returns the nums of the blocks that must be
+	 * requested next, either to fill the window or to retry a gap.
+	 *
+	 * @param child the exchange of the block request
+	 * @param num the num of the block
+	 * @param m the M flag of the block
+	 * @param payload the payload of the block
+	 * @return the nums to request or null if this block has completed the
+	 *         download
+	 */
+	synchronized List<Integer> receive(Exchange child, int num, boolean m, byte[] payload) {
+		if (inFlight.remove(child) != null)
+			outstanding--;
+		if (done)
+			return new ArrayList<Integer>();
+
+		if (!m && num < lastNum)
+			lastNum = num;
+		if (num >= status.getCurrentNum() && num <= lastNum)
+			pending.put(num, payload);
+
+		// add contiguous blocks to the status
+		Integer current;
+		while ((current = status.getCurrentNum()) <= lastNum && pending.containsKey(current)) {
+			status.addBlock(pending.remove(current));
+			status.setCurrentNum(current + 1);
+		}
+
+		if (status.getCurrentNum() > lastNum) {
+			done = true;
+			status.setComplete(true);
+			return null;
+		}
+
+		List<Integer> nums = fill();
+
+		// Non-confirmable block requests do not time out. Request the head
+		// again if a whole window has arrived behind it.
+		int head = status.getCurrentNum();
+		if (!pending.isEmpty() && pending.size() % window == 0 && !nums.contains(head)) {
+			Integer count = attempts.get(head);
+			if (count != null && count < MAX_ATTEMPTS) {
+				attempts.put(head, count + 1);
+				nums.add(head);
+				outstanding++;
+			}
+		}
+		return nums;
+	}
+
+	/**
+	 * Handles an error response without Block2 to the request for the
+	 * specified block. If the block lies behind the next missing block, the
+	 * error marks the end of the representation and the blocks from the
+	 * specified one onwards are no longer requested.
+	 *
+	 * @param child the exchange of the block request
+	 * @param num the num of the block
+	 * @return the nums to request or null if the download must fail
+	 */
+	synchronized List<Integer> truncate(Exchange child, int num) {
+		if (inFlight.remove(child) != null)
+			outstanding--;
+		if (done || num < status.getCurrentNum())
+			return new ArrayList<Integer>();
+		if (num == status.getCurrentNum())
+			return null;
+		if (num - 1 < lastNum) {
+			lastNum = num - 1;
+			pending.tailMap(lastNum, false).clear();
+		}
+		return fill();
+	}
+
+	/**
+	 * Decides what to do after the request for the specified block has timed
+	 * out. Returns {@link #RETRY} if the block must be requested again,
+	 * {@link #IGNORE} if the block is no longer needed and {@link #FAIL} if the
+	 * block has been requested too often.
+	 *
+	 * @param child the exchange of the block request
+	 * @param num the num of the block
+	 * @return RETRY, IGNORE or FAIL
+	 */
+	synchronized int retry(Exchange child, int num) {
+		if (inFlight.remove(child) != null)
+			outstanding--;
+		if (done || num > lastNum || num < status.getCurrentNum() || pending.containsKey(num))
+			return IGNORE;
+		Integer count = attempts.get(num);
+		int n = count == null ? 1 : count + 1;
+		if (n > MAX_ATTEMPTS)
+			return FAIL;
+		attempts.put(num, n);
+		outstanding++;
+		return RETRY;
+	}
+
+	/**
+	 * Marks the download as failed. Returns false if the download has already
+	 * finished or failed before.
+	 *
+	 * @return true, if the download has been marked as failed by this call
+	 */
+	synchronized boolean fail() {
+		if (done)
+			return false;
+		done = true;
+		return true;
+	}
+
+	/**
+	 * Ends the download and returns the exchanges of the block requests that
+	 * are still in flight.
+	 *
+	 * @return the exchanges in flight
+	 */
+	synchronized List<Exchange> finish() {
+		done = true;
+		pending.clear();
+		List<Exchange> children = new ArrayList<Exchange>(inFlight.keySet());
+		inFlight.clear();
+		return children;
+	}
+}
@@ -0,0 +1,154 @@
+package ch.ethz.inf.vs.californium.network.stack;
+
+/**
+ * An immutable representation of a resource that is sent blockwise. The
+ * representation slices its payload into blocks once per block size (SZX) and
+ * returns the same block arrays to every exchange that downloads it. The
+ * block arrays must therefore never be modified.
+ * <p>
+ * A representation is shared by all clients that download the same resource
+ * with the same ETag (see {@link BlockwiseRepresentationCache}). Since each
+ * block size keeps a copy of the payload, the representation tells its cache
+ * about the bytes of every new slicing.
+ */
+public final class BlockwiseRepresentation {
+
+	/** The number of block sizes, 16 (SZX 0) to 1024 bytes (SZX 6) */
+	private static final int SZX_COUNT = 7;
+
+	private final byte[] payload;
+	private final byte[] etag;
+	private final int contentFormat;
+
+	/** The blocks of each SZX or null if not yet sliced */
+	private final byte[][][] blocks = new byte[SZX_COUNT][][];
+
+	/** The number of bytes of the sliced blocks of all SZX */
+	private long slicedBytes;
+
+	/** The cache that holds this representation or null */
+	private volatile BlockwiseRepresentationCache cache;
+
+	/** Whether the cache currently counts this representation, guarded by the cache */
+	boolean cached;
+
+	/**
+	 * Instantiates a new representation.
+	 *
+	 * @param payload the payload
+	 * @param etag the ETag or null
+	 * @param contentFormat the Content-Format
+	 */
+	public BlockwiseRepresentation(byte[] payload, byte[] etag, int contentFormat) {
+		if (payload == null)
+			throw new NullPointerException();
+		this.payload = payload;
+		this.etag = etag;
+		this.contentFormat = contentFormat;
+	}
+
+	/**
+	 * Gets the complete payload. It must not be modified.
+	 *
+	 * @return the payload
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Gets the number of bytes this representation holds, i.e., the payload
+	 * and the blocks that have been sliced from it.
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getSize() {
+		return payload.length + slicedBytes;
+	}
+
+	/**
+	 * Gets the ETag.
+	 *
+	 * @return the ETag or null
+	 */
+	public byte[] getETag() {
+		return etag;
+	}
+
+	/**
+	 * Gets the Content-Format.
+	 *
+	 * @return the Content-Format
+	 */
+	public int getContentFormat() {
+		return contentFormat;
+	}
+
+	/**
+	 * Gets the number of blocks of the specified size.
+	 *
+	 * @param szx the SZX
+	 * @return the number of blocks
+	 */
+	public int getBlockCount(int szx) {
+		int size = 1 << (4 + szx);
+		return Math.max(1, (payload.length + size - 1) / size);
+	}
+
+	/**
+	 * Gets the block with the specified number and size. The block is sliced
+	 * only once and then returned to every caller. It must not be modified.
+	 *
+	 * @param szx the SZX
+	 * @param num the block number
+	 * @return the block or null if the number is beyond the payload
+	 */
+	public byte[] getBlock(int szx, int num) {
+		if (szx < 0 || szx >= SZX_COUNT)
+			throw new IllegalArgumentException("SZX must be between 0 and 6 but was "+szx);
+		byte[][] sliced;
+		long added = 0;
+		synchronized (this) {
+			if (blocks[szx] == null) {
+				blocks[szx] = slice(szx);
+				added = payload.length;
+				slicedBytes += added;
+			}
+			sliced = blocks[szx];
+		}
+		// notify the cache without holding the lock of this representation
+		BlockwiseRepresentationCache cache = this.cache;
+		if (added > 0 && cache != null)
+			cache.sliced(this, added);
+		if (num < 0 || num >= sliced.length)
+			return null;
+		return sliced[num];
+	}
+
+	/**
+	 * Returns true if there is another block after the specified one.
+	 *
+	 * @param szx the SZX
+	 * @param num the block number
+	 * @return true, if more blocks follow
+	 */
+	public boolean hasMore(int szx, int num) {
+		return (long) (num + 1) * (1 << (4 + szx)) < payload.length;
+	}
+
+	void setCache(BlockwiseRepresentationCache cache) {
+		this.cache = cache;
+	}
+
+	private byte[][] slice(int szx) {
+		int size = 1 << (4 + szx);
+		byte[][] sliced = new byte[getBlockCount(szx)][];
+		for (int i=0;i<sliced.length;i++) {
+			int from = i * size;
+			int length = Math.min(size, payload.length - from);
+			sliced[i] = new byte[length];
+			System.arraycopy(payload, from, sliced[i], 0, length);
+		}
+		return sliced;
+	}
+}
@@ -0,0 +1,156 @@
+package ch.ethz.inf.vs.californium.network.stack;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the representations that are sent blockwise. A representation is
+ * identified by the URI of the resource, its ETag and its Content-Format. When
+ * many clients download the same large resource, they all receive the blocks
+ * of the same {@link BlockwiseRepresentation} instead of a copy each.
+ * <p>
+ * A resource must change the ETag when its representation changes. Responses
+ * without ETag are not cached. The cache evicts the least recently used
+ * representations when their total size exceeds the limit. The size of a
+ * representation includes the blocks it has sliced for each block size, which
+ * the representation reports when it slices them.
+ */
+public class BlockwiseRepresentationCache {
+
+	private final LinkedHashMap<Key, BlockwiseRepresentation> representations;
+
+	private final long maxBytes;
+
+	private long bytes;
+
+	/**
+	 * Instantiates a new cache.
+	 *
+	 * @param maxBytes the maximum total size of the representations
+	 */
+	public BlockwiseRepresentationCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.representations = new LinkedHashMap<Key, BlockwiseRepresentation>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the cached representation of the specified resource and ETag.
+	 * If there is none, the specified payload becomes the shared
+	 * representation. Returns null if the response cannot be shared, i.e., if
+	 * it has no ETag or if it is larger than the cache.
+	 *
+	 * @param uri the URI of the resource
+	 * @param etag the ETag of the response
+	 * @param contentFormat the Content-Format of the response
+	 * @param payload the payload of the response
+	 * @return the shared representation or null
+	 */
+	public synchronized BlockwiseRepresentation get(String uri, byte[] etag, int contentFormat, byte[] payload) {
+		if (etag == null || payload == null || payload.length > maxBytes)
+			return null;
+		Key key = new Key(uri, etag, contentFormat);
+		BlockwiseRepresentation representation = representations.get(key);
+		if (representation != null && representation.getPayload().length == payload.length)
+			return representation;
+		if (representation != null)
+			remove(key);
+		representation = new BlockwiseRepresentation(payload, etag, contentFormat);
+		representation.setCache(this);
+		representation.cached = true;
+		representations.put(key, representation);
+		bytes += representation.getSize();
+		evict();
+		return representation;
+	}
+
+	/*
+	 * Counts the bytes of the blocks that the specified representation has
+	 * sliced if it is still in the cache.
+	 */
+	synchronized void sliced(BlockwiseRepresentation representation, long added) {
+		if (!representation.cached)
+			return;
+		bytes += added;
+		evict();
+	}
+
+	/**
+	 * Gets the number of cached representations.
+	 *
+	 * @return the size
+	 */
+	public synchronized int getSize() {
+		return representations.size();
+	}
+
+	/**
+	 * Gets the total size of the cached representations and their blocks.
+	 *
+	 * @return the bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Removes all representations.
+	 */
+	public synchronized void clear() {
+		for (BlockwiseRepresentation representation:representations.values())
+			representation.cached = false;
+		representations.clear();
+		bytes = 0;
+	}
+
+	private void remove(Key key) {
+		BlockwiseRepresentation removed = representations.remove(key);
+		if (removed != null) {
+			removed.cached = false;
+			bytes -= removed.getSize();
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Key, BlockwiseRepresentation>> it = representations.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			BlockwiseRepresentation eldest = it.next().getValue();
+			it.remove();
+			eldest.cached = false;
+			bytes -= eldest.getSize();
+		}
+	}
+
+	/*
+	 * The key of a representation.
+	 */
+	private static class Key {
+
+		private final String uri;
+		private final byte[] etag;
+		private final int contentFormat;
+		private final int hash;
+
+		private Key(String uri, byte[] etag, int contentFormat) {
+			this.uri = uri;
+			this.etag = etag;
+			this.contentFormat = contentFormat;
+			this.hash = (uri.hashCode() * 31 + Arrays.hashCode(etag)) * 31 + contentFormat;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key key = (Key) o;
+			return hash == key.hash && contentFormat == key.contentFormat
+					&& uri.equals(key.uri) && Arrays.equals(etag, key.etag);
+		}
+	}
+}
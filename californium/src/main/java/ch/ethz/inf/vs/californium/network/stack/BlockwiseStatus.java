@@ -1,8 +1,7 @@
 
 package ch.ethz.inf.vs.californium.network.stack;
 
-import java.util.ArrayList;
-import java.util.List;
+import ch.ethz.inf.vs.californium.coap.PayloadBuffer;
 
 /**
  * This class represents the status of a blockwise transfer of a request or a
@@ -45,11 +44,20 @@ public class BlockwiseStatus {
 	 * block arrives we might already have collected several response blocks.
 	 * This is also the reason, why synchronization is required. (=>TODO)
 	 * This might change in a future draft.
-	 * UPDATE: This is no longer true since block-14.
+	 * UPDATE: This is no longer true since block-14. Therefore, the blocks
+	 * are appended to a payload buffer, which moves large payloads to a file.
 	 */
-	// Container for the payload of all blocks
-	/** The blocks. */
-	private ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+	/** The buffer with the payload of all blocks or null if no block has arrived */
+	private PayloadBuffer buffer;
+	
+	/** The number of blocks */
+	private int blockCount;
+	
+	/** The shared representation of a response that is sent blockwise or null */
+	private BlockwiseRepresentation representation;
+	
+	/** The pipeline of a Block2 download with several blocks in flight or null */
+	private BlockwisePipeline pipeline;
 
 	/**
 	 * Instantiates a new blockwise status.
@@ -142,7 +150,10 @@ public class BlockwiseStatus {
 	 * @param block the block
 	 */
 	public void addBlock(byte[] block) {
-		blocks.add(block);
+		if (buffer == null)
+			buffer = new PayloadBuffer(0, Integer.MAX_VALUE);
+		buffer.append(block);
+		blockCount++;
 	}
 	
 	/**
@@ -151,16 +162,64 @@ public class BlockwiseStatus {
 	 * @return the block count
 	 */
 	public int getBlockCount() {
-		return blocks.size();
+		return blockCount;
+	}
+	
+	/**
+	 * Gets the buffer with the payload of all blocks.
+	 *
+	 * @return the buffer or null if no block has been added
+	 */
+	public PayloadBuffer getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * Sets the buffer to which the blocks are appended, e.g., one that has
+	 * been sized from the Size option.
+	 *
+	 * @param buffer the buffer
+	 */
+	public void setBuffer(PayloadBuffer buffer) {
+		this.buffer = buffer;
+	}
+	
+	/**
+	 * Gets the shared representation from which the blocks of a response are
+	 * taken.
+	 *
+	 * @return the representation or null if the response is not shared
+	 */
+	public BlockwiseRepresentation getRepresentation() {
+		return representation;
+	}
+	
+	/**
+	 * Sets the shared representation from which the blocks of a response are
+	 * taken.
+	 *
+	 * @param representation the representation
+	 */
+	public void setRepresentation(BlockwiseRepresentation representation) {
+		this.representation = representation;
+	}
+	
+	/**
+	 * Gets the pipeline of a Block2 download with several blocks in flight.
+	 *
+	 * @return the pipeline or null if the blocks are requested one by one
+	 */
+	BlockwisePipeline getPipeline() {
+		return pipeline;
 	}
 	
 	/**
-	 * Gets the list of blocks.
+	 * Sets the pipeline of a Block2 download with several blocks in flight.
 	 *
-	 * @return the blocks
+	 * @param pipeline the pipeline
 	 */
-	public List<byte[]> getBlocks() {
-		return blocks;
+	void setPipeline(BlockwisePipeline pipeline) {
+		this.pipeline = pipeline;
 	}
 	
 	public int getObserve() {
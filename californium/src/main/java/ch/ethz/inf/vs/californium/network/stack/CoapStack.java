@@ -11,6 +11,8 @@ import ch.ethz.inf.vs.californium.network.EndpointManager;
 import ch.ethz.inf.vs.californium.network.Exchange;
 import ch.ethz.inf.vs.californium.network.Exchange.Origin;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
 import ch.ethz.inf.vs.californium.server.MessageDeliverer;
 import ch.ethz.inf.vs.elements.Connector;
 
@@ -85,7 +87,9 @@ public class CoapStack {
 				.add(new ObserveLayer(config))
 				.add(new BlockwiseLayer(config))
 				.add(new TokenLayer(config))
-				.add(new ReliabilityLayer(config))
+				.add(config.getBoolean(NetworkConfigDefaults.USE_CONGESTION_CONTROL)
+						? new CongestionControlLayer(config)
+						: new ReliabilityLayer(config))
 				.add(bottom = new StackBottomAdapter())
 				.create();
 		this.deliverer = new EndpointManager.ClientMessageDeliverer();
@@ -126,6 +130,11 @@ public class CoapStack {
 			layer.setExecutor(executor);
 	}
 	
+	public void setTimer(TimerService timer) {
+		for (Layer layer:layers)
+			layer.setTimer(timer);
+	}
+	
 	public void setDeliverer(MessageDeliverer deliverer) {
 		this.deliverer = deliverer;
 	}
@@ -0,0 +1,243 @@
+package ch.ethz.inf.vs.californium.network.stack;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+
+/**
+ * The congestion control layer extends the reliability layer with per-peer
+ * congestion control. It holds a {@link RemoteEndpoint} for each peer and
+ * allows at most NSTART confirmable messages in transit to the same peer.
+ * Further confirmable messages are queued and sent once an earlier message
+ * has been acknowledged, rejected, canceled or has timed out.
+ * <p>
+ * The initial retransmission timeout of a message is derived from the RTO of
+ * the peer, which is estimated from the round-trip times of earlier messages
+ * as CoCoA describes it. Retransmissions back off with a variable factor that
+ * depends on the RTO.
+ */
+public class CongestionControlLayer extends ReliabilityLayer {
+
+	/** The number of peers above which idle peers are purged */
+	private static final int MAX_REMOTE_ENDPOINTS = 10000;
+
+	/** The state of each peer */
+	private final ConcurrentHashMap<InetSocketAddress, RemoteEndpoint> remoteEndpoints =
+			new ConcurrentHashMap<InetSocketAddress, RemoteEndpoint>();
+
+	/** The configuration */
+	private final NetworkConfig config;
+
+	/**
+	 * Constructs a new congestion control layer.
+	 * @param config the configuration
+	 */
+	public CongestionControlLayer(NetworkConfig config) {
+		super(config);
+		this.config = config;
+	}
+
+	/**
+	 * Sends the request right away if less than NSTART confirmable messages
+	 * are in transit to the destination. Otherwise, the request is queued.
+	 */
+	@Override
+	public void sendRequest(final Exchange exchange, final Request request) {
+		if (request.getType() == null)
+			request.setType(Type.CON);
+
+		if (isNewConfirmable(exchange, request)) {
+			RemoteEndpoint peer = getRemoteEndpoint(request);
+			final TransmissionObserver observer = new TransmissionObserver(peer);
+			request.addMessageObserver(observer);
+			Runnable transmission = new Runnable() {
+				public void run() {
+					if (observer.sent(request))
+						CongestionControlLayer.super.sendRequest(exchange, request);
+				}
+			};
+			if (peer.acquire(config.getSnapshot().getNStart(), transmission))
+				transmission.run();
+			else
+				LOGGER.finer("NSTART reached, queue request to "+peer.getAddress());
+		} else {
+			super.sendRequest(exchange, request);
+		}
+	}
+
+	/**
+	 * Sends the response right away if it is not confirmable or less than
+	 * NSTART confirmable messages are in transit to the destination.
+	 * Otherwise, the response is queued.
+	 */
+	@Override
+	public void sendResponse(final Exchange exchange, final Response response) {
+		if (isNewConfirmable(exchange, response)) {
+			RemoteEndpoint peer = getRemoteEndpoint(response);
+			final TransmissionObserver observer = new TransmissionObserver(peer);
+			response.addMessageObserver(observer);
+			Runnable transmission = new Runnable() {
+				public void run() {
+					if (observer.sent(response))
+						CongestionControlLayer.super.sendResponse(exchange, response);
+				}
+			};
+			if (peer.acquire(config.getSnapshot().getNStart(), transmission))
+				transmission.run();
+			else
+				LOGGER.finer("NSTART reached, queue response to "+peer.getAddress());
+		} else {
+			super.sendResponse(exchange, response);
+		}
+	}
+
+	/**
+	 * Computes the initial timeout from the RTO of the peer. The timeout is a
+	 * random number between RTO and (RTO * ACK_RANDOM_FACTOR).
+	 */
+	@Override
+	protected int getInitialTimeout(Exchange exchange, Message message) {
+		int rto = (int) getRemoteEndpoint(message).getRTO();
+		float ack_random_factor = config.getSnapshot().getAckRandomFactor();
+		return getRandomTimeout(rto, (int) (rto*ack_random_factor));
+	}
+
+	/**
+	 * Computes the timeout of the next retransmission with the variable
+	 * back-off factor of the peer.
+	 */
+	@Override
+	protected int getBackoffTimeout(Exchange exchange, Message message) {
+		float vbf = getRemoteEndpoint(message).getBackoffFactor();
+		return (int) (vbf * exchange.getCurrentTimeout());
+	}
+
+	/**
+	 * Gets the number of peers for which this layer holds state.
+	 *
+	 * @return the number of peers
+	 */
+	public int getRemoteEndpointCount() {
+		return remoteEndpoints.size();
+	}
+
+	/**
+	 * Gets the state of the peer the specified message is sent to.
+	 *
+	 * @param message the message
+	 * @return the state of the peer
+	 */
+	protected RemoteEndpoint getRemoteEndpoint(Message message) {
+		InetSocketAddress address = new InetSocketAddress(message.getDestination(), message.getDestinationPort());
+		RemoteEndpoint peer = remoteEndpoints.get(address);
+		if (peer == null) {
+			if (remoteEndpoints.size() >= MAX_REMOTE_ENDPOINTS)
+				purgeIdleRemoteEndpoints();
+			peer = new RemoteEndpoint(address, config.getSnapshot().getAckTimeout());
+			RemoteEndpoint previous = remoteEndpoints.putIfAbsent(address, peer);
+			if (previous != null)
+				peer = previous;
+		}
+		return peer;
+	}
+
+	/*
+	 * Returns true if the message is confirmable and sent for the first time.
+	 * Retransmissions already hold a slot of the peer.
+	 */
+	private boolean isNewConfirmable(Exchange exchange, Message message) {
+		return message.getType() == Type.CON && exchange.getFailedTransmissionCount() == 0;
+	}
+
+	/*
+	 * Removes the peers that have neither messages in transit nor queued and
+	 * that have not been active for the exchange lifecycle.
+	 */
+	private void purgeIdleRemoteEndpoints() {
+		long threshold = System.currentTimeMillis() - config.getSnapshot().getExchangeLifecycle();
+		Iterator<RemoteEndpoint> it = remoteEndpoints.values().iterator();
+		while (it.hasNext()) {
+			RemoteEndpoint peer = it.next();
+			if (peer.isIdle() && peer.getLastActivity() < threshold)
+				it.remove();
+		}
+	}
+
+	/*
+	 * Measures the RTT of a confirmable message and frees its slot once the
+	 * message is no longer in transit. A message that is canceled while it is
+	 * queued frees the slot as soon as it is handed to it.
+	 */
+	private class TransmissionObserver extends MessageObserverAdapter {
+
+		private final RemoteEndpoint peer;
+		private final AtomicBoolean released = new AtomicBoolean();
+		private volatile boolean sent;
+		private volatile long start;
+		private volatile int retransmissions;
+
+		private TransmissionObserver(RemoteEndpoint peer) {
+			this.peer = peer;
+		}
+
+		/*
+		 * Called when the message holds a slot. Returns true if the message
+		 * is to be sent or false if it has been canceled in the meantime.
+		 */
+		private boolean sent(Message message) {
+			start = System.currentTimeMillis();
+			sent = true;
+			if (message.isCanceled()) {
+				release();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void onRetransmission() {
+			retransmissions++;
+		}
+
+		@Override
+		public void onAcknowledgement() {
+			if (sent && !released.get())
+				peer.updateRTO(System.currentTimeMillis() - start, retransmissions);
+			release();
+		}
+
+		@Override
+		public void onReject() {
+			release();
+		}
+
+		@Override
+		public void onTimeout() {
+			release();
+		}
+
+		@Override
+		public void onCancel() {
+			release();
+		}
+
+		private void release() {
+			if (sent && released.compareAndSet(false, true)) {
+				final Runnable next = peer.release();
+				if (next == null) return;
+				if (executor != null)
+					executor.execute(next);
+				else next.run();
+			}
+		}
+	}
+}
@@ -9,6 +9,7 @@ import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
 import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.timer.TimerService;
 import ch.ethz.inf.vs.californium.server.MessageDeliverer;
 
 /**
@@ -113,6 +114,13 @@ public interface Layer {
 	 */
 	public void setExecutor(ScheduledExecutorService executor);
 	
+	/**
+	 * Sets the timer service to schedule delayed tasks, e.g., retransmissions.
+	 *
+	 * @param timer the new timer service
+	 */
+	public void setTimer(TimerService timer);
+	
 	
 	/**
 	 * A builder that constructs the stack from the top to the bottom. The
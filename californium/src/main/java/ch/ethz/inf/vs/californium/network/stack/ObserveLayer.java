@@ -138,7 +138,7 @@ public class ObserveLayer extends AbstractLayer {
 	private void prepareReregistration(Exchange exchange, Response response, ReregistrationTask task) {
 		long timeout = response.getOptions().getMaxAge()*1000 + this.backoff;
 		LOGGER.finest("Scheduling re-registration in " + timeout + "ms for " + exchange.getRequest());
-		ScheduledFuture<?> f = executor.schedule(task , timeout, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> f = timer.schedule(task , timeout, TimeUnit.MILLISECONDS);
 		exchange.setReregistrationHandle(f);
 	}
 	
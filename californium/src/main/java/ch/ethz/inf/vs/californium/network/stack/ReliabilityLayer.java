@@ -13,7 +13,7 @@ import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Exchange;
 import ch.ethz.inf.vs.californium.network.Exchange.Origin;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
-import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigSnapshot;
 
 /**
  * The reliability layer 
@@ -68,6 +68,9 @@ public class ReliabilityLayer extends AbstractLayer {
 	public void sendResponse(final Exchange exchange, final Response response) {
 
 		LOGGER.finer("Send response, failed transmissions: "+exchange.getFailedTransmissionCount());
+		
+		// The response makes the automatic accept obsolete
+		exchange.setAcceptHandle(null);
 
 		// If a response type is set, we do not mess around with it.
 		// Only if none is set, we have to decide for one here.
@@ -76,14 +79,17 @@ public class ReliabilityLayer extends AbstractLayer {
 		if (respType == null) {
 			Type reqType = exchange.getCurrentRequest().getType();
 			if (reqType == Type.CON) {
-				if (exchange.getCurrentRequest().isAcknowledged()) {
-					// send separate response
-					response.setType(Type.CON);
-				} else {
-					exchange.getCurrentRequest().setAcknowledged(true);
-					// send piggy-backed response
-					response.setType(Type.ACK);
-					response.setMID(exchange.getCurrentRequest().getMID());
+				// the automatic accept might acknowledge the request concurrently
+				synchronized (exchange) {
+					if (exchange.getCurrentRequest().isAcknowledged()) {
+						// send separate response
+						response.setType(Type.CON);
+					} else {
+						exchange.getCurrentRequest().setAcknowledged(true);
+						// send piggy-backed response
+						response.setType(Type.ACK);
+						response.setMID(exchange.getCurrentRequest().getMID());
+					}
 				}
 			} else {
 				// send NON response
@@ -123,19 +129,57 @@ public class ReliabilityLayer extends AbstractLayer {
 		 */
 		int timeout;
 		if (exchange.getFailedTransmissionCount() == 0) {
-			int ack_timeout = config.getInt(NetworkConfigDefaults.ACK_TIMEOUT);
-			float ack_random_factor = config.getFloat(NetworkConfigDefaults.ACK_RANDOM_FACTOR);
-			timeout = getRandomTimeout(ack_timeout, (int) (ack_timeout*ack_random_factor));
+			timeout = getInitialTimeout(exchange, task.message);
 		} else {
-			int ack_timeout_scale = config.getInt(NetworkConfigDefaults.ACK_TIMEOUT_SCALE);
-			timeout = ack_timeout_scale * exchange.getCurrentTimeout();
+			timeout = getBackoffTimeout(exchange, task.message);
 		}
 		exchange.setCurrentTimeout(timeout);
 		
-		ScheduledFuture<?> f = executor.schedule(task , timeout, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> f = timer.schedule(task , timeout, TimeUnit.MILLISECONDS);
 		exchange.setRetransmissionHandle(f);
 	}
 	
+	/**
+	 * Computes the timeout for the first transmission of the specified
+	 * confirmable message. The timeout is a random number between
+	 * ACK_TIMEOUT and (ACK_TIMEOUT * ACK_RANDOM_FACTOR).
+	 * 
+	 * @param exchange the exchange
+	 * @param message the message
+	 * @return the timeout in milliseconds
+	 */
+	protected int getInitialTimeout(Exchange exchange, Message message) {
+		NetworkConfigSnapshot values = config.getSnapshot();
+		int ack_timeout = values.getAckTimeout();
+		float ack_random_factor = values.getAckRandomFactor();
+		return getRandomTimeout(ack_timeout, (int) (ack_timeout*ack_random_factor));
+	}
+	
+	/**
+	 * Computes the timeout for the next retransmission of the specified
+	 * confirmable message. The timeout is the current timeout of the exchange
+	 * multiplied by ACK_TIMEOUT_SCALE.
+	 * 
+	 * @param exchange the exchange
+	 * @param message the message
+	 * @return the timeout in milliseconds
+	 */
+	protected int getBackoffTimeout(Exchange exchange, Message message) {
+		int ack_timeout_scale = config.getSnapshot().getAckTimeoutScale();
+		return ack_timeout_scale * exchange.getCurrentTimeout();
+	}
+	
+	/**
+	 * Cancels the automatic accept of the current request when the server
+	 * acknowledges or rejects it with an empty message.
+	 */
+	@Override
+	public void sendEmptyMessage(Exchange exchange, EmptyMessage message) {
+		if (exchange.getOrigin() == Origin.REMOTE)
+			exchange.setAcceptHandle(null);
+		super.sendEmptyMessage(exchange, message);
+	}
+	
 	/**
 	 * When we receive a duplicate of a request, we stop it here and do not
 	 * forward it to the upper layer. If the server has already sent a response,
@@ -175,9 +219,40 @@ public class ReliabilityLayer extends AbstractLayer {
 		} else {
 			// Request is not a duplicate
 			exchange.setCurrentRequest(request);
+			if (request.getType() == Type.CON)
+				prepareAccept(exchange, request);
 			super.receiveRequest(exchange, request);
 		}
 	}
+	
+	/**
+	 * Schedules an empty ACK for the specified confirmable request in case the
+	 * server does not respond within AUTO_ACCEPT_DELAY. The response then
+	 * follows as separate response and the client stops retransmitting the
+	 * request in the meantime. The exchange keeps the handle of the timer so
+	 * that a response or an empty ACK or RST cancels it.
+	 * 
+	 * @param exchange the exchange
+	 * @param request the request
+	 */
+	private void prepareAccept(final Exchange exchange, final Request request) {
+		final long delay = config.getSnapshot().getAutoAcceptDelay();
+		if (delay <= 0)
+			return;
+		ScheduledFuture<?> f = timer.schedule(new Runnable() {
+			public void run() {
+				synchronized (exchange) {
+					if (exchange.getResponse() != null || request.isAcknowledged()
+							|| request.isRejected() || request.isCanceled())
+						return;
+					LOGGER.fine("No response after "+delay+" ms, send empty ACK");
+					request.setAcknowledged(true);
+					sendEmptyMessage(exchange, EmptyMessage.newACK(request));
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		exchange.setAcceptHandle(f);
+	}
 
 	/**
 	 * When we receive a Confirmable response, we acknowledge it and it also
@@ -244,7 +319,7 @@ public class ReliabilityLayer extends AbstractLayer {
 	 * @param max the max
 	 * @return a random value between min and max
 	 */
-	private int getRandomTimeout(int min, int max) {
+	protected int getRandomTimeout(int min, int max) {
 		if (min == max) return min;
 		return min + rand.nextInt(max - min);
 	}
@@ -288,7 +363,7 @@ public class ReliabilityLayer extends AbstractLayer {
 					LOGGER.finest("Timeout: canceled (MID="+message.getMID()+"), do not retransmit");
 					return;
 					
-				} else if (failedCount <= config.getInt(NetworkConfigDefaults.MAX_RETRANSMIT)) {
+				} else if (failedCount <= config.getSnapshot().getMaxRetransmit()) {
 					LOGGER.finer("Timeout: retransmit message, failed: "+failedCount+", message: "+message);
 					
 					// Trigger MessageObservers
@@ -0,0 +1,221 @@
+package ch.ethz.inf.vs.californium.network.stack;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * A RemoteEndpoint holds the congestion control state of a peer. It counts
+ * the confirmable messages that are in transit to the peer, queues the
+ * messages that exceed NSTART and estimates the retransmission timeout (RTO)
+ * from round-trip time measurements as CoCoA (draft-ietf-core-cocoa)
+ * describes it.
+ * <p>
+ * CoCoA keeps two RTT estimators. The strong estimator learns from messages
+ * that have been acknowledged without retransmission, the weak estimator from
+ * messages that needed one or two retransmissions. Both feed into the overall
+ * RTO, the weak one with a lower weight. An RTO that has not been updated for
+ * a while ages towards the default ACK_TIMEOUT.
+ */
+public class RemoteEndpoint {
+
+	/** The upper limit of the RTO in milliseconds */
+	public static final long MAX_RTO = 32000;
+
+	private final InetSocketAddress address;
+
+	/** The initial RTO that the RTO ages towards */
+	private final long initialRTO;
+
+	private final Estimator strong = new Estimator(4);
+	private final Estimator weak = new Estimator(1);
+
+	/** The overall RTO in milliseconds */
+	private long rto;
+
+	/** The time of the last RTO update */
+	private long lastUpdate;
+
+	/** The number of confirmable messages in transit */
+	private int outstanding;
+
+	/** The transmissions that wait for a free slot */
+	private final Queue<Runnable> queue = new LinkedList<Runnable>();
+
+	/** The time of the last activity */
+	private long lastActivity;
+
+	/**
+	 * Instantiates the state of a new peer.
+	 *
+	 * @param address the address of the peer
+	 * @param initialRTO the initial RTO in milliseconds, usually ACK_TIMEOUT
+	 */
+	public RemoteEndpoint(InetSocketAddress address, long initialRTO) {
+		this.address = address;
+		this.initialRTO = initialRTO;
+		this.rto = initialRTO;
+		this.lastUpdate = System.currentTimeMillis();
+		this.lastActivity = lastUpdate;
+	}
+
+	/**
+	 * Gets the address of the peer.
+	 *
+	 * @return the address
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Takes a slot for a new confirmable message if less than the specified
+	 * number of messages are in transit. Otherwise, the specified transmission
+	 * is queued and runs once a slot becomes free.
+	 *
+	 * @param nstart the maximum number of messages in transit
+	 * @param transmission the transmission to queue if no slot is free
+	 * @return true if the message can be sent right away
+	 */
+	public synchronized boolean acquire(int nstart, Runnable transmission) {
+		lastActivity = System.currentTimeMillis();
+		if (outstanding < nstart) {
+			outstanding++;
+			return true;
+		}
+		queue.add(transmission);
+		return false;
+	}
+
+	/**
+	 * Frees the slot of a message that is no longer in transit and hands it to
+	 * the next queued transmission, if any.
+	 *
+	 * @return the transmission that takes over the slot or null
+	 */
+	public synchronized Runnable release() {
+		lastActivity = System.currentTimeMillis();
+		Runnable next = queue.poll();
+		if (next == null)
+			outstanding--;
+		return next;
+	}
+
+	/**
+	 * Gets the number of confirmable messages in transit.
+	 *
+	 * @return the number of outstanding messages
+	 */
+	public synchronized int getOutstandingCount() {
+		return outstanding;
+	}
+
+	/**
+	 * Gets the number of transmissions that wait for a free slot.
+	 *
+	 * @return the queue size
+	 */
+	public synchronized int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns true if no message is in transit or queued.
+	 *
+	 * @return true if idle
+	 */
+	public synchronized boolean isIdle() {
+		return outstanding == 0 && queue.isEmpty();
+	}
+
+	/**
+	 * Gets the time of the last activity.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public synchronized long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Updates the RTO with the specified round-trip time.
+	 *
+	 * @param rtt the time between the first transmission and the reply
+	 * @param retransmissions the number of retransmissions
+	 */
+	public synchronized void updateRTO(long rtt, int retransmissions) {
+		if (retransmissions == 0) {
+			rto = (strong.update(rtt) + rto) / 2;
+		} else if (retransmissions <= 2) {
+			rto = (weak.update(rtt) + 3 * rto) / 4;
+		} else {
+			return; // the measurement is too ambiguous
+		}
+		rto = Math.max(1, Math.min(rto, MAX_RTO));
+		lastUpdate = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the current RTO. A small RTO that has not been updated for 16 times
+	 * its value doubles and a large RTO that has not been updated for 4 times
+	 * its value moves halfway towards the initial RTO.
+	 *
+	 * @return the RTO in milliseconds
+	 */
+	public synchronized long getRTO() {
+		long now = System.currentTimeMillis();
+		if (rto < 1000 && now - lastUpdate > 16 * rto) {
+			rto = Math.min(2 * rto, initialRTO);
+			lastUpdate = now;
+		} else if (rto > 3000 && now - lastUpdate > 4 * rto) {
+			rto = (initialRTO + rto) / 2;
+			lastUpdate = now;
+		}
+		return rto;
+	}
+
+	/**
+	 * Gets the variable back-off factor that the timeout of a retransmission is
+	 * multiplied with. Peers with a small RTO back off faster.
+	 *
+	 * @return the back-off factor
+	 */
+	public synchronized float getBackoffFactor() {
+		if (rto < 1000) return 3f;
+		else if (rto > 3000) return 1.5f;
+		else return 2f;
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteEndpoint["+address+", rto="+rto+", outstanding="+outstanding+"]";
+	}
+
+	/*
+	 * An RTT estimator as in RFC 6298 with the specified factor K for the
+	 * variance.
+	 */
+	private static final class Estimator {
+
+		private final int k;
+		private long srtt;
+		private long rttvar;
+		private boolean initialized;
+
+		private Estimator(int k) {
+			this.k = k;
+		}
+
+		private long update(long rtt) {
+			if (!initialized) {
+				srtt = rtt;
+				rttvar = rtt / 2;
+				initialized = true;
+			} else {
+				rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+				srtt = (7 * srtt + rtt) / 8;
+			}
+			return srtt + k * rttvar;
+		}
+	}
+}
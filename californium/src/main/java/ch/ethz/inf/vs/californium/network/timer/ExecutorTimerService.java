@@ -0,0 +1,30 @@
+package ch.ethz.inf.vs.californium.network.timer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This timer service schedules every task directly on the executor of the
+ * endpoint.
+ */
+public class ExecutorTimerService implements TimerService {
+
+	private ScheduledExecutorService executor;
+
+	@Override
+	public void start() { }
+
+	@Override
+	public void stop() { }
+
+	@Override
+	public void setExecutor(ScheduledExecutorService executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return executor.schedule(task, delay, unit);
+	}
+}
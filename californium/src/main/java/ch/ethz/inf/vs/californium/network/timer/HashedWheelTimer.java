@@ -0,0 +1,373 @@
+package ch.ethz.inf.vs.californium.network.timer;
+
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.network.PeerAffinityExecutor;
+
+/**
+ * A timer service backed by a hashed timing wheel. The wheel is an array of
+ * buckets, each of which holds a doubly linked list of timeouts. A single
+ * periodic task on the executor advances the wheel by one bucket per tick and
+ * hands the expired timeouts to the executor. Linking and unlinking a node
+ * takes O(1), independent of the number of pending timeouts. The price is that
+ * tasks expire with the granularity of a tick.
+ * <p>
+ * Only the ticker touches the wheel. Scheduling a task puts its timeout into a
+ * lock-free queue and canceling a task only changes the state of its timeout
+ * and, if it is already in the wheel, puts it into a second queue. The ticker
+ * drains both queues before it advances the wheel. Thus, threads that
+ * schedule and cancel tasks never contend for a lock with each other or with
+ * the ticker.
+ * <p>
+ * A timeout that lies further ahead than one revolution of the wheel remembers
+ * the number of remaining rounds and is skipped until it reaches zero.
+ */
+public class HashedWheelTimer implements TimerService {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(HashedWheelTimer.class.getCanonicalName());
+
+	/** The states of a timeout */
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+	private static final int DONE = 3;
+
+	/** The maximum number of new timeouts the ticker links per tick */
+	private static final int MAX_NEW_TIMEOUTS_PER_TICK = 100000;
+
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+	/** The duration of a tick in milliseconds */
+	private final long tickDuration;
+
+	/** The duration of a tick in nanoseconds */
+	private final long tickNanos;
+
+	/** The first timeout of each bucket or null, guarded by itself */
+	private final Timeout[] wheel;
+
+	/** The timeouts that have been scheduled but are not in the wheel yet */
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	/** The timeouts that have been canceled while in the wheel */
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	/** The mask to map a tick to its bucket */
+	private final int mask;
+
+	/** The time of tick 0 in nanoseconds */
+	private final long startTime;
+
+	/** The next tick to process */
+	private long tick;
+
+	/** The number of pending timeouts */
+	private final AtomicInteger size = new AtomicInteger();
+
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> ticker;
+	private boolean started;
+
+	/**
+	 * Instantiates a new timer with the specified tick duration and number of
+	 * buckets. The number of buckets is rounded up to a power of two.
+	 *
+	 * @param tickDuration the tick duration in milliseconds
+	 * @param wheelSize the number of buckets
+	 */
+	public HashedWheelTimer(long tickDuration, int wheelSize) {
+		if (tickDuration < 1)
+			throw new IllegalArgumentException("Tick duration must be at least 1 ms but was "+tickDuration);
+		if (wheelSize < 1)
+			throw new IllegalArgumentException("Wheel size must be at least 1 but was "+wheelSize);
+		int size = 1;
+		while (size < wheelSize)
+			size <<= 1;
+		this.tickDuration = tickDuration;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+	}
+
+	@Override
+	public synchronized void start() {
+		if (started) return;
+		if (executor == null)
+			throw new IllegalStateException("Timer has no executor to tick");
+		started = true;
+		ticker = executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				expireTimeouts();
+			}
+		}, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!started) return;
+		started = false;
+		ticker.cancel(false);
+		ticker = null;
+	}
+
+	@Override
+	public synchronized void setExecutor(ScheduledExecutorService executor) {
+		boolean wasStarted = started;
+		stop();
+		this.executor = executor;
+		if (wasStarted)
+			start();
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		if (task == null)
+			throw new NullPointerException();
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		ScheduledExecutorService executor = this.executor;
+		if (executor instanceof PeerAffinityExecutor)
+			// expire the timeout on the lane that has scheduled it
+			timeout.executor = ((PeerAffinityExecutor) executor).getCurrentLane();
+		size.incrementAndGet();
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Gets the number of pending timeouts.
+	 *
+	 * @return the number of pending timeouts
+	 */
+	public int getPendingCount() {
+		return size.get();
+	}
+
+	/**
+	 * Gets the tick duration in milliseconds.
+	 *
+	 * @return the tick duration
+	 */
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * Gets the number of buckets.
+	 *
+	 * @return the wheel size
+	 */
+	public int getWheelSize() {
+		return wheel.length;
+	}
+
+	/*
+	 * Removes the canceled timeouts from the wheel, links the new ones and
+	 * processes all ticks up to now and executes the expired timeouts. The
+	 * loop catches up on ticks that have been delayed. The lock is only
+	 * contended if a restart of the ticker overlaps a running tick.
+	 */
+	private void expireTimeouts() {
+		Timeout expired = null;
+		synchronized (wheel) {
+			Timeout timeout;
+			while ((timeout = cancelledTimeouts.poll()) != null) {
+				if (timeout.bucket >= 0)
+					unlink(timeout);
+			}
+			for (int i=0;i<MAX_NEW_TIMEOUTS_PER_TICK;i++) {
+				timeout = newTimeouts.poll();
+				if (timeout == null)
+					break;
+				if (timeout.state != PENDING)
+					continue; // canceled before it was linked
+				// round up so that the task never expires too early
+				long target = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos);
+				timeout.rounds = (target - tick) / wheel.length;
+				timeout.bucket = (int) (target & mask);
+				link(timeout);
+			}
+
+			long now = (System.nanoTime() - startTime) / tickNanos;
+			for (; tick <= now; tick++) {
+				timeout = wheel[(int) (tick & mask)];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.state != PENDING) {
+						// canceled in the meantime
+						unlink(timeout);
+					} else if (timeout.rounds <= 0) {
+						unlink(timeout);
+						if (STATE.compareAndSet(timeout, PENDING, EXPIRED)) {
+							size.decrementAndGet();
+							timeout.next = expired;
+							expired = timeout;
+						}
+					} else {
+						timeout.rounds--;
+					}
+					timeout = next;
+				}
+			}
+		}
+
+		while (expired != null) {
+			Timeout timeout = expired;
+			expired = timeout.next;
+			timeout.next = null;
+			try {
+				if (timeout.executor != null)
+					timeout.executor.execute(timeout);
+				else executor.execute(timeout);
+			} catch (RejectedExecutionException e) {
+				LOGGER.log(Level.WARNING, "Executor rejected expired task", e);
+			}
+		}
+	}
+
+	private void link(Timeout timeout) {
+		Timeout head = wheel[timeout.bucket];
+		timeout.next = head;
+		if (head != null)
+			head.prev = timeout;
+		wheel[timeout.bucket] = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else wheel[timeout.bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+	}
+
+	/*
+	 * Cancels the timeout if it is still pending. The ticker removes it from
+	 * the wheel with the next tick.
+	 */
+	private boolean cancel(Timeout timeout) {
+		if (!STATE.compareAndSet(timeout, PENDING, CANCELLED))
+			return false;
+		size.decrementAndGet();
+		cancelledTimeouts.add(timeout);
+		return true;
+	}
+
+	/**
+	 * A timeout is a node in the list of a bucket and the future of its task.
+	 */
+	private final class Timeout implements ScheduledFuture<Object>, Runnable {
+
+		private final Runnable task;
+		private final long deadline;
+		private Executor executor;
+		/* only accessed by the ticker, the bucket is -1 when not linked */
+		private long rounds;
+		private int bucket = -1;
+		private Timeout prev;
+		private Timeout next;
+
+		/* changed by compare-and-set from PENDING to CANCELLED or EXPIRED, not
+		 * private so that the field updater can access it */
+		volatile int state = PENDING;
+		private Throwable failure;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				failure = t;
+				LOGGER.log(Level.WARNING, "Exception in timer task", t);
+			} finally {
+				synchronized (this) {
+					state = DONE;
+					notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (HashedWheelTimer.this.cancel(this)) {
+				synchronized (this) {
+					notifyAll();
+				}
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		@Override
+		public boolean isDone() {
+			return state == CANCELLED || state == DONE;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+
+		@Override
+		public synchronized Object get() throws InterruptedException, ExecutionException {
+			while (!isDone())
+				wait();
+			return getResult();
+		}
+
+		@Override
+		public synchronized Object get(long time, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			long end = System.nanoTime() + unit.toNanos(time);
+			while (!isDone()) {
+				long left = end - System.nanoTime();
+				if (left <= 0)
+					throw new TimeoutException();
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+			return getResult();
+		}
+
+		private Object getResult() throws ExecutionException {
+			if (state == CANCELLED)
+				throw new CancellationException();
+			if (failure != null)
+				throw new ExecutionException(failure);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package ch.ethz.inf.vs.californium.network.timer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TimerService schedules the delayed tasks of an endpoint, e.g.,
+ * retransmissions, re-registrations and the periodic tasks of the
+ * deduplicator. The tasks are executed on the executor of the endpoint.
+ * <p>
+ * The endpoint creates its timer service with the {@link TimerServiceFactory}.
+ */
+public interface TimerService {
+
+	/**
+	 * Starts the timer service. Tasks that have been scheduled before are
+	 * executed once the timer service has started.
+	 */
+	public void start();
+
+	/**
+	 * Stops the timer service. The timer service should NOT drop the tasks
+	 * that have not expired yet.
+	 */
+	public void stop();
+
+	/**
+	 * Sets the executor that executes the tasks. This method might call
+	 * stop(), replace the executor and then start() again.
+	 *
+	 * @param executor the executor
+	 */
+	public void setExecutor(ScheduledExecutorService executor);
+
+	/**
+	 * Schedules the specified task to be executed after the specified delay.
+	 *
+	 * @param task the task
+	 * @param delay the delay
+	 * @param unit the unit of the delay
+	 * @return the future to cancel the task
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit);
+}
@@ -0,0 +1,56 @@
+package ch.ethz.inf.vs.californium.network.timer;
+
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * The timer service factory creates the timer service of a
+ * {@link CoAPEndpoint}. Its layers, matcher and deduplicator schedule their
+ * tasks on this timer service. By default, the factory creates a
+ * {@link HashedWheelTimer}.
+ */
+public class TimerServiceFactory {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(TimerServiceFactory.class.getCanonicalName());
+
+	/** The factory. */
+	private static TimerServiceFactory factory;
+
+	/**
+	 * Returns the installed timer service factory.
+	 * @return the timer service factory
+	 */
+	public static TimerServiceFactory getTimerServiceFactory() {
+		if (factory == null) factory = new TimerServiceFactory();
+		return factory;
+	}
+
+	/**
+	 * Installs the specified timer service factory.
+	 * @param factory the factory
+	 */
+	public static void setTimerServiceFactory(TimerServiceFactory factory) {
+		TimerServiceFactory.factory = factory;
+	}
+
+	/**
+	 * Creates a new timer service according to the specified configuration.
+	 * @param config the configuration
+	 * @return the timer service
+	 */
+	public TimerService createTimerService(NetworkConfig config) {
+		String type = config.getString(NetworkConfigDefaults.TIMER);
+		if (NetworkConfigDefaults.TIMER_HASHED_WHEEL.equals(type))
+			return new HashedWheelTimer(config.getLong(NetworkConfigDefaults.TIMER_TICK_DURATION),
+					config.getInt(NetworkConfigDefaults.TIMER_WHEEL_SIZE));
+		else if (NetworkConfigDefaults.TIMER_EXECUTOR.equals(type)) return new ExecutorTimerService();
+		else {
+			LOGGER.warning("Unknown timer type: " + type);
+			return new ExecutorTimerService();
+		}
+	}
+}
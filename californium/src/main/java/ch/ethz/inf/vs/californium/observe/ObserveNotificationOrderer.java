@@ -4,7 +4,6 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
-import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
 
 /**
  * The ObservingNotificationOrderer holds the state of an observe relation such
@@ -85,8 +84,7 @@ public class ObserveNotificationOrderer {
 		long T2 = System.currentTimeMillis();
 		int V1 = getCurrent();
 		int V2 = response.getOptions().getObserve();
-		int notifMaxAge = NetworkConfig.getStandard()
-				.getInt(NetworkConfigDefaults.NOTIFICATION_MAX_AGE);
+		long notifMaxAge = NetworkConfig.getStandard().getSnapshot().getNotificationMaxAge();
 		if (V1 < V2 && V2 - V1 < 1<<23
 				|| V1 > V2 && V1 - V2 > 1<<23
 				|| T2 > T1 + notifMaxAge) {
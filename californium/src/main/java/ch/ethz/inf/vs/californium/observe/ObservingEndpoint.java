@@ -2,22 +2,28 @@ package ch.ethz.inf.vs.californium.observe;
 
 import java.net.InetSocketAddress;
 import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class represents an observing endpoint. It holds all observe relations
  * that the endpoint has to this server. If a confirmable notification timeouts
  * for the maximum times allowed the server assumes the client is no longer
  * reachable and cancels all relations that it has established to resources.
+ * <p>
+ * The relations are indexed by the token of the request that has established
+ * them, so that a cancellation finds its relation in constant time. Since the
+ * token identifies the relation, a new relation with the same token replaces
+ * and cancels the former one.
  */
 public class ObservingEndpoint {
 	
+	private static final byte[] EMPTY_TOKEN = new byte[0];
+	
 	/** The endpoint's address */
 	private final InetSocketAddress address;
 
-	/** The list of relations the endpoint has established with this server */
-	private final List<ObserveRelation> relations;
+	/** The relations the endpoint has established with this server by token */
+	private final ConcurrentHashMap<Token, ObserveRelation> relations;
 	
 	/**
 	 * Constructs a new ObservingEndpoint.
@@ -25,15 +31,18 @@ public class ObservingEndpoint {
 	 */
 	public ObservingEndpoint(InetSocketAddress address) {
 		this.address = address;
-		this.relations = new CopyOnWriteArrayList<ObserveRelation>();
+		this.relations = new ConcurrentHashMap<Token, ObserveRelation>();
 	}
 	
 	/**
-	 * Adds the specified observe relation.
+	 * Adds the specified observe relation. A former relation with the same
+	 * token is canceled.
 	 * @param relation the relation
 	 */
 	public void addObserveRelation(ObserveRelation relation) {
-		relations.add(relation);
+		ObserveRelation previous = relations.put(getToken(relation), relation);
+		if (previous != null && previous != relation)
+			previous.cancel();
 	}
 	
 	/**
@@ -41,7 +50,7 @@ public class ObservingEndpoint {
 	 * @param relation the relation
 	 */
 	public void removeObserveRelation(ObserveRelation relation) {
-		relations.remove(relation);
+		relations.remove(getToken(relation), relation);
 	}
 	
 	/**
@@ -49,7 +58,7 @@ public class ObservingEndpoint {
 	 * resources from this server.
 	 */
 	public void cancelAll() {
-		for (ObserveRelation relation:relations)
+		for (ObserveRelation relation:relations.values())
 			relation.cancel();
 	}
 
@@ -61,13 +70,53 @@ public class ObservingEndpoint {
 		return address;
 	}
 
+	/**
+	 * Returns the observe relation that has been established with the
+	 * specified token or null.
+	 * @param token the token
+	 * @return the relation or null
+	 */
 	public ObserveRelation getObserveRelation(byte[] token) {
-		for (ObserveRelation relation:relations) {
-			if (Arrays.equals(relation.getExchange().getRequest().getToken(), token)) {
-				return relation;
-			}
+		return relations.get(new Token(token != null ? token : EMPTY_TOKEN));
+	}
+	
+	/**
+	 * Gets the number of observe relations of this endpoint.
+	 * @return the number of relations
+	 */
+	public int getObserveRelationCount() {
+		return relations.size();
+	}
+	
+	private static Token getToken(ObserveRelation relation) {
+		byte[] token = relation.getExchange().getRequest().getToken();
+		return new Token(token != null ? token : EMPTY_TOKEN);
+	}
+	
+	/*
+	 * A token as key of the relation map.
+	 */
+	private static final class Token {
+		
+		private final byte[] token;
+		private final int hash;
+		
+		private Token(byte[] token) {
+			this.token = token;
+			this.hash = Arrays.hashCode(token);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (! (o instanceof Token))
+				return false;
+			return Arrays.equals(token, ((Token) o).token);
 		}
-		return null;
 	}
 	
 	/*
@@ -0,0 +1,167 @@
+package ch.ethz.inf.vs.californium.server;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.ethz.inf.vs.californium.observe.ObserveRelation;
+import ch.ethz.inf.vs.californium.server.resources.Resource;
+import ch.ethz.inf.vs.californium.server.resources.ResourceObserver;
+
+/**
+ * The route table mirrors a resource tree as a trie of path segments so that
+ * the {@link ServerMessageDeliverer} finds the target resource of a request
+ * with one map lookup per segment and without copying the path. The table
+ * registers a {@link ResourceObserver} with every resource of the tree and
+ * follows the children that are added and removed.
+ * <p>
+ * A child with the name {@link #WILDCARD} or a template name in braces, e.g.,
+ * <code>{id}</code>, matches any segment for which its parent has no child
+ * with the exact name. If neither matches, the lookup falls back to
+ * {@link Resource#getChild(String)}, so that resources that override it to
+ * accept requests to subresources keep working.
+ */
+public class RouteTable {
+
+	/** The name of a child that matches any segment */
+	public static final String WILDCARD = "*";
+
+	/** The node of the root resource */
+	private final Node root;
+
+	/**
+	 * Constructs a new route table for the tree below the specified root.
+	 *
+	 * @param root the root resource
+	 */
+	public RouteTable(Resource root) {
+		if (root == null)
+			throw new NullPointerException();
+		this.root = new Node(root);
+		this.root.attach();
+	}
+
+	/**
+	 * Searches the resource with the specified path.
+	 *
+	 * @param path the path as list of resource names
+	 * @return the resource or null if not found
+	 */
+	public Resource findResource(List<String> path) {
+		Node node = root;
+		Resource current = root.resource;
+		for (String name:path) {
+			if (node != null) {
+				node = node.getChild(name, current);
+				if (node != null) {
+					current = node.resource;
+					continue;
+				}
+			}
+			// the table does not know the child, ask the resource itself
+			current = current.getChild(name);
+			if (current == null)
+				return null;
+		}
+		return current;
+	}
+
+	/**
+	 * Returns true if the specified name matches any segment.
+	 *
+	 * @param name the name
+	 * @return true if the name is a wildcard or template
+	 */
+	public static boolean isWildcard(String name) {
+		return WILDCARD.equals(name)
+				|| (name.length() > 1 && name.charAt(0) == '{' && name.charAt(name.length() - 1) == '}');
+	}
+
+	/**
+	 * A node of the trie. It observes its resource to follow its children.
+	 */
+	private static final class Node implements ResourceObserver {
+
+		private final Resource resource;
+
+		/* created when the first child is added */
+		private volatile ConcurrentHashMap<String, Node> children;
+
+		private volatile Node wildcard;
+
+		private Node(Resource resource) {
+			this.resource = resource;
+		}
+
+		/*
+		 * Returns the node of the child with the specified name or the
+		 * wildcard node. The node must still be a child of the specified
+		 * parent, otherwise the table is not up to date and null is returned.
+		 */
+		private Node getChild(String name, Resource parent) {
+			ConcurrentHashMap<String, Node> children = this.children;
+			if (children != null) {
+				Node child = children.get(name);
+				if (child != null && child.resource.getParent() == parent)
+					return child;
+			}
+			Node child = wildcard;
+			if (child != null && child.resource.getParent() == parent)
+				return child;
+			return null;
+		}
+
+		private void attach() {
+			resource.addObserver(this);
+			for (Resource child:resource.getChildren())
+				addChild(child);
+		}
+
+		private void detach() {
+			resource.removeObserver(this);
+			ConcurrentHashMap<String, Node> children = this.children;
+			if (children != null)
+				for (Node child:children.values())
+					child.detach();
+		}
+
+		private synchronized void addChild(Resource child) {
+			if (children == null)
+				children = new ConcurrentHashMap<String, Node>();
+			Node node = new Node(child);
+			Node previous = children.put(child.getName(), node);
+			if (previous != null)
+				previous.detach();
+			if (isWildcard(child.getName()))
+				wildcard = node;
+			node.attach();
+		}
+
+		private synchronized void removeChild(Resource child) {
+			if (children == null)
+				return;
+			Node node = children.get(child.getName());
+			if (node != null && node.resource == child) {
+				children.remove(child.getName());
+				if (wildcard == node)
+					wildcard = null;
+				node.detach();
+			}
+		}
+
+		@Override
+		public void addedChild(Resource child) {
+			addChild(child);
+		}
+
+		@Override
+		public void removedChild(Resource child) {
+			removeChild(child);
+		}
+
+		// the parent re-adds the child under its new name
+		@Override public void changedName(String old) { }
+		@Override public void changedPath(String old) { }
+		@Override public void addedObserveRelation(ObserveRelation relation) { }
+		@Override public void removedObserveRelation(ObserveRelation relation) { }
+	}
+}
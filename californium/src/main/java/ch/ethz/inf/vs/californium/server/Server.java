@@ -14,6 +14,7 @@ import java.util.logging.Logger;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
 import ch.ethz.inf.vs.californium.network.Endpoint;
+import ch.ethz.inf.vs.californium.network.PeerAffinityExecutor;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
 import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
@@ -122,8 +123,10 @@ public class Server implements ServerInterface {
 		} else {
 			this.config = NetworkConfig.getStandard();
 		}
-		this.executor = Executors.newScheduledThreadPool(
-				config.getInt(NetworkConfigDefaults.SERVER_THRESD_NUMER));
+		int threads = this.config.getInt(NetworkConfigDefaults.SERVER_THRESD_NUMER);
+		if (this.config.getBoolean(NetworkConfigDefaults.EXECUTOR_PEER_AFFINITY))
+			this.executor = new PeerAffinityExecutor(threads);
+		else this.executor = Executors.newScheduledThreadPool(threads);
 		this.deliverer = new ServerMessageDeliverer(root);
 		
 		ResourceBase well_known = new ResourceBase(".well-known");
@@ -31,7 +31,6 @@
 package ch.ethz.inf.vs.californium.server;
 
 import java.net.InetSocketAddress;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.logging.Logger;
@@ -56,6 +55,9 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 
 	/* The root of all resources */
 	private final Resource root;
+	
+	/* The route table that mirrors the resource tree */
+	private final RouteTable routes;
 
 	/* The manager of the observe mechanism for this server */
 	private ObserveManager observeManager = new ObserveManager();
@@ -66,6 +68,7 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 	 */
 	public ServerMessageDeliverer(Resource root) {
 		this.root = root;
+		this.routes = new RouteTable(root);
 	}
 
 	/* (non-Javadoc)
@@ -135,19 +138,14 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 	/**
 	 * Searches in the resource tree for the specified path. A parent resource
 	 * may accept requests to subresources, e.g., to allow addresses with
-	 * wildcards like <code>coap://example.com:5683/devices/*</code>
+	 * wildcards like <code>coap://example.com:5683/devices/*</code>. The
+	 * search uses the {@link RouteTable} that mirrors the resource tree.
 	 * 
-	 * @param list the path as list of resource names
+	 * @param path the path as list of resource names
 	 * @return the resource or null if not found
 	 */
-	private Resource findResource(List<String> list) {
-		LinkedList<String> path = new LinkedList<String>(list);
-		Resource current = root;
-		while (!path.isEmpty() && current != null) {
-			String name = path.removeFirst();
-			current = current.getChild(name);
-		}
-		return current;
+	private Resource findResource(List<String> path) {
+		return routes.findResource(path);
 	}
 
 	/* (non-Javadoc)
@@ -0,0 +1,302 @@
+package ch.ethz.inf.vs.californium.server.resources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import ch.ethz.inf.vs.californium.coap.LinkFormat;
+import ch.ethz.inf.vs.californium.observe.ObserveRelation;
+
+/**
+ * An AttributeIndex is an inverted index over the {@link ResourceAttributes}
+ * of all resources below a root resource. It maps the values of each
+ * attribute, e.g., <tt>rt</tt>, <tt>if</tt>, <tt>ct</tt> or <tt>obs</tt>, and
+ * the parts of values that consist of several space-separated parts to the
+ * resources that carry them. It also maps the path of each resource to the
+ * resource, so that a filtered discovery such as <tt>?rt=temperature</tt> or
+ * <tt>?href=/sensors/*</tt> only touches the resources that may match.
+ * <p>
+ * The index observes all resources of the tree and their attributes and
+ * updates the entry of a resource whenever it is added, removed, renamed or
+ * its attributes are modified. The resources that the index finds for a query
+ * are verified with {@link LinkFormat#matches(Resource, List)}, so that the
+ * result is the same as when matching all resources of the tree.
+ */
+public class AttributeIndex {
+
+	/** Orders resources by their path */
+	private static final Comparator<Resource> PATH_ORDER = new Comparator<Resource>() {
+		public int compare(Resource r1, Resource r2) {
+			return r1.getURI().compareTo(r2.getURI());
+		}
+	};
+
+	/** The entries of all resources of the tree */
+	private final ConcurrentHashMap<Resource, Entry> entries;
+
+	/** The resources by attribute name and value */
+	private final ConcurrentHashMap<String, ConcurrentSkipListMap<String, Set<Resource>>> values;
+
+	/** The resources by path */
+	private final ConcurrentSkipListMap<String, Set<Resource>> paths;
+
+	/**
+	 * Constructs a new index over all resources below the specified root. The
+	 * root resource itself is not part of the index.
+	 *
+	 * @param root the root resource
+	 */
+	public AttributeIndex(Resource root) {
+		if (root == null)
+			throw new NullPointerException();
+		this.entries = new ConcurrentHashMap<Resource, Entry>();
+		this.values = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, Set<Resource>>>();
+		this.paths = new ConcurrentSkipListMap<String, Set<Resource>>();
+		Entry entry = new Entry(root, false);
+		root.addObserver(entry);
+		for (Resource child:root.getChildren())
+			attach(child);
+	}
+
+	/**
+	 * Finds the resources that match the specified queries as
+	 * {@link LinkFormat#matches(Resource, List)} defines it. The resources are
+	 * ordered by their path.
+	 *
+	 * @param queries the queries
+	 * @return the matching resources
+	 */
+	public List<Resource> find(List<String> queries) {
+		Set<Resource> candidates = new HashSet<Resource>();
+		for (String query:queries) {
+			int delim = query.indexOf('=');
+			if (delim == -1) {
+				// flag attribute, every resource with a value matches
+				collect(values.get(query), null, candidates);
+
+			} else {
+				String name = query.substring(0, delim);
+				String expected = query.substring(delim+1);
+
+				if (name.equals(LinkFormat.LINK)) {
+					if (expected.endsWith("*")) {
+						collect(paths, expected.substring(0, expected.length()-1), candidates);
+					} else {
+						addAll(paths.get(expected), candidates);
+					}
+				} else {
+					ConcurrentSkipListMap<String, Set<Resource>> index = values.get(name);
+					int prefixLength = expected.indexOf('*');
+					if (prefixLength >= 0)
+						collect(index, expected.substring(0, prefixLength), candidates);
+					if (index != null)
+						addAll(index.get(expected), candidates);
+				}
+			}
+		}
+
+		List<Resource> resources = new ArrayList<Resource>(candidates.size());
+		for (Resource resource:candidates) {
+			if (LinkFormat.matches(resource, queries))
+				resources.add(resource);
+		}
+		Collections.sort(resources, PATH_ORDER);
+		return resources;
+	}
+
+	/**
+	 * Gets the number of resources in the index.
+	 *
+	 * @return the number of resources
+	 */
+	public int getSize() {
+		return entries.size();
+	}
+
+	/*
+	 * Adds the resources of all keys with the specified prefix or of all keys
+	 * if the prefix is null.
+	 */
+	private static void collect(ConcurrentSkipListMap<String, Set<Resource>> index, String prefix, Set<Resource> candidates) {
+		if (index == null) return;
+		Collection<Set<Resource>> sets;
+		if (prefix == null) sets = index.values();
+		else sets = index.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values();
+		for (Set<Resource> resources:sets)
+			candidates.addAll(resources);
+	}
+
+	private static void addAll(Set<Resource> resources, Set<Resource> candidates) {
+		if (resources != null)
+			candidates.addAll(resources);
+	}
+
+	/*
+	 * Adds the specified resource and its subtree to the index.
+	 */
+	private void attach(Resource resource) {
+		Entry entry = new Entry(resource, true);
+		Entry previous = entries.put(resource, entry);
+		if (previous != null)
+			previous.unregister();
+		resource.addObserver(entry);
+		resource.getAttributes().addObserver(entry);
+		entry.update();
+		for (Resource child:resource.getChildren())
+			attach(child);
+	}
+
+	/*
+	 * Removes the specified resource and its subtree from the index.
+	 */
+	private void detach(Resource resource) {
+		Entry entry = entries.remove(resource);
+		if (entry != null)
+			entry.unregister();
+		for (Resource child:resource.getChildren())
+			detach(child);
+	}
+
+	private static void put(ConcurrentSkipListMap<String, Set<Resource>> index, String key, Resource resource) {
+		Set<Resource> resources = index.get(key);
+		if (resources == null) {
+			resources = Collections.newSetFromMap(new ConcurrentHashMap<Resource, Boolean>());
+			index.put(key, resources);
+		}
+		resources.add(resource);
+	}
+
+	private static void remove(ConcurrentSkipListMap<String, Set<Resource>> index, String key, Resource resource) {
+		Set<Resource> resources = index.get(key);
+		if (resources != null) {
+			resources.remove(resource);
+			if (resources.isEmpty())
+				index.remove(key);
+		}
+	}
+
+	/*
+	 * The entry of a resource remembers the keys under which the resource is
+	 * indexed and observes the resource and its attributes. The keys are only
+	 * modified while holding the lock of the index but observers are added and
+	 * removed without it, since resources invoke their observers while they
+	 * hold their own lock.
+	 */
+	private final class Entry implements ResourceObserver, ResourceAttributesObserver {
+
+		private final Resource resource;
+
+		/* false for the root, which observes its children only */
+		private final boolean indexed;
+
+		private String path;
+
+		/* pairs of attribute name and value */
+		private final List<String[]> keys = new ArrayList<String[]>();
+
+		private Entry(Resource resource, boolean indexed) {
+			this.resource = resource;
+			this.indexed = indexed;
+		}
+
+		/*
+		 * Indexes the resource under its current path and attribute values.
+		 */
+		private void update() {
+			synchronized (AttributeIndex.this) {
+				if (entries.get(resource) != this) return;
+				clear();
+				path = resource.getPath() + resource.getName();
+				put(paths, path, resource);
+
+				ResourceAttributes attributes = resource.getAttributes();
+				for (String name:attributes.getAttributeKeySet()) {
+					ConcurrentSkipListMap<String, Set<Resource>> index = values.get(name);
+					if (index == null) {
+						index = new ConcurrentSkipListMap<String, Set<Resource>>();
+						values.put(name, index);
+					}
+					for (String value:new ArrayList<String>(attributes.getAttributeValues(name))) {
+						index(index, name, value);
+						// handle case like rt="Type1 Type2"
+						if (value.indexOf(' ') > -1) {
+							for (String part:value.split(" "))
+								index(index, name, part);
+						}
+					}
+				}
+			}
+		}
+
+		private void index(ConcurrentSkipListMap<String, Set<Resource>> index, String name, String value) {
+			put(index, value, resource);
+			keys.add(new String[] {name, value});
+		}
+
+		private void clear() {
+			if (path != null) {
+				remove(paths, path, resource);
+				path = null;
+			}
+			for (String[] key:keys) {
+				ConcurrentSkipListMap<String, Set<Resource>> index = values.get(key[0]);
+				if (index != null) {
+					remove(index, key[1], resource);
+					if (index.isEmpty())
+						values.remove(key[0]);
+				}
+			}
+			keys.clear();
+		}
+
+		private void unregister() {
+			resource.removeObserver(this);
+			resource.getAttributes().removeObserver(this);
+			synchronized (AttributeIndex.this) {
+				clear();
+			}
+		}
+
+		@Override
+		public void changedAttributes(ResourceAttributes attributes) {
+			if (indexed) update();
+		}
+
+		@Override
+		public void changedName(String old) {
+			if (indexed) update();
+		}
+
+		@Override
+		public void changedPath(String old) {
+			if (indexed) update();
+		}
+
+		@Override
+		public void addedChild(Resource child) {
+			// a child with the same name might have been replaced
+			Set<Resource> resources = paths.get(child.getPath() + child.getName());
+			if (resources != null) {
+				for (Resource previous:resources) {
+					if (previous != child && previous.getParent() == resource)
+						detach(previous);
+				}
+			}
+			attach(child);
+		}
+
+		@Override
+		public void removedChild(Resource child) {
+			detach(child);
+		}
+
+		@Override public void addedObserveRelation(ObserveRelation relation) { }
+		@Override public void removedObserveRelation(ObserveRelation relation) { }
+	}
+}
@@ -30,6 +30,8 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.server.resources;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 
 import ch.ethz.inf.vs.californium.coap.CoAP.Code;
@@ -127,6 +129,18 @@ public class CoapExchange {
 		return exchange.getRequest().getPayloadString();
 	}
 	
+	/**
+	 * Gets the request payload as stream. A large payload that has been
+	 * uploaded in blocks is read from its buffer without copying it into a
+	 * single array.
+	 *
+	 * @return the request payload stream
+	 * @throws IOException if the payload buffer cannot be read
+	 */
+	public InputStream getRequestPayloadStream() throws IOException {
+		return exchange.getRequest().getPayloadStream();
+	}
+	
 	/**
 	 * Accept the exchange, i.e. send an acknowledgment to the client that the
 	 * exchange has arrived and a separate message is being computed and sent
@@ -253,7 +267,19 @@ public class CoapExchange {
 	public void respond(Response response) {
 		if (response == null) throw new NullPointerException();
 		
-		// set the response options configured through the CoapExchange API
+		prepareResponse(response);
+		
+		resource.checkObserveRelation(exchange, response);
+		
+		exchange.sendResponse(response);
+	}
+	
+	/**
+	 * Sets the response options configured through the CoapExchange API.
+	 *
+	 * @param response the response
+	 */
+	void prepareResponse(Response response) {
 		if (locationPath != null) response.getOptions().setLocationPath(locationPath);
 		if (locationQuery != null) response.getOptions().setLocationQuery(locationQuery);
 		if (maxAge != 60) response.getOptions().setMaxAge(maxAge);
@@ -261,10 +287,6 @@ public class CoapExchange {
 			response.getOptions().clearETags();
 			response.getOptions().addETag(eTag);
 		}
-		
-		resource.checkObserveRelation(exchange, response);
-		
-		exchange.sendResponse(response);
 	}
 	
 	/**
@@ -1,24 +1,56 @@
 package ch.ethz.inf.vs.californium.server.resources;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import ch.ethz.inf.vs.californium.coap.CoAP;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.LinkFormat;
 import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.observe.ObserveRelation;
 
 /**
  * The DiscoveryResource implements CoAP's discovery service. It is typically
  * accessible over CoAP on the well-known URI: <tt>/.well-known/core</tt>. It
  * responds to GET requests with a list of the server's resources, i.e. links.
+ * <p>
+ * The resource caches the encoded list for each query and the link of each
+ * resource. It observes the resources below its root with a
+ * {@link ResourceObserver} and their attributes with a
+ * {@link ResourceAttributesObserver}. It invalidates the lists when one of
+ * these resources is added, removed or renamed or its attributes are
+ * modified. Changes to resources of another tree, e.g., of another server,
+ * leave the lists intact. Only the links of the modified resources are
+ * serialized again. Block-wise requests for a
+ * large list are served from the cache as well.
+ * <p>
+ * Filtered lists, e.g., for <tt>?rt=temperature</tt>, are built from an
+ * {@link AttributeIndex} so that only the matching resources are visited.
  */
 public class DiscoveryResource extends ResourceBase {
 
 	/** The Constant CORE. */
 	public static final String CORE = "core";
 	
+	/** The maximum number of lists for different queries in the cache */
+	private static final int MAX_CACHED_DOCUMENTS = 64;
+	
 	/** The root of the server's resource tree */
 	private final Resource root;
 	
+	/** Counts the changes of the resources below the root */
+	private final AtomicLong treeVersion = new AtomicLong();
+	
+	/** The encoded lists by query */
+	private final ConcurrentHashMap<String, Document> documents = new ConcurrentHashMap<String, Document>();
+	
+	/** The index over the attributes of the resources */
+	private final AttributeIndex index;
+	
+	/** The serialized links by resource */
+	private final ConcurrentHashMap<Resource, Link> links = new ConcurrentHashMap<Resource, Link>();
+	
 	/**
 	 * Instantiates a new discovery resource.
 	 *
@@ -37,6 +69,8 @@ public class DiscoveryResource extends ResourceBase {
 	public DiscoveryResource(String name, Resource root) {
 		super(name);
 		this.root = root;
+		this.index = new AttributeIndex(root);
+		new TreeObserver().attach(root);
 	}
 	
 	/**
@@ -46,10 +80,29 @@ public class DiscoveryResource extends ResourceBase {
 	 */
 	@Override
 	public void handleGET(CoapExchange exchange) {
-		String tree = discoverTree(root, exchange.getRequestOptions().getURIQueries());
+		byte[] tree = getDocument(exchange.getRequestOptions().getURIQueries());
 		exchange.respond(ResponseCode.CONTENT, tree, MediaTypeRegistry.APPLICATION_LINK_FORMAT);
 	}
 	
+	/*
+	 * Returns the encoded list for the specified queries from the cache or
+	 * builds it up if the resources of the tree have changed since.
+	 */
+	private byte[] getDocument(List<String> queries) {
+		String key = queries.isEmpty() ? "" : queries.toString();
+		// read the version before the tree so that concurrent changes invalidate the list
+		long tree = treeVersion.get();
+		Document document = documents.get(key);
+		if (document != null && document.treeVersion == tree)
+			return document.bytes;
+		
+		byte[] bytes = discoverTree(root, queries).getBytes(CoAP.UTF8_CHARSET);
+		if (documents.size() >= MAX_CACHED_DOCUMENTS)
+			documents.clear();
+		documents.put(key, new Document(bytes, tree));
+		return bytes;
+	}
+	
 	/**
 	 * Builds up the list of resources of the specified root resource. Queries
 	 * serve as filter and might prevent undesired resources from appearing on
@@ -61,8 +114,17 @@ public class DiscoveryResource extends ResourceBase {
 	 */
 	public String discoverTree(Resource root, List<String> queries) {
 		StringBuilder buffer = new StringBuilder();
-		for (Resource child:root.getChildren()) {
-			LinkFormat.serializeTree(child, queries, buffer);
+		boolean cached = root == this.root;
+		if (cached && queries != null && !queries.isEmpty()) {
+			// look up the matching resources in the index
+			for (Resource resource:index.find(queries)) {
+				if (resource.isVisible())
+					buffer.append(getLink(resource));
+			}
+		} else {
+			for (Resource child:root.getChildren()) {
+				serializeTree(child, queries, buffer, cached);
+			}
 		}
 		
 		// remove last comma ',' of the buffer
@@ -71,4 +133,123 @@ public class DiscoveryResource extends ResourceBase {
 		
 		return buffer.toString();
 	}
+	
+	/*
+	 * Same as LinkFormat.serializeTree() but takes the links from the cache.
+	 */
+	private void serializeTree(Resource resource, List<String> queries, StringBuilder buffer, boolean cached) {
+		if (resource.isVisible() && LinkFormat.matches(resource, queries)) {
+			if (cached) buffer.append(getLink(resource));
+			else buffer.append(LinkFormat.serializeResource(resource));
+		}
+		
+		for (Resource child:resource.getChildren()) {
+			serializeTree(child, queries, buffer, cached);
+		}
+	}
+	
+	/*
+	 * Returns the link of the specified resource from the cache or serializes
+	 * it again if its path, name or attributes have changed.
+	 */
+	private String getLink(Resource resource) {
+		long version = resource.getAttributes().getVersion();
+		String path = resource.getPath();
+		String name = resource.getName();
+		Link link = links.get(resource);
+		if (link != null && link.version == version && equals(link.path, path) && equals(link.name, name))
+			return link.link;
+		
+		String serialized = LinkFormat.serializeResource(resource).toString();
+		links.put(resource, new Link(serialized, path, name, version));
+		return serialized;
+	}
+	
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	/*
+	 * An encoded list of links for a query.
+	 */
+	private static final class Document {
+		
+		private final byte[] bytes;
+		private final long treeVersion;
+		
+		private Document(byte[] bytes, long treeVersion) {
+			this.bytes = bytes;
+			this.treeVersion = treeVersion;
+		}
+	}
+	
+	/*
+	 * The serialized link of a resource.
+	 */
+	private static final class Link {
+		
+		private final String link;
+		private final String path;
+		private final String name;
+		private final long version;
+		
+		private Link(String link, String path, String name, long version) {
+			this.link = link;
+			this.path = path;
+			this.name = name;
+			this.version = version;
+		}
+	}
+	
+	/*
+	 * Observes all resources of the tree and their attributes and counts the
+	 * changes. It forgets the links of removed resources.
+	 */
+	private final class TreeObserver implements ResourceObserver, ResourceAttributesObserver {
+		
+		private void attach(Resource resource) {
+			resource.addObserver(this);
+			resource.getAttributes().addObserver(this);
+			for (Resource child:resource.getChildren())
+				attach(child);
+		}
+		
+		private void detach(Resource resource) {
+			resource.removeObserver(this);
+			resource.getAttributes().removeObserver(this);
+			links.remove(resource);
+			for (Resource child:resource.getChildren())
+				detach(child);
+		}
+		
+		@Override
+		public void addedChild(Resource child) {
+			attach(child);
+			treeVersion.incrementAndGet();
+		}
+		
+		@Override
+		public void removedChild(Resource child) {
+			detach(child);
+			treeVersion.incrementAndGet();
+		}
+		
+		@Override
+		public void changedName(String old) {
+			treeVersion.incrementAndGet();
+		}
+		
+		@Override
+		public void changedPath(String old) {
+			treeVersion.incrementAndGet();
+		}
+		
+		@Override
+		public void changedAttributes(ResourceAttributes attributes) {
+			treeVersion.incrementAndGet();
+		}
+		
+		@Override public void addedObserveRelation(ObserveRelation relation) { }
+		@Override public void removedObserveRelation(ObserveRelation relation) { }
+	}
 }
@@ -36,6 +36,8 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ch.ethz.inf.vs.californium.coap.LinkFormat;
 
@@ -48,14 +50,24 @@ import ch.ethz.inf.vs.californium.coap.LinkFormat;
  */
 public class ResourceAttributes {
 	
+	/** Counts the modifications of all resource attributes. */
+	private static final AtomicLong MODIFICATIONS = new AtomicLong();
+	
 	/** Contains the resource's attributes specified in the CoRE Link Format. */
 	private final ConcurrentMap<String, AttributeValues> attributes;
 	
+	/** The modification count of the last modification of these attributes. */
+	private volatile long version;
+	
+	/** The observers of these attributes. */
+	private final List<ResourceAttributesObserver> observers;
+	
 	/**
 	 * Instantiates a new resource attributes.
 	 */
 	public ResourceAttributes() {
 		attributes = new ConcurrentHashMap<String, AttributeValues>();
+		observers = new CopyOnWriteArrayList<ResourceAttributesObserver>();
 	}
 	
 	/**
@@ -87,6 +99,7 @@ public class ResourceAttributes {
 	 */
 	public void setTitle(String title) {
 		findAttributeValues(LinkFormat.TITLE).setOnly(title);
+		setModified();
 	}
 	
 	/**
@@ -96,6 +109,7 @@ public class ResourceAttributes {
 	 */
 	public void addResourceType(String type) {
 		findAttributeValues(LinkFormat.RESOURCE_TYPE).add(type);
+		setModified();
 	}
 	
 	/**
@@ -103,6 +117,7 @@ public class ResourceAttributes {
 	 */
 	public void clearResourceType() {
 		attributes.remove(LinkFormat.RESOURCE_TYPE);
+		setModified();
 	}
 	
 	/**
@@ -121,6 +136,7 @@ public class ResourceAttributes {
 	 */
 	public void addInterfaceDescription(String description) {
 		findAttributeValues(LinkFormat.INTERFACE_DESCRIPTION).add(description);
+		setModified();
 	}
 	
 	/**
@@ -139,6 +155,7 @@ public class ResourceAttributes {
 	 */
 	public void setMaximumSizeEstimate(String size) {
 		findAttributeValues(LinkFormat.MAX_SIZE_ESTIMATE).setOnly(size);
+		setModified();
 	}
 	
 	/**
@@ -148,6 +165,7 @@ public class ResourceAttributes {
 	 */
 	public void setMaximumSizeEstimate(int size) {
 		findAttributeValues(LinkFormat.MAX_SIZE_ESTIMATE).setOnly(Integer.toString(size));
+		setModified();
 	}
 	
 	/**
@@ -166,6 +184,7 @@ public class ResourceAttributes {
 	 */
 	public void addContentType(int type) {
 		findAttributeValues(LinkFormat.CONTENT_TYPE).add(Integer.toString(type));
+		setModified();
 	}
 	
 	/**
@@ -182,6 +201,7 @@ public class ResourceAttributes {
 	 */
 	public void clearContentType() {
 		attributes.remove(LinkFormat.CONTENT_TYPE);
+		setModified();
 	}
 	
 	/**
@@ -189,6 +209,7 @@ public class ResourceAttributes {
 	 */
 	public void setObservable() {
 		findAttributeValues(LinkFormat.OBSERVABLE).setOnly("");
+		setModified();
 	}
 	
 	/**
@@ -209,6 +230,7 @@ public class ResourceAttributes {
 	 */
 	public void setAttribute(String attr, String value) {
 		findAttributeValues(attr).setOnly(value);
+		setModified();
 	}
 	
 	/**
@@ -229,6 +251,7 @@ public class ResourceAttributes {
 	 */
 	public void addAttribute(String attr, String value) {
 		findAttributeValues(attr).add(value);
+		setModified();
 	}
 	
 	/**
@@ -238,6 +261,7 @@ public class ResourceAttributes {
 	 */
 	public void clearAttribute(String attr) {
 		attributes.remove(attr);
+		setModified();
 	}
 	
 	/**
@@ -278,6 +302,47 @@ public class ResourceAttributes {
 		else return Collections.emptyList();
 	}
 	
+	/**
+	 * Marks these attributes as modified. The methods of this class call it
+	 * whenever they modify an attribute. Call it after modifying the
+	 * attributes through the collections this class returns or after a change
+	 * that affects the link of the resource otherwise, e.g., its visibility.
+	 */
+	public void setModified() {
+		version = MODIFICATIONS.incrementAndGet();
+		for (ResourceAttributesObserver obs:observers)
+			obs.changedAttributes(this);
+	}
+	
+	/**
+	 * Adds the specified observer that is invoked whenever these attributes
+	 * are modified.
+	 * 
+	 * @param observer the observer
+	 */
+	public void addObserver(ResourceAttributesObserver observer) {
+		observers.add(observer);
+	}
+	
+	/**
+	 * Removes the specified observer.
+	 * 
+	 * @param observer the observer
+	 */
+	public void removeObserver(ResourceAttributesObserver observer) {
+		observers.remove(observer);
+	}
+	
+	/**
+	 * Gets the modification count of the last modification of these
+	 * attributes. The value changes whenever the attributes are modified.
+	 * 
+	 * @return the version of these attributes
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
 	/**
 	 * Find the attribute values for the specified attribute.
 	 *
@@ -0,0 +1,17 @@
+package ch.ethz.inf.vs.californium.server.resources;
+
+/**
+ * A ResourceAttributesObserver can be added to the {@link ResourceAttributes}
+ * of a resource and is invoked whenever they are modified, e.g., to keep an
+ * {@link AttributeIndex} up to date.
+ */
+public interface ResourceAttributesObserver {
+
+	/**
+	 * Invoked when the attributes have been modified.
+	 * 
+	 * @param attributes the attributes
+	 */
+	public void changedAttributes(ResourceAttributes attributes);
+	
+}
@@ -33,6 +33,7 @@ package ch.ethz.inf.vs.californium.server.resources;
 import java.net.URI;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -45,6 +46,7 @@ import ch.ethz.inf.vs.californium.coap.CoAP;
 import ch.ethz.inf.vs.californium.coap.CoAP.Code;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Endpoint;
 import ch.ethz.inf.vs.californium.network.Exchange;
@@ -119,6 +121,12 @@ import ch.ethz.inf.vs.californium.server.ServerMessageDeliverer;
  * done on the executor. A CoAP observe relation between this resource and a
  * CoAP client is represented by an instance of {@link ObserveRelation}.
  * <p>
+ * If the representation of a resource does not depend on the particular
+ * request of an observer, {@link #setSharedNotifications(boolean)} lets
+ * changed() process the request of only one observer and send the same
+ * representation to all observers. The representation is then also encoded
+ * only once and each notification only gets its own header and token.
+ * <p>
  * In contrast the class {@link ResourceObserver} has nothing to do with CoAP's
  * observe mechanism but is an implementation of the general observe-pattern. A
  * ResourceObserver is invoked whenever the name or path of a resource changes,
@@ -158,6 +166,9 @@ public  class ResourceBase implements Resource {
 	/* The type used for notifications (no change when set to null) */
 	private Type observeType = null;
 	
+	/* Indicates whether all observers receive the same representation. */
+	private boolean sharedNotifications;
+	
 	/* The list of observers (not CoAP observer). */
 	private List<ResourceObserver> observers;
 
@@ -288,7 +299,11 @@ public  class ResourceBase implements Resource {
 		if (relation == null) return; // because request did not try to establish a relation
 		
 		if (CoAP.ResponseCode.isSuccess(response.getCode())) {
-			response.getOptions().setObserve(notificationOrderer.getCurrent());
+			// shared notifications already carry the current number
+			int current = notificationOrderer.getCurrent();
+			OptionSet options = response.getOptions();
+			if (!options.hasObserve() || options.getObserve().intValue() != current)
+				options.setObserve(current);
 			
 			if (!relation.isEstablished()) {
 				LOGGER.info("Successfully established observe relation between "+relation.getSource()+" and resource "+getURI());
@@ -429,8 +444,7 @@ public  class ResourceBase implements Resource {
 	 */
 	@Override
 	public synchronized boolean remove(Resource child) {
-		Resource removed = remove(child.getName());
-		if (removed == child) {
+		if (children.remove(child.getName(), child)) {
 			child.setParent(null);
 			child.setPath(null);
 			for (ResourceObserver obs : observers)
@@ -448,7 +462,10 @@ public  class ResourceBase implements Resource {
 	 * @return the removed resource or null
 	 */
 	public synchronized Resource remove(String name) {
-		return children.remove(name);
+		Resource child = children.get(name);
+		if (child != null && remove(child))
+			return child;
+		return null;
 	}
 	
 	/**
@@ -632,7 +649,10 @@ public  class ResourceBase implements Resource {
 	 * @param visible true if visible
 	 */
 	public void setVisible(boolean visible) {
-		this.visible = visible;
+		if (this.visible != visible) {
+			this.visible = visible;
+			attributes.setModified();
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -652,6 +672,30 @@ public  class ResourceBase implements Resource {
 		this.observable = observable;
 	}
 	
+	/**
+	 * Returns true if all observers receive the same representation.
+	 * 
+	 * @return true if notifications are shared
+	 */
+	public boolean isSharedNotifications() {
+		return sharedNotifications;
+	}
+	
+	/**
+	 * Defines whether all observers receive the same representation. If true,
+	 * {@link #changed()} processes the request of only one observer and sends
+	 * a copy of the response to all observers. Only enable this if the
+	 * representation does not depend on the request of the observer, e.g., on
+	 * its query or accepted content format. If the resource does not respond
+	 * right away with a successful response, the requests of all observers are
+	 * processed on their own as usual.
+	 * 
+	 * @param shared true if all observers receive the same representation
+	 */
+	public void setSharedNotifications(boolean shared) {
+		this.sharedNotifications = shared;
+	}
+	
 	/**
 	 * Sets the type of the notifications that will be sent.
 	 * If set to null (default) the type matching the request will be used.
@@ -722,10 +766,58 @@ public  class ResourceBase implements Resource {
 	 */
 	protected void notifyObserverRelations() {
 		notificationOrderer.getNextObserveNumber();
+		if (sharedNotifications && notifySharedRepresentation())
+			return;
 		for (ObserveRelation relation:observeRelations) {
 			relation.notifyObservers();
 		}
 	}
+	
+	/*
+	 * Processes the request of one observer and sends a copy of the response
+	 * to all observers. Returns false if the resource has not responded right
+	 * away with a successful response.
+	 */
+	private boolean notifySharedRepresentation() {
+		Iterator<ObserveRelation> iterator = observeRelations.iterator();
+		if (!iterator.hasNext())
+			return true;
+		
+		RenderingExchange rendering = new RenderingExchange(iterator.next().getExchange(), this);
+		handleGET(rendering);
+		Response representation = rendering.response;
+		if (representation == null || !ResponseCode.isSuccess(representation.getCode()))
+			return false;
+		
+		representation.getOptions().setObserve(notificationOrderer.getCurrent());
+		representation.setLast(false);
+		for (ObserveRelation relation:observeRelations) {
+			Exchange exchange = relation.getExchange();
+			Response response = Response.createSharedResponse(representation);
+			checkObserveRelation(exchange, response);
+			exchange.sendResponse(response);
+		}
+		return true;
+	}
+	
+	/*
+	 * A CoapExchange that keeps the response instead of sending it.
+	 */
+	private static class RenderingExchange extends CoapExchange {
+		
+		private Response response;
+		
+		private RenderingExchange(Exchange exchange, ResourceBase resource) {
+			super(exchange, resource);
+		}
+		
+		@Override
+		public void respond(Response response) {
+			if (response == null) throw new NullPointerException();
+			prepareResponse(response);
+			this.response = response;
+		}
+	}
 
 	/* (non-Javadoc)
 	 * @see ch.ethz.inf.vs.californium.server.resources.Resource#getChildren()
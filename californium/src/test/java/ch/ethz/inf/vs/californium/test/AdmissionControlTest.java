@@ -0,0 +1,194 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapHandler;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.network.AdmissionControl;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.Origin;
+import ch.ethz.inf.vs.californium.network.ExchangeObserver;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.serialization.DataParser;
+import ch.ethz.inf.vs.californium.network.serialization.Serializer;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that an endpoint that has reached the limit of active
+ * exchanges rejects new confirmable requests with 5.03 and a Max-Age and
+ * serves requests again once the active exchanges have been answered. It
+ * also checks that duplicates of admitted requests are not rejected and that
+ * exchanges that complete without a reply stop counting as active.
+ */
+public class AdmissionControlTest {
+
+	private Server server;
+	private CoAPEndpoint endpoint;
+	private SlowResource resource;
+	private String uri;
+
+	@Before
+	public void startupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfigDefaults.MAX_ACTIVE_EXCHANGES, 1);
+		endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0), config);
+		server = new Server();
+		server.addEndpoint(endpoint);
+		resource = new SlowResource("slow");
+		server.add(resource);
+		server.start();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/slow";
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testRejectWhenOverloaded() throws Exception {
+		final CountDownLatch answered = new CountDownLatch(1);
+		new CoapClient(uri).get(new CoapHandler() {
+			public void onLoad(CoapResponse response) {
+				if (response.getCode() == ResponseCode.CONTENT)
+					answered.countDown();
+			}
+			public void onError() { }
+		});
+		assertTrue(resource.received.await(2, TimeUnit.SECONDS));
+		assertEquals(1, endpoint.getAdmissionControl().getActiveCount());
+
+		CoapResponse rejected = new CoapClient(uri).setTimeout(2000).get();
+		assertNotNull(rejected);
+		assertEquals(ResponseCode.SERVICE_UNAVAILABLE, rejected.getCode());
+		assertTrue(rejected.getOptions().getMaxAge() >= 1);
+		assertEquals(1, endpoint.getAdmissionControl().getRejectedCount());
+
+		resource.pending.respond("done");
+		assertTrue(answered.await(2, TimeUnit.SECONDS));
+		assertEquals(0, endpoint.getAdmissionControl().getActiveCount());
+
+		resource.respondNow = true;
+		CoapResponse served = new CoapClient(uri).setTimeout(2000).get();
+		assertNotNull(served);
+		assertEquals(ResponseCode.CONTENT, served.getCode());
+	}
+
+	@Test
+	public void testReplayWhenOverloaded() throws Exception {
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(2000);
+		try {
+			resource.respondNow = true;
+			byte[] answered = serialize(1001);
+			byte[] response = exchange(socket, answered);
+			assertEquals(ResponseCode.CONTENT, new DataParser(response).parseResponse().getCode());
+
+			resource.respondNow = false;
+			byte[] pending = serialize(1002);
+			byte[] ack = exchange(socket, pending);
+			assertEquals(Type.ACK, new DataParser(ack).parseEmptyMessage().getType());
+			assertTrue(resource.received.await(2, TimeUnit.SECONDS));
+			assertEquals(1, endpoint.getAdmissionControl().getActiveCount());
+
+			// the endpoint is overloaded but replays the replies to duplicates
+			assertArrayEquals(response, exchange(socket, answered));
+			assertArrayEquals(ack, exchange(socket, pending));
+			assertEquals(0, endpoint.getAdmissionControl().getRejectedCount());
+
+			byte[] rejected = exchange(socket, serialize(1003));
+			assertEquals(ResponseCode.SERVICE_UNAVAILABLE, new DataParser(rejected).parseResponse().getCode());
+			assertEquals(1, endpoint.getAdmissionControl().getRejectedCount());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testReleaseOnCompletion() throws Exception {
+		AdmissionControl admission = new AdmissionControl(new NetworkConfig()
+			.setInt(NetworkConfigDefaults.MAX_ACTIVE_EXCHANGES, 1));
+		final AtomicInteger completed = new AtomicInteger();
+		Exchange exchange = new Exchange(Request.newGet(), Origin.REMOTE);
+		exchange.setObserver(new ExchangeObserver() {
+			public void completed(Exchange exchange) {
+				completed.incrementAndGet();
+			}
+		});
+
+		admission.activate(exchange);
+		admission.activate(exchange);
+		assertEquals(1, admission.getActiveCount());
+		assertTrue(admission.isOverloaded());
+
+		exchange.setComplete();
+		assertEquals(0, admission.getActiveCount());
+		assertEquals(1, completed.get());
+	}
+
+	private byte[] serialize(int mid) throws Exception {
+		Request request = Request.newGet();
+		request.setType(Type.CON);
+		request.setMID(mid);
+		request.setToken(new byte[] { (byte) mid });
+		request.getOptions().setURIPath("slow");
+		request.setDestination(InetAddress.getByName("127.0.0.1"));
+		request.setDestinationPort(endpoint.getAddress().getPort());
+		return new Serializer().serialize(request).getBytes();
+	}
+
+	private byte[] exchange(DatagramSocket socket, byte[] bytes) throws Exception {
+		socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("127.0.0.1"), endpoint.getAddress().getPort()));
+		DatagramPacket packet = new DatagramPacket(new byte[2000], 2000);
+		socket.receive(packet);
+		return Arrays.copyOf(packet.getData(), packet.getLength());
+	}
+
+	private static class SlowResource extends ResourceBase {
+
+		private final CountDownLatch received = new CountDownLatch(1);
+		private volatile CoapExchange pending;
+		private volatile boolean respondNow;
+
+		public SlowResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			if (respondNow) {
+				exchange.respond("now");
+			} else {
+				exchange.accept();
+				pending = exchange;
+				received.countDown();
+			}
+		}
+	}
+}
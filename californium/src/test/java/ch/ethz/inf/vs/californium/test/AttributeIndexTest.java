@@ -0,0 +1,86 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.server.resources.AttributeIndex;
+import ch.ethz.inf.vs.californium.server.resources.Resource;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the {@link AttributeIndex} finds the same resources as
+ * matching all resources and follows the changes of the tree.
+ */
+public class AttributeIndexTest {
+
+	private Resource root;
+	private Resource sensors;
+	private Resource temp;
+	private Resource light;
+	private AttributeIndex index;
+
+	@Before
+	public void setup() {
+		root = new ResourceBase("");
+		sensors = new ResourceBase("sensors");
+		temp = new ResourceBase("temp");
+		light = new ResourceBase("light");
+		root.add(sensors);
+		sensors.add(temp);
+		sensors.add(light);
+
+		sensors.getAttributes().setTitle("Sensor Index");
+		temp.getAttributes().addResourceType("temperature-c");
+		temp.getAttributes().addInterfaceDescription("sensor");
+		temp.getAttributes().setObservable();
+		light.getAttributes().addResourceType("light-lux light-raw");
+		light.getAttributes().addInterfaceDescription("sensor");
+		index = new AttributeIndex(root);
+	}
+
+	@Test
+	public void testFind() {
+		assertFound("rt=temperature-c", temp);
+		assertFound("rt=light-raw", light);
+		assertFound("rt=light*", light);
+		assertFound("rt=*", light, temp);
+		assertFound("if=sensor", light, temp);
+		assertFound("obs", temp);
+		assertFound("href=/sensors/*", light, temp);
+		assertFound("href=/sensors", sensors);
+		assertFound("rt=unknown");
+	}
+
+	@Test
+	public void testUpdate() {
+		temp.getAttributes().clearResourceType();
+		assertFound("rt=temperature-c");
+		temp.getAttributes().addResourceType("temperature-f");
+		assertFound("rt=temperature-f", temp);
+
+		Resource humidity = new ResourceBase("humidity");
+		humidity.getAttributes().addInterfaceDescription("sensor");
+		sensors.add(humidity);
+		assertFound("if=sensor", humidity, light, temp);
+
+		sensors.remove(light);
+		assertFound("if=sensor", humidity, temp);
+		light.getAttributes().addResourceType("temperature-f");
+		assertFound("rt=temperature-f", temp);
+
+		temp.setName("temperature");
+		assertFound("href=/sensors/temp");
+		assertFound("href=/sensors/temperature", temp);
+		assertEquals(3, index.getSize());
+	}
+
+	private void assertFound(String query, Resource... expected) {
+		List<Resource> found = index.find(Arrays.asList(query));
+		assertEquals(Arrays.asList(expected), found);
+	}
+}
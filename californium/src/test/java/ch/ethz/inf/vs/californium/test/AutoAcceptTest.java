@@ -0,0 +1,88 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ScheduledFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ConcurrentResourceBase;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the server acknowledges a confirmable request by
+ * itself when the resource does not respond within AUTO_ACCEPT_DELAY and
+ * sends the response as separate response. It also checks that a response
+ * cancels the timer of the automatic accept.
+ */
+public class AutoAcceptTest {
+
+	private Server server;
+	private String uri;
+
+	/** The accept timer of the last request to the fast resource */
+	private volatile ScheduledFuture<?> acceptHandle;
+
+	@Before
+	public void startupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		NetworkConfig config = new NetworkConfig();
+		config.setLong(NetworkConfigDefaults.AUTO_ACCEPT_DELAY, 100);
+		CoAPEndpoint endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0), config);
+		server = new Server();
+		server.addEndpoint(endpoint);
+		server.add(new ConcurrentResourceBase("slow", 1) {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) { }
+				exchange.respond("slow");
+			}
+		});
+		server.add(new ResourceBase("fast") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				acceptHandle = exchange.advanced().getAcceptHandle();
+				exchange.respond("fast");
+			}
+		});
+		server.start();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/";
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testAutoAccept() throws Exception {
+		CoapResponse slow = new CoapClient(uri+"slow").setTimeout(3000).get();
+		assertNotNull(slow);
+		assertEquals("slow", slow.getResponseText());
+		assertEquals(Type.CON, slow.advanced().getType());
+
+		CoapResponse fast = new CoapClient(uri+"fast").setTimeout(3000).get();
+		assertNotNull(fast);
+		assertEquals("fast", fast.getResponseText());
+		assertEquals(Type.ACK, fast.advanced().getType());
+		assertNotNull(acceptHandle);
+		assertTrue(acceptHandle.isCancelled());
+	}
+}
@@ -0,0 +1,115 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.stack.BlockwiseRepresentation;
+import ch.ethz.inf.vs.californium.network.stack.BlockwiseRepresentationCache;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that clients that download the same resource with the same
+ * ETag share one {@link BlockwiseRepresentation} and its blocks and that the
+ * cache counts the sliced blocks.
+ */
+public class BlockwiseRepresentationTest {
+
+	private static final byte[] ETAG = new byte[] { 1, 2, 3, 4 };
+
+	private Server server;
+	private int serverPort;
+	private String content;
+
+	@Before
+	public void setupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		StringBuilder builder = new StringBuilder();
+		for (int i=0;i<200;i++)
+			builder.append("block").append(i).append(' ');
+		content = builder.toString();
+
+		CoAPEndpoint endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0), new NetworkConfig());
+		server = new Server();
+		server.addEndpoint(endpoint);
+		server.add(new ResourceBase("large") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.setETag(ETAG);
+				exchange.respond(ResponseCode.CONTENT, content, MediaTypeRegistry.TEXT_PLAIN);
+			}
+		});
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testSharedBlocks() {
+		BlockwiseRepresentationCache cache = new BlockwiseRepresentationCache(10000);
+		byte[] payload = new byte[1000];
+		BlockwiseRepresentation representation = cache.get("/large?", ETAG, 0, payload);
+		assertNotNull(representation);
+		assertSame(representation, cache.get("/large?", ETAG, 0, new byte[1000]));
+		assertNotSame(representation, cache.get("/other?", ETAG, 0, payload));
+		assertNull(cache.get("/large?", null, 0, payload));
+		assertEquals(2, cache.getSize());
+
+		assertEquals(16, representation.getBlockCount(2));
+		assertSame(representation.getBlock(2, 3), representation.getBlock(2, 3));
+		assertEquals(1000 - 15 * 64, representation.getBlock(2, 15).length);
+		assertTrue(representation.hasMore(2, 14));
+		assertFalse(representation.hasMore(2, 15));
+		assertNull(representation.getBlock(2, 16));
+
+		// the blocks of SZX 2 are a second copy of the payload
+		assertEquals(2000, representation.getSize());
+		assertEquals(3000, cache.getBytes());
+		representation.getBlock(2, 0);
+		assertEquals(3000, cache.getBytes());
+		representation.getBlock(6, 0);
+		assertEquals(4000, cache.getBytes());
+
+		cache.get("/third?", ETAG, 0, new byte[9500]);
+		assertEquals(1, cache.getSize());
+		assertEquals(9500, cache.getBytes());
+	}
+
+	@Test
+	public void testRepeatedDownloads() throws Exception {
+		String uri = "coap://localhost:"+serverPort+"/large";
+		for (int i=0;i<3;i++) {
+			CoapResponse response = new CoapClient(uri).setTimeout(5000).get();
+			assertNotNull(response);
+			assertEquals(content, response.getResponseText());
+			assertArrayEquals(ETAG, response.getOptions().getETags().get(0));
+		}
+	}
+}
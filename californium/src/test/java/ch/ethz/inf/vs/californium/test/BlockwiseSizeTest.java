@@ -0,0 +1,186 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.EmptyMessage;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.EndpointManager.ClientMessageDeliverer;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.interceptors.MessageInterceptor;
+import ch.ethz.inf.vs.californium.network.serialization.DataParser;
+import ch.ethz.inf.vs.californium.network.serialization.Serializer;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a client announces the size of a Block1 upload in the
+ * Size1 option of the first block and that a server rejects an upload whose
+ * announced size exceeds MAX_BLOCKWISE_BYTES with 4.13 before it buffers any
+ * block. An upload without Size1 is rejected with 4.13 as soon as the
+ * buffered blocks would exceed the limit.
+ */
+public class BlockwiseSizeTest {
+
+	private static final int MAX_UPLOAD = 1000;
+
+	private Server server;
+	private CoAPEndpoint serverEndpoint;
+	private int serverPort;
+	private AtomicInteger uploads = new AtomicInteger();
+	private volatile String received;
+
+	/** The Size1 option of the first block the server has received */
+	private volatile Integer announced;
+
+	@Before
+	public void setup() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, 64)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 64)
+			.setLong(NetworkConfigDefaults.MAX_BLOCKWISE_BYTES, MAX_UPLOAD);
+		serverEndpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0), config);
+		serverEndpoint.addInterceptor(new SizeInterceptor());
+		server = new Server();
+		server.addEndpoint(serverEndpoint);
+		server.add(new ResourceBase("upload") {
+			@Override
+			public void handlePUT(CoapExchange exchange) {
+				uploads.incrementAndGet();
+				received = exchange.getRequestText();
+				exchange.respond(ResponseCode.CHANGED);
+			}
+		});
+		server.start();
+		serverPort = serverEndpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdown() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testAnnouncedSize() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i=0;i<60;i++)
+			builder.append("block ").append(i).append(' ');
+		String payload = builder.toString();
+
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, 64)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 64);
+		CoAPEndpoint clientEndpoint = new CoAPEndpoint(config);
+		clientEndpoint.setMessageDeliverer(new ClientMessageDeliverer());
+		clientEndpoint.start();
+		try {
+			CoapResponse response = new CoapClient("coap://localhost:"+serverPort+"/upload")
+				.setEndpoint(clientEndpoint).setTimeout(5000)
+				.put(payload, MediaTypeRegistry.TEXT_PLAIN);
+			assertNotNull(response);
+			assertEquals(ResponseCode.CHANGED, response.getCode());
+			assertEquals(payload, received);
+			assertEquals(Integer.valueOf(payload.length()), announced);
+		} finally {
+			clientEndpoint.destroy();
+		}
+	}
+
+	@Test
+	public void testUploadTooLarge() throws Exception {
+		Request request = createBlock(0);
+		request.getOptions().setSize1(5 * MAX_UPLOAD);
+
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(2000);
+		try {
+			Response response = exchange(socket, request);
+			assertEquals(ResponseCode.REQUEST_ENTITY_TOO_LARGE, response.getCode());
+			assertTrue(response.getOptions().hasSize1());
+			assertEquals(MAX_UPLOAD, response.getOptions().getSize1().intValue());
+			assertEquals(Integer.valueOf(5 * MAX_UPLOAD), announced);
+			assertEquals(0, uploads.get());
+			assertEquals(0, serverEndpoint.getBlockwiseStore().getBytes());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testUnannouncedUploadTooLarge() throws Exception {
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(2000);
+		try {
+			// 15 blocks of 64 bytes fit into the limit, the 16th does not
+			int num = 0;
+			for (;num<15;num++)
+				assertEquals(ResponseCode.CONTINUE, exchange(socket, createBlock(num)).getCode());
+			Response response = exchange(socket, createBlock(num));
+			assertEquals(ResponseCode.REQUEST_ENTITY_TOO_LARGE, response.getCode());
+			assertEquals(MAX_UPLOAD, response.getOptions().getSize1().intValue());
+			assertEquals(0, uploads.get());
+		} finally {
+			socket.close();
+		}
+	}
+
+	private Request createBlock(int num) throws Exception {
+		Request request = Request.newPut();
+		request.setType(Type.CON);
+		request.setMID(4711 + num);
+		request.setToken(new byte[] { 4, 7 });
+		request.getOptions().setURIPath("upload");
+		request.getOptions().setBlock1(2, true, num);
+		request.setPayload(new byte[64]);
+		request.setDestination(InetAddress.getByName("127.0.0.1"));
+		request.setDestinationPort(serverPort);
+		return request;
+	}
+
+	private Response exchange(DatagramSocket socket, Request request) throws Exception {
+		byte[] bytes = new Serializer().serialize(request).getBytes();
+		socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("127.0.0.1"), serverPort));
+		DatagramPacket packet = new DatagramPacket(new byte[2000], 2000);
+		socket.receive(packet);
+		return new DataParser(Arrays.copyOf(packet.getData(), packet.getLength())).parseResponse();
+	}
+
+	private class SizeInterceptor implements MessageInterceptor {
+
+		public void receiveRequest(Request request) {
+			if (request.getOptions().hasBlock1() && request.getOptions().getBlock1().getNum() == 0)
+				announced = request.getOptions().getSize1();
+		}
+
+		public void sendRequest(Request request) { }
+		public void sendResponse(Response response) { }
+		public void sendEmptyMessage(EmptyMessage message) { }
+		public void receiveResponse(Response response) { }
+		public void receiveEmptyMessage(EmptyMessage message) { }
+	}
+}
@@ -0,0 +1,130 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.PayloadBuffer;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.network.BlockwiseStore;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.Origin;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.stack.BlockwiseStatus;
+
+/**
+ * This test checks that the {@link BlockwiseStore} finds transfers by peer and
+ * URI, evicts the least recently used transfers beyond its limits, also when
+ * a stored transfer grows, removes idle transfers and counts the buffered
+ * bytes.
+ */
+public class BlockwiseStoreTest {
+
+	@Test
+	public void testLookupAndEviction() throws Exception {
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.MAX_BLOCKWISE_TRANSFERS, 2);
+		BlockwiseStore store = new BlockwiseStore(config);
+		InetAddress address = InetAddress.getByName("192.168.1.1");
+
+		Exchange a = createExchange("sensors/a", address, 5683);
+		Exchange b = createExchange("sensors/b", address, 5683);
+		store.put(a.getCurrentRequest(), address, 5683, a);
+		store.put(b.getCurrentRequest(), address, 5683, b);
+		assertSame(a, store.get(createRequest("sensors/a", address, 5683), address, 5683));
+		assertNull(store.get(createRequest("sensors/a", address, 5684), address, 5684));
+		assertNull(store.get(createRequest("sensors/a?x", address, 5683), address, 5683));
+		assertEquals(2, store.getSize());
+
+		// a has been used more recently than b
+		Exchange c = createExchange("sensors/c", address, 5683);
+		store.put(c.getCurrentRequest(), address, 5683, c);
+		assertEquals(2, store.getSize());
+		assertEquals(1, store.getEvictedCount());
+		assertTrue(b.isComplete());
+		assertFalse(a.isComplete());
+		assertNull(store.get(b.getCurrentRequest(), address, 5683));
+
+		store.remove(a.getCurrentRequest(), address, 5683, c);
+		assertSame(a, store.get(a.getCurrentRequest(), address, 5683));
+		store.remove(a.getCurrentRequest(), address, 5683, a);
+		assertEquals(1, store.getSize());
+	}
+
+	@Test
+	public void testBytesAndExpiry() throws Exception {
+		NetworkConfig config = new NetworkConfig()
+			.setLong(NetworkConfigDefaults.BLOCKWISE_STATUS_LIFETIME, 50);
+		BlockwiseStore store = new BlockwiseStore(config);
+		InetAddress address = InetAddress.getByName("192.168.1.1");
+
+		Exchange exchange = createExchange("upload", address, 5683);
+		BlockwiseStatus status = new BlockwiseStatus(0);
+		PayloadBuffer buffer = new PayloadBuffer(0, Integer.MAX_VALUE);
+		status.setBuffer(buffer);
+		exchange.setRequestBlockStatus(status);
+		store.put(exchange.getCurrentRequest(), address, 5683, exchange);
+		status.addBlock(new byte[100]);
+		store.get(exchange.getCurrentRequest(), address, 5683);
+		assertEquals(100, store.getBytes());
+
+		Thread.sleep(100);
+		store.sweep();
+		assertEquals(0, store.getSize());
+		assertEquals(0, store.getBytes());
+		assertEquals(1, store.getExpiredCount());
+		assertTrue(exchange.isComplete());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void testEvictionWhenGrowing() throws Exception {
+		NetworkConfig config = new NetworkConfig()
+			.setLong(NetworkConfigDefaults.MAX_BLOCKWISE_BYTES, 250);
+		BlockwiseStore store = new BlockwiseStore(config);
+		InetAddress address = InetAddress.getByName("192.168.1.1");
+
+		Exchange a = createExchange("upload/a", address, 5683);
+		BlockwiseStatus status = new BlockwiseStatus(0);
+		status.setBuffer(new PayloadBuffer(0, Integer.MAX_VALUE));
+		status.addBlock(new byte[100]);
+		a.setRequestBlockStatus(status);
+		store.put(a.getCurrentRequest(), address, 5683, a);
+		Exchange b = createExchange("upload/b", address, 5683);
+		store.put(b.getCurrentRequest(), address, 5683, b);
+		assertEquals(100, store.getBytes());
+
+		// the next block of b does not fit next to a
+		Request block = createRequest("upload/b", address, 5683);
+		block.setPayload(new byte[200]);
+		assertSame(b, store.get(block, address, 5683));
+		assertEquals(1, store.getSize());
+		assertEquals(1, store.getEvictedCount());
+		assertEquals(0, store.getBytes());
+		assertTrue(a.isComplete());
+		assertFalse(b.isComplete());
+	}
+
+	private static Exchange createExchange(String uri, InetAddress address, int port) {
+		return new Exchange(createRequest(uri, address, port), Origin.REMOTE);
+	}
+
+	private static Request createRequest(String uri, InetAddress address, int port) {
+		Request request = new Request(Code.PUT);
+		String[] parts = uri.split("\\?");
+		request.getOptions().setURIPath(parts[0]);
+		if (parts.length > 1)
+			request.getOptions().setURIQuery(parts[1]);
+		request.setSource(address);
+		request.setSourcePort(port);
+		return request;
+	}
+}
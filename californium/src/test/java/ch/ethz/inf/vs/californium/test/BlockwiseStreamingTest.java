@@ -0,0 +1,166 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.CoapStreamHandler;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.EmptyMessage;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.EndpointManager.ClientMessageDeliverer;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.interceptors.MessageInterceptor;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a client streams the blocks of a large response to a
+ * {@link CoapStreamHandler} in order, that it delivers the end of the response
+ * without payload and that the handler can cancel the download.
+ */
+public class BlockwiseStreamingTest {
+
+	private static final int BLOCK_SIZE = 256;
+
+	private Server server;
+	private int serverPort;
+	private CoAPEndpoint clientEndpoint;
+	private String content;
+
+	/** The number of requests the client has sent */
+	private AtomicInteger requests = new AtomicInteger();
+
+	@Before
+	public void setup() throws IOException {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		StringBuilder builder = new StringBuilder();
+		for (int i=0;i<700;i++)
+			builder.append(i % 10 == 0 ? '\n' : ' ').append(i);
+		content = builder.toString();
+
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, BLOCK_SIZE)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, BLOCK_SIZE);
+		CoAPEndpoint serverEndpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0), config);
+		server = new Server();
+		server.addEndpoint(serverEndpoint);
+		server.add(new ResourceBase("large") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CONTENT, content, MediaTypeRegistry.TEXT_PLAIN);
+			}
+		});
+		server.start();
+		serverPort = serverEndpoint.getAddress().getPort();
+
+		clientEndpoint = new CoAPEndpoint();
+		clientEndpoint.setMessageDeliverer(new ClientMessageDeliverer());
+		clientEndpoint.addInterceptor(new RequestCounter());
+		clientEndpoint.start();
+	}
+
+	@After
+	public void shutdown() {
+		clientEndpoint.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testStreamedDownload() throws Exception {
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final AtomicInteger blocks = new AtomicInteger();
+		final AtomicReference<CoapResponse> end = new AtomicReference<CoapResponse>();
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/large")
+			.setEndpoint(clientEndpoint).useExecutor();
+		client.stream(new CoapStreamHandler() {
+			public boolean onBlock(CoapResponse block) {
+				assertEquals(blocks.getAndIncrement(), block.getOptions().getBlock2().getNum());
+				assertTrue(block.getPayload().length <= BLOCK_SIZE);
+				received.write(block.getPayload(), 0, block.getPayload().length);
+				return true;
+			}
+			public void onLoad(CoapResponse response) {
+				end.set(response);
+				latch.countDown();
+			}
+			public void onError() {
+				latch.countDown();
+			}
+		});
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertNotNull(end.get());
+		assertEquals(ResponseCode.CONTENT, end.get().getCode());
+		assertEquals(0, end.get().getPayload().length);
+		assertEquals((content.length() + BLOCK_SIZE - 1) / BLOCK_SIZE, blocks.get());
+		assertEquals(content, new String(received.toByteArray()));
+	}
+
+	@Test
+	public void testCanceledDownload() throws Exception {
+		final AtomicInteger blocks = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<CoapResponse> end = new AtomicReference<CoapResponse>();
+
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/large")
+			.setEndpoint(clientEndpoint);
+		client.stream(new CoapStreamHandler() {
+			public boolean onBlock(CoapResponse block) {
+				if (blocks.incrementAndGet() < 2)
+					return true;
+				latch.countDown();
+				return false;
+			}
+			public void onLoad(CoapResponse response) {
+				end.set(response);
+			}
+			public void onError() { }
+		});
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		assertEquals(2, blocks.get());
+		assertEquals(2, requests.get());
+		assertNull(end.get());
+	}
+
+	private class RequestCounter implements MessageInterceptor {
+
+		public void sendRequest(Request request) {
+			requests.incrementAndGet();
+		}
+
+		public void receiveResponse(Response response) { }
+		public void sendResponse(Response response) { }
+		public void sendEmptyMessage(EmptyMessage message) { }
+		public void receiveRequest(Request request) { }
+		public void receiveEmptyMessage(EmptyMessage message) { }
+	}
+}
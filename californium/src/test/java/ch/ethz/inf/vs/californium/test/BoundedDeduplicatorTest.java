@@ -0,0 +1,85 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
+import ch.ethz.inf.vs.californium.network.Exchange.Origin;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.deduplication.BoundedDeduplicator;
+
+/**
+ * This test checks that the {@link BoundedDeduplicator} keeps only the reply
+ * of a completed exchange and evicts the oldest records beyond its limits.
+ */
+public class BoundedDeduplicatorTest {
+
+	private static final byte[] ADDRESS = new byte[] {127, 0, 0, 1};
+	private static final int PORT = 5683;
+
+	private BoundedDeduplicator deduplicator;
+
+	@Before
+	public void setup() {
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfigDefaults.MAX_DEDUPLICATOR_ENTRIES, 3);
+		config.setLong(NetworkConfigDefaults.MAX_DEDUPLICATOR_BYTES, 0);
+		deduplicator = new BoundedDeduplicator(config);
+	}
+
+	@Test
+	public void testCompaction() {
+		KeyMID key = new KeyMID(1, ADDRESS, PORT);
+		Exchange exchange = newExchange(1);
+		assertNull(deduplicator.findPrevious(key, exchange));
+		assertSame(exchange, deduplicator.find(key));
+		assertNull(deduplicator.findReply(key));
+
+		byte[] bytes = new byte[] {0x60, 0x45, 0, 1};
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.ACK);
+		response.setMID(1);
+		response.setBytes(bytes);
+		exchange.setCurrentResponse(response);
+		exchange.setComplete();
+
+		assertNull(deduplicator.find(key));
+		assertArrayEquals(bytes, deduplicator.findReply(key));
+		assertEquals(BoundedDeduplicator.RECORD_OVERHEAD + bytes.length, deduplicator.getBytes());
+	}
+
+	@Test
+	public void testEviction() {
+		for (int mid = 1; mid <= 5; mid++)
+			assertNull(deduplicator.findPrevious(new KeyMID(mid, ADDRESS, PORT), newExchange(mid)));
+		assertEquals(3, deduplicator.getSize());
+		assertEquals(2, deduplicator.getEvictedCount());
+		assertNull(deduplicator.find(new KeyMID(1, ADDRESS, PORT)));
+		assertNull(deduplicator.find(new KeyMID(2, ADDRESS, PORT)));
+		assertNotNull(deduplicator.find(new KeyMID(3, ADDRESS, PORT)));
+		assertNotNull(deduplicator.find(new KeyMID(5, ADDRESS, PORT)));
+
+		deduplicator.clear();
+		assertEquals(0, deduplicator.getSize());
+		assertEquals(0, deduplicator.getBytes());
+	}
+
+	private Exchange newExchange(int mid) {
+		Request request = Request.newGet();
+		request.setType(Type.CON);
+		request.setMID(mid);
+		return new Exchange(request, Origin.REMOTE);
+	}
+}
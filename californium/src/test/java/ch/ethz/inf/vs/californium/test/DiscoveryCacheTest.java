@@ -0,0 +1,91 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.Resource;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the cached list of the discovery resource follows
+ * the changes of the resource tree and of the attributes of its resources.
+ */
+public class DiscoveryCacheTest {
+
+	private Server server;
+	private Resource sensors;
+	private ResourceBase temp;
+	private String uri;
+
+	@Before
+	public void startupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		CoAPEndpoint endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0));
+		server = new Server();
+		server.addEndpoint(endpoint);
+		sensors = new ResourceBase("sensors");
+		temp = new ResourceBase("temp");
+		temp.getAttributes().addResourceType("temperature-c");
+		sensors.add(temp);
+		server.add(sensors);
+		server.start();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/.well-known/core";
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		String first = discover(null);
+		assertTrue(first.contains("</sensors/temp>;rt=\"temperature-c\""));
+		assertEquals(first, discover(null));
+
+		// add a child
+		Resource light = new ResourceBase("light");
+		sensors.add(light);
+		assertTrue(discover(null).contains("</sensors/light>"));
+
+		// modify attributes
+		light.getAttributes().addResourceType("light-lux");
+		assertTrue(discover(null).contains("</sensors/light>;rt=\"light-lux\""));
+
+		// the query is cached separately
+		assertEquals("</sensors/light>;rt=\"light-lux\"", discover("rt=light-lux"));
+		light.getAttributes().clearResourceType();
+		assertEquals("", discover("rt=light-lux"));
+
+		// change the visibility
+		temp.setVisible(false);
+		assertFalse(discover(null).contains("</sensors/temp>"));
+		temp.setVisible(true);
+		assertTrue(discover(null).contains("</sensors/temp>"));
+
+		// rename and remove
+		temp.setName("temperature");
+		String renamed = discover(null);
+		assertTrue(renamed.contains("</sensors/temperature>;rt=\"temperature-c\""));
+		assertFalse(renamed.contains("</sensors/temp>"));
+		sensors.remove(light);
+		assertFalse(discover(null).contains("</sensors/light>"));
+	}
+
+	private String discover(String query) {
+		CoapClient client = new CoapClient(query == null ? uri : uri+"?"+query);
+		return client.get().getResponseText();
+	}
+}
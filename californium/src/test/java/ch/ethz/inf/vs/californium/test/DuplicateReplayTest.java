@@ -0,0 +1,106 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.EmptyMessage;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.interceptors.MessageInterceptor;
+import ch.ethz.inf.vs.californium.network.serialization.Serializer;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test sends the same confirmable request twice and checks that the
+ * server processes it only once and replays the same reply for the duplicate.
+ * The duplicate must be answered from the header alone, i.e., it must neither
+ * be parsed completely nor pass the interceptors and the stack.
+ */
+public class DuplicateReplayTest {
+
+	private Server server;
+	private int port;
+	private AtomicInteger requests = new AtomicInteger();
+	private AtomicInteger parsed = new AtomicInteger();
+	private DatagramSocket socket;
+
+	@Before
+	public void startupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		CoAPEndpoint endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0));
+		endpoint.addInterceptor(new ParsedRequestCounter());
+		server = new Server();
+		server.addEndpoint(endpoint);
+		server.add(new ResourceBase("res") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond("response "+requests.incrementAndGet());
+			}
+		});
+		server.start();
+		port = endpoint.getAddress().getPort();
+		socket = new DatagramSocket();
+		socket.setSoTimeout(2000);
+	}
+
+	@After
+	public void shutdownServer() {
+		socket.close();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		Request request = Request.newGet();
+		request.setType(Type.CON);
+		request.setMID(1234);
+		request.setToken(new byte[] {1, 2, 3});
+		request.getOptions().setURIPath("res");
+		request.setDestination(InetAddress.getByName("127.0.0.1"));
+		request.setDestinationPort(port);
+		byte[] bytes = new Serializer().serialize(request).getBytes();
+
+		byte[] first = exchange(bytes);
+		assertEquals(1, parsed.get());
+		byte[] second = exchange(bytes);
+		assertArrayEquals(first, second);
+		assertEquals(1, requests.get());
+		assertEquals(1, parsed.get());
+	}
+
+	private byte[] exchange(byte[] bytes) throws Exception {
+		socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("127.0.0.1"), port));
+		DatagramPacket packet = new DatagramPacket(new byte[2000], 2000);
+		socket.receive(packet);
+		return Arrays.copyOf(packet.getData(), packet.getLength());
+	}
+
+	private class ParsedRequestCounter implements MessageInterceptor {
+
+		public void receiveRequest(Request request) {
+			parsed.incrementAndGet();
+		}
+
+		public void sendRequest(Request request) { }
+		public void sendResponse(Response response) { }
+		public void sendEmptyMessage(EmptyMessage message) { }
+		public void receiveResponse(Response response) { }
+		public void receiveEmptyMessage(EmptyMessage message) { }
+	}
+}
@@ -0,0 +1,119 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.network.timer.HashedWheelTimer;
+
+/**
+ * This test schedules tasks on a small {@link HashedWheelTimer} so that some of
+ * them need several revolutions of the wheel. It also schedules and cancels
+ * tasks from several threads concurrently.
+ */
+public class HashedWheelTimerTest {
+
+	private ScheduledExecutorService executor;
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setupTimer() {
+		executor = Executors.newScheduledThreadPool(2);
+		timer = new HashedWheelTimer(5, 8); // one revolution is 40 ms
+		timer.setExecutor(executor);
+		timer.start();
+	}
+
+	@After
+	public void shutdownTimer() {
+		timer.stop();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+		final int[] delays = new int[] {0, 3, 17, 40, 95, 130};
+		final CountDownLatch latch = new CountDownLatch(delays.length);
+		final AtomicInteger early = new AtomicInteger();
+		for (final int delay:delays) {
+			final long scheduled = System.nanoTime();
+			timer.schedule(new Runnable() {
+				public void run() {
+					if (System.nanoTime() - scheduled < TimeUnit.MILLISECONDS.toNanos(delay))
+						early.incrementAndGet();
+					latch.countDown();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertEquals(0, early.get());
+		assertEquals(0, timer.getPendingCount());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		ScheduledFuture<?> canceled = timer.schedule(task, 50, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> other = timer.schedule(task, 50, TimeUnit.MILLISECONDS);
+		assertEquals(2, timer.getPendingCount());
+		assertTrue(canceled.cancel(false));
+		assertTrue(canceled.isCancelled());
+		assertEquals(1, timer.getPendingCount());
+
+		other.get(2, TimeUnit.SECONDS);
+		assertTrue(other.isDone());
+		assertFalse(other.cancel(false));
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void testConcurrentScheduleAndCancel() throws Exception {
+		final int threads = 4;
+		final int tasks = 1000;
+		final AtomicInteger runs = new AtomicInteger();
+		final AtomicInteger cancelled = new AtomicInteger();
+		final CountDownLatch scheduled = new CountDownLatch(threads);
+		final Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		for (int t=0;t<threads;t++) {
+			new Thread() {
+				public void run() {
+					for (int i=0;i<tasks;i++) {
+						ScheduledFuture<?> future = timer.schedule(task, i % 50, TimeUnit.MILLISECONDS);
+						// a task with a short delay might expire first
+						if (i % 2 == 0 && future.cancel(false))
+							cancelled.incrementAndGet();
+					}
+					scheduled.countDown();
+				}
+			}.start();
+		}
+		assertTrue(scheduled.await(2, TimeUnit.SECONDS));
+		assertTrue(cancelled.get() > 0);
+		long end = System.currentTimeMillis() + 2000;
+		while (runs.get() < threads * tasks - cancelled.get() && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		Thread.sleep(100);
+		assertEquals(threads * tasks - cancelled.get(), runs.get());
+		assertEquals(0, timer.getPendingCount());
+	}
+}
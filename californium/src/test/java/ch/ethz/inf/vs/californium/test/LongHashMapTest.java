@@ -0,0 +1,62 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.network.LongHashMap;
+
+/**
+ * This test compares the {@link LongHashMap} with a {@link HashMap} under a
+ * random sequence of insertions and removals.
+ */
+public class LongHashMapTest {
+
+	@Test
+	public void testRandomOperations() {
+		LongHashMap<Long> map = new LongHashMap<Long>(4);
+		Map<Long, Long> reference = new HashMap<Long, Long>();
+		Random random = new Random(42);
+
+		for (int i=0;i<100000;i++) {
+			// few distinct keys so that removals hit existing entries
+			long key = random.nextInt(2000) * 0x100000001L;
+			switch (random.nextInt(4)) {
+			case 0:
+			case 1:
+				assertEquals(reference.put(key, (long) i), map.put(key, (long) i));
+				break;
+			case 2:
+				assertEquals(reference.remove(key), map.remove(key));
+				break;
+			default:
+				assertEquals(reference.get(key), map.get(key));
+			}
+		}
+		assertEquals(reference.size(), map.size());
+		for (Map.Entry<Long, Long> entry:reference.entrySet())
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+
+		map.clear();
+		assertEquals(0, map.size());
+		assertNull(map.get(0));
+	}
+
+	@Test
+	public void testConditionalOperations() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		String one = "one";
+		assertNull(map.putIfAbsent(1, one));
+		assertEquals(one, map.putIfAbsent(1, "other"));
+		assertFalse(map.remove(1, "other"));
+		assertTrue(map.remove(1, one));
+		assertNull(map.get(1));
+	}
+}
@@ -0,0 +1,34 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigSnapshot;
+
+/**
+ * This test checks that the {@link NetworkConfigSnapshot} of a configuration
+ * is reused until a value changes and then reflects the new value.
+ */
+public class NetworkConfigSnapshotTest {
+
+	@Test
+	public void testSnapshot() {
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfigDefaults.ACK_TIMEOUT, 1500);
+		NetworkConfigSnapshot snapshot = config.getSnapshot();
+		assertEquals(1500, snapshot.getAckTimeout());
+		assertSame(snapshot, config.getSnapshot());
+
+		config.setInt(NetworkConfigDefaults.ACK_TIMEOUT, 3000);
+		NetworkConfigSnapshot changed = config.getSnapshot();
+		assertNotSame(snapshot, changed);
+		assertEquals(1500, snapshot.getAckTimeout());
+		assertEquals(3000, changed.getAckTimeout());
+		assertEquals(config.getLong(NetworkConfigDefaults.EXCHANGE_LIFECYCLE), changed.getExchangeLifecycle());
+	}
+}
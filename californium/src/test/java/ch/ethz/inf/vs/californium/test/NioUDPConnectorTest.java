@@ -0,0 +1,99 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.connector.DirectBufferPool;
+import ch.ethz.inf.vs.californium.network.connector.NioUDPConnector;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test exchanges requests and responses between a client and a server
+ * that both use the {@link NioUDPConnector}.
+ */
+public class NioUDPConnectorTest {
+
+	private static final String SERVER_RESPONSE = "nio says hi";
+
+	private Server server;
+	private NioUDPConnector serverConnector;
+	private CoAPEndpoint client;
+
+	@Before
+	public void startupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		NetworkConfig config = new NetworkConfig();
+		serverConnector = new NioUDPConnector(new InetSocketAddress(0));
+		server = new Server();
+		server.addEndpoint(new CoAPEndpoint(serverConnector, config));
+		server.add(new ResourceBase("nio") {
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(SERVER_RESPONSE);
+			}
+		});
+		server.start();
+
+		client = new CoAPEndpoint(new NioUDPConnector(new InetSocketAddress(0)), config);
+		client.start();
+	}
+
+	@After
+	public void shutdownServer() {
+		client.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testRequests() throws Exception {
+		for (int i=0;i<20;i++) {
+			Request request = new Request(Code.GET);
+			request.setURI("coap://localhost:"+serverConnector.getAddress().getPort()+"/nio");
+			client.sendRequest(request);
+
+			Response response = request.waitForResponse(1000);
+			assertNotNull(response);
+			assertEquals(ResponseCode.CONTENT, response.getCode());
+			assertEquals(SERVER_RESPONSE, response.getPayloadString());
+		}
+
+		// only the selector thread's receive buffer remains in use once the
+		// server's last send has returned its buffer
+		DirectBufferPool pool = serverConnector.getBufferPool();
+		for (int i=0;i<100 && pool.getInUse() > 1;i++)
+			Thread.sleep(10);
+		assertEquals(1, pool.getInUse());
+		assertEquals(0, pool.getMisses());
+	}
+
+	@Test
+	public void testBurstOfRequests() throws Exception {
+		// the server receives most of these in batches
+		Request[] requests = new Request[200];
+		for (int i=0;i<requests.length;i++) {
+			requests[i] = new Request(Code.GET);
+			requests[i].setConfirmable(false);
+			requests[i].setURI("coap://localhost:"+serverConnector.getAddress().getPort()+"/nio");
+			client.sendRequest(requests[i]);
+		}
+		for (Request request:requests) {
+			Response response = request.waitForResponse(2000);
+			assertNotNull(response);
+			assertEquals(SERVER_RESPONSE, response.getPayloadString());
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.Origin;
+import ch.ethz.inf.vs.californium.observe.ObserveRelation;
+import ch.ethz.inf.vs.californium.observe.ObservingEndpoint;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that an {@link ObservingEndpoint} finds, removes and
+ * replaces its observe relations by token.
+ */
+public class ObservingEndpointTest {
+
+	@Test
+	public void testLookupByToken() {
+		ObservingEndpoint endpoint = new ObservingEndpoint(new InetSocketAddress(5683));
+		ResourceBase resource = new ResourceBase("res");
+		ObserveRelation[] relations = new ObserveRelation[300];
+		for (int i=0;i<relations.length;i++) {
+			relations[i] = createRelation(endpoint, resource, i);
+			endpoint.addObserveRelation(relations[i]);
+		}
+		assertEquals(relations.length, endpoint.getObserveRelationCount());
+		for (int i=0;i<relations.length;i++)
+			assertSame(relations[i], endpoint.getObserveRelation(getToken(i)));
+		assertNull(endpoint.getObserveRelation(new byte[] {1, 2, 3}));
+
+		endpoint.removeObserveRelation(relations[7]);
+		assertNull(endpoint.getObserveRelation(getToken(7)));
+		assertEquals(relations.length - 1, endpoint.getObserveRelationCount());
+	}
+
+	@Test
+	public void testReplaceRelation() {
+		ObservingEndpoint endpoint = new ObservingEndpoint(new InetSocketAddress(5683));
+		ResourceBase resource = new ResourceBase("res");
+		ObserveRelation former = createRelation(endpoint, resource, 1);
+		former.setEstablished(true);
+		endpoint.addObserveRelation(former);
+
+		ObserveRelation relation = createRelation(endpoint, resource, 1);
+		endpoint.addObserveRelation(relation);
+		assertFalse(former.isEstablished());
+		assertSame(relation, endpoint.getObserveRelation(getToken(1)));
+
+		// removing the former relation does not remove the new one
+		endpoint.removeObserveRelation(former);
+		assertSame(relation, endpoint.getObserveRelation(getToken(1)));
+		assertEquals(1, endpoint.getObserveRelationCount());
+	}
+
+	private static ObserveRelation createRelation(ObservingEndpoint endpoint, ResourceBase resource, int i) {
+		Request request = Request.newGet();
+		request.setToken(getToken(i));
+		Exchange exchange = new Exchange(request, Origin.REMOTE);
+		exchange.setRequest(request);
+		return new ObserveRelation(endpoint, resource, exchange);
+	}
+
+	private static byte[] getToken(int i) {
+		return new byte[] {(byte) (i >> 8), (byte) i};
+	}
+}
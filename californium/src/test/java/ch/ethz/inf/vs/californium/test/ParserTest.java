@@ -2,11 +2,13 @@ package ch.ethz.inf.vs.californium.test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
 import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.OptionRegistry;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
 import ch.ethz.inf.vs.californium.coap.Option;
@@ -68,4 +70,116 @@ public class ParserTest {
 		assertArrayEquals(response.getToken(), result.getToken());
 		assertEquals(response.getOptions().asSortedList(), result.getOptions().asSortedList());
 	}
+	
+	@Test
+	public void testSharedResponseSerialization() {
+		Response representation = new Response(ResponseCode.CONTENT);
+		representation.setType(Type.NON);
+		representation.setPayload("shared representation");
+		representation.getOptions().setContentFormat(0).setObserve(17).setMaxAge(30);
+		
+		DataSerializer serializer = new DataSerializer();
+		for (int i=0;i<3;i++) {
+			Response shared = Response.createSharedResponse(representation);
+			shared.setMID(100 + i);
+			shared.setToken(new byte[i + 1]);
+			
+			Response plain = new Response(ResponseCode.CONTENT);
+			plain.setType(Type.NON);
+			plain.setMID(100 + i);
+			plain.setToken(new byte[i + 1]);
+			plain.setPayload("shared representation");
+			plain.getOptions().setContentFormat(0).setObserve(17).setMaxAge(30);
+			
+			assertArrayEquals(serializer.serializeResponse(plain), serializer.serializeResponse(shared));
+			assertTrue(shared.getSharedContent().getBytes() != null);
+		}
+	}
+	
+	@Test
+	public void testSerializationFormat() {
+		Request request = new Request(Code.GET);
+		request.setType(Type.CON);
+		request.setMID(0x1234);
+		request.setToken(new byte[] {0x42});
+		request.getOptions().addURIPath("a").setObserve(0);
+		request.setPayload(new byte[] {7});
+		
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		assertArrayEquals(new byte[] {
+				0x41, 0x01, 0x12, 0x34, 0x42, // header and token
+				0x60,                         // Observe (6) with empty value
+				0x51, 'a',                    // Uri-Path (11) "a"
+				(byte) 0xFF, 7                // payload
+			}, bytes);
+	}
+	
+	@Test
+	public void testMixedOptionsParsing() {
+		char[] longValue = new char[300];
+		java.util.Arrays.fill(longValue, 'x');
+		
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.ACK);
+		response.setMID(65535);
+		response.setToken(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+		response.getOptions().setObserve(70000)
+							.setMaxAge(100000)
+							.setContentFormat(0)
+							.setProxyURI(new String(longValue))
+							.addLocationPath("gr\u00FC\u00DFe")
+							.addOption(new Option(2, "two"))
+							.addOption(new Option(1000, 1));
+		response.getOptions().setBlock2(6, true, 5000);
+		response.getOptions().setBlock1(0, false, 0);
+		response.setPayload("payload");
+		
+		byte[] bytes = new DataSerializer().serializeResponse(response);
+		
+		DataParser parser = new DataParser(bytes);
+		assertTrue(parser.isResponse());
+		
+		Response result = parser.parseResponse();
+		assertEquals(response.getMID(), result.getMID());
+		assertArrayEquals(response.getToken(), result.getToken());
+		assertEquals(response.getOptions().asSortedList(), result.getOptions().asSortedList());
+		assertEquals("payload", result.getPayloadString());
+	}
+	
+	@Test
+	public void testLazyParsing() {
+		Request request = new Request(Code.PUT);
+		request.setType(Type.CON);
+		request.setMID(4711);
+		request.setToken(new byte[] {5, 6});
+		request.getOptions().addURIPath("lazy")
+							.addURIQuery("a=1")
+							.addOption(new Option(1000, "high"));
+		request.getOptions().setBlock1(2, true, 3);
+		request.setPayload("payload");
+		
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		
+		DataParser parser = new DataParser(bytes, true);
+		assertTrue(parser.isRequest());
+		
+		Request result = parser.parseRequest();
+		assertEquals(request.getMID(), result.getMID());
+		assertArrayEquals(request.getToken(), result.getToken());
+		assertTrue(result.hasOption(OptionRegistry.BLOCK1));
+		assertFalse(result.hasOption(OptionRegistry.BLOCK2));
+		assertTrue(result.hasOption(1000));
+		assertFalse(result.hasOption(2000));
+		
+		assertEquals("payload", result.getPayloadString());
+		assertEquals(request.getOptions().asSortedList(), result.getOptions().asSortedList());
+		assertTrue(result.hasOption(OptionRegistry.BLOCK1));
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testTruncatedOption() {
+		// Uri-Path with a length of 5 but only 2 bytes left
+		byte[] bytes = new byte[] {0x40, 0x01, 0x00, 0x01, (byte) 0xB5, 'a', 'b'};
+		new DataParser(bytes, true).parseRequest();
+	}
 }
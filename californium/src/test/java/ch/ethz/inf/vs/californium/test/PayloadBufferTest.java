@@ -0,0 +1,129 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.PayloadBuffer;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a {@link PayloadBuffer} moves its content to a file
+ * beyond the threshold and that a large Block1 upload is delivered to the
+ * resource as a stream over the spilled buffer.
+ */
+public class PayloadBufferTest {
+
+	private Server server;
+	private int serverPort;
+	private volatile boolean spilled;
+
+	@Before
+	public void setupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.BLOCKWISE_SPILL_THRESHOLD, 1000);
+		CoAPEndpoint endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0), config);
+		server = new Server();
+		server.addEndpoint(endpoint);
+		server.add(new ResourceBase("upload") {
+			@Override
+			public void handlePOST(CoapExchange exchange) {
+				spilled = exchange.advanced().getRequest().getPayloadBuffer().isSpilled();
+				try {
+					byte[] content = read(exchange.getRequestPayloadStream());
+					exchange.respond(ResponseCode.CHANGED, Integer.toString(content.length)+":"+checksum(content));
+				} catch (IOException e) {
+					exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR);
+				}
+			}
+		});
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		PayloadBuffer buffer = new PayloadBuffer(0, 100);
+		byte[] content = createContent(250);
+		buffer.append(Arrays.copyOfRange(content, 0, 64));
+		assertFalse(buffer.isSpilled());
+		buffer.append(Arrays.copyOfRange(content, 64, 128));
+		buffer.append(Arrays.copyOfRange(content, 128, 250));
+		assertTrue(buffer.isSpilled());
+		assertEquals(250, buffer.size());
+		assertArrayEquals(content, read(buffer.getInputStream()));
+		assertArrayEquals(content, buffer.toByteArray());
+		buffer.release();
+		assertEquals(0, buffer.size());
+		assertFalse(buffer.isSpilled());
+	}
+
+	@Test
+	public void testLargeUpload() throws Exception {
+		byte[] content = createContent(5000);
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/upload").setTimeout(5000);
+		CoapResponse response = client.post(content, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+		assertNotNull(response);
+		assertEquals(ResponseCode.CHANGED, response.getCode());
+		assertEquals("5000:"+checksum(content), response.getResponseText());
+		assertTrue(spilled);
+	}
+
+	private static byte[] createContent(int length) {
+		byte[] content = new byte[length];
+		for (int i=0;i<length;i++)
+			content[i] = (byte) (i * 31 + 7);
+		return content;
+	}
+
+	private static int checksum(byte[] content) {
+		int sum = 0;
+		for (byte b:content)
+			sum = sum * 31 + b;
+		return sum;
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			int n;
+			while ((n = in.read(buffer)) >= 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.PeerAffinityExecutor;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the {@link PeerAffinityExecutor} executes the tasks of
+ * a key in order on one thread, keeps delayed tasks on the lane that has
+ * scheduled them, and serves a server.
+ */
+public class PeerAffinityExecutorTest {
+
+	private PeerAffinityExecutor executor;
+
+	@Before
+	public void setup() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		executor = new PeerAffinityExecutor(4);
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(2, TimeUnit.SECONDS));
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testOrderAndAffinity() throws Exception {
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		final CountDownLatch done = new CountDownLatch(100);
+		for (int i=0;i<100;i++) {
+			final int n = i;
+			executor.execute(42, new Runnable() {
+				public void run() {
+					order.add(n);
+					threads.add(Thread.currentThread());
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		for (int i=0;i<100;i++) {
+			assertEquals(i, (int) order.get(i));
+			assertSame(threads.get(0), threads.get(i));
+		}
+	}
+
+	@Test
+	public void testScheduleOnLane() throws Exception {
+		final Thread[] threads = new Thread[2];
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute(7, new Runnable() {
+			public void run() {
+				threads[0] = Thread.currentThread();
+				executor.schedule(new Runnable() {
+					public void run() {
+						threads[1] = Thread.currentThread();
+						done.countDown();
+					}
+				}, 50, TimeUnit.MILLISECONDS);
+			}
+		});
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertSame(threads[0], threads[1]);
+	}
+
+	@Test
+	public void testServer() throws Exception {
+		NetworkConfig config = new NetworkConfig();
+		config.setBoolean(NetworkConfigDefaults.EXECUTOR_PEER_AFFINITY, true);
+		config.setInt(NetworkConfigDefaults.SERVER_THRESD_NUMER, 2);
+		Server server = new Server(config);
+		CoAPEndpoint endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0), config);
+		server.addEndpoint(endpoint);
+		server.add(new ResourceBase("res") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond("lane");
+			}
+		});
+		server.start();
+		try {
+			String uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/res";
+			for (int i=0;i<3;i++) {
+				CoapResponse response = new CoapClient(uri).setTimeout(2000).get();
+				assertNotNull(response);
+				assertEquals("lane", response.getResponseText());
+			}
+		} finally {
+			server.destroy();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.EmptyMessage;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.EndpointManager.ClientMessageDeliverer;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.interceptors.MessageInterceptor;
+import ch.ethz.inf.vs.californium.network.serialization.DataParser;
+import ch.ethz.inf.vs.californium.network.serialization.Serializer;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a client with a pipeline window keeps several Block2
+ * requests in flight and still assembles the response in order, with and
+ * without a shared representation on the server. It also checks that errors
+ * for blocks beyond the end of the representation do not abort the download.
+ */
+public class PipelinedBlockwiseTest {
+
+	private static final int WINDOW = 4;
+	private static final int BLOCK_SIZE = 256;
+
+	private Server server;
+	private int serverPort;
+	private CoAPEndpoint clientEndpoint;
+	private String content;
+
+	private AtomicInteger inFlight = new AtomicInteger();
+	private AtomicInteger maxInFlight = new AtomicInteger();
+
+	@Before
+	public void setup() throws IOException {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		StringBuilder builder = new StringBuilder();
+		for (int i=0;i<700;i++)
+			builder.append(i % 10 == 0 ? '\n' : ' ').append(i);
+		content = builder.toString();
+
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, BLOCK_SIZE)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, BLOCK_SIZE);
+		CoAPEndpoint serverEndpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0), config);
+		server = new Server();
+		server.addEndpoint(serverEndpoint);
+		server.add(new ResourceBase("large") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CONTENT, content, MediaTypeRegistry.TEXT_PLAIN);
+			}
+		});
+		server.add(new ResourceBase("tagged") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.setETag(new byte[] { 0x42 });
+				exchange.respond(ResponseCode.CONTENT, content, MediaTypeRegistry.TEXT_PLAIN);
+			}
+		});
+		server.start();
+		serverPort = serverEndpoint.getAddress().getPort();
+
+		NetworkConfig clientConfig = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.BLOCKWISE_PIPELINE_WINDOW, WINDOW);
+		clientEndpoint = new CoAPEndpoint(clientConfig);
+		clientEndpoint.setMessageDeliverer(new ClientMessageDeliverer());
+		clientEndpoint.addInterceptor(new InFlightCounter());
+		clientEndpoint.start();
+	}
+
+	@After
+	public void shutdown() {
+		clientEndpoint.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testPipelinedDownload() throws Exception {
+		for (String path:new String[] { "large", "tagged", "large" }) {
+			CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/"+path)
+				.setEndpoint(clientEndpoint).setTimeout(5000);
+			CoapResponse response = client.get();
+			assertNotNull(response);
+			assertEquals(ResponseCode.CONTENT, response.getCode());
+			assertEquals(content, response.getResponseText());
+		}
+		assertTrue("Only "+maxInFlight.get()+" block requests in flight", maxInFlight.get() > 1);
+		assertTrue(maxInFlight.get() <= WINDOW);
+	}
+
+	@Test
+	public void testErrorBeyondEnd() throws Exception {
+		DatagramSocket socket = new DatagramSocket();
+		new BlockServer(socket).start();
+		try {
+			CoapClient client = new CoapClient("coap://localhost:"+socket.getLocalPort()+"/large")
+				.setEndpoint(clientEndpoint).setTimeout(5000);
+			CoapResponse response = client.get();
+			assertNotNull(response);
+			assertEquals(ResponseCode.CONTENT, response.getCode());
+			assertEquals(content, response.getResponseText());
+		} finally {
+			socket.close();
+		}
+	}
+
+	/*
+	 * A server that answers requests for blocks beyond the end with 4.02
+	 * without Block2. It holds the last block back until it has sent such an
+	 * error, so that the error overtakes the last block.
+	 */
+	private class BlockServer extends Thread {
+
+		private final DatagramSocket socket;
+
+		private BlockServer(DatagramSocket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			byte[] payload = content.getBytes();
+			int last = (payload.length - 1) / BLOCK_SIZE;
+			DatagramPacket held = null;
+			try {
+				while (true) {
+					DatagramPacket packet = new DatagramPacket(new byte[2000], 2000);
+					socket.receive(packet);
+					Request request = new DataParser(Arrays.copyOf(packet.getData(), packet.getLength())).parseRequest();
+					BlockOption block2 = request.getOptions().getBlock2();
+					int num = block2 != null ? block2.getNum() : 0;
+					Response response;
+					if (num > last) {
+						response = Response.createPiggybackedResponse(request, ResponseCode.BAD_OPTION);
+					} else {
+						response = Response.createPiggybackedResponse(request, ResponseCode.CONTENT);
+						int from = num * BLOCK_SIZE;
+						response.setPayload(Arrays.copyOfRange(payload, from, Math.min(from + BLOCK_SIZE, payload.length)));
+						response.getOptions().setBlock2(4, num < last, num); // szx 4 is 256 bytes
+					}
+					byte[] bytes = new Serializer().serialize(response).getBytes();
+					DatagramPacket reply = new DatagramPacket(bytes, bytes.length, packet.getAddress(), packet.getPort());
+					if (num == last && held == null) {
+						held = reply;
+						continue;
+					}
+					socket.send(reply);
+					if (num > last && held != null) {
+						socket.send(held);
+						held = null;
+					}
+				}
+			} catch (IOException e) {
+				// the socket has been closed
+			}
+		}
+	}
+
+	private class InFlightCounter implements MessageInterceptor {
+
+		public void sendRequest(Request request) {
+			if (request.getOptions().hasBlock2() && request.getOptions().getBlock2().getNum() > 0) {
+				int n = inFlight.incrementAndGet();
+				while (n > maxInFlight.get())
+					maxInFlight.set(n);
+			}
+		}
+
+		public void receiveResponse(Response response) {
+			if (response.getOptions().hasBlock2() && response.getOptions().getBlock2().getNum() > 0)
+				inFlight.decrementAndGet();
+		}
+
+		public void sendResponse(Response response) { }
+		public void sendEmptyMessage(EmptyMessage message) { }
+		public void receiveRequest(Request request) { }
+		public void receiveEmptyMessage(EmptyMessage message) { }
+	}
+}
@@ -0,0 +1,75 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.network.stack.RemoteEndpoint;
+
+/**
+ * This test checks the RTO estimation and the NSTART limit of a
+ * {@link RemoteEndpoint}.
+ */
+public class RemoteEndpointTest {
+
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() { }
+	};
+
+	@Test
+	public void testRTOEstimation() {
+		RemoteEndpoint peer = new RemoteEndpoint(new InetSocketAddress(5683), 2000);
+		assertEquals(2000, peer.getRTO());
+		assertEquals(2f, peer.getBackoffFactor(), 0f);
+
+		// a fast peer without retransmissions lowers the RTO
+		for (int i=0;i<20;i++)
+			peer.updateRTO(100, 0);
+		assertTrue(peer.getRTO() < 1000);
+		assertEquals(3f, peer.getBackoffFactor(), 0f);
+
+		// weak measurements have less weight
+		long rto = peer.getRTO();
+		peer.updateRTO(10000, 1);
+		long weak = peer.getRTO();
+		assertTrue(weak > rto);
+
+		// ambiguous measurements are ignored
+		peer.updateRTO(10000, 3);
+		assertEquals(weak, peer.getRTO());
+
+		// the RTO never exceeds the upper limit
+		for (int i=0;i<20;i++)
+			peer.updateRTO(100000, 0);
+		assertEquals(RemoteEndpoint.MAX_RTO, peer.getRTO());
+		assertEquals(1.5f, peer.getBackoffFactor(), 0f);
+	}
+
+	@Test
+	public void testNSTART() {
+		RemoteEndpoint peer = new RemoteEndpoint(new InetSocketAddress(5683), 2000);
+		Runnable queued = new Runnable() {
+			public void run() { }
+		};
+		assertTrue(peer.acquire(1, NOTHING));
+		assertFalse(peer.acquire(1, queued));
+		assertEquals(1, peer.getOutstandingCount());
+		assertEquals(1, peer.getQueueSize());
+		assertFalse(peer.isIdle());
+
+		// the slot goes to the queued transmission
+		assertSame(queued, peer.release());
+		assertEquals(1, peer.getOutstandingCount());
+		assertEquals(0, peer.getQueueSize());
+
+		assertNull(peer.release());
+		assertEquals(0, peer.getOutstandingCount());
+		assertTrue(peer.isIdle());
+	}
+}
@@ -0,0 +1,93 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.server.RouteTable;
+import ch.ethz.inf.vs.californium.server.resources.Resource;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the {@link RouteTable} follows the changes of the
+ * resource tree and resolves wildcards.
+ */
+public class RouteTableTest {
+
+	@Test
+	public void testTreeChanges() {
+		ResourceBase root = new ResourceBase("");
+		ResourceBase a = new ResourceBase("a");
+		ResourceBase b = new ResourceBase("b");
+		root.add(a.add(b));
+		RouteTable routes = new RouteTable(root);
+
+		assertSame(root, routes.findResource(path()));
+		assertSame(a, routes.findResource(path("a")));
+		assertSame(b, routes.findResource(path("a", "b")));
+		assertNull(routes.findResource(path("a", "c")));
+		assertNull(routes.findResource(path("x", "b")));
+
+		// children added after the table has been created
+		ResourceBase c = new ResourceBase("c");
+		ResourceBase d = new ResourceBase("d");
+		b.add(c.add(d));
+		assertSame(d, routes.findResource(path("a", "b", "c", "d")));
+
+		// renamed resource
+		b.setName("e");
+		assertNull(routes.findResource(path("a", "b")));
+		assertSame(d, routes.findResource(path("a", "e", "c", "d")));
+
+		// removed resources
+		a.remove(b);
+		assertNull(routes.findResource(path("a", "e")));
+		assertNull(routes.findResource(path("a", "e", "c", "d")));
+		root.remove("a");
+		assertNull(routes.findResource(path("a")));
+
+		// moved resource
+		root.add(c);
+		assertSame(d, routes.findResource(path("c", "d")));
+	}
+
+	@Test
+	public void testWildcards() {
+		ResourceBase root = new ResourceBase("");
+		ResourceBase devices = new ResourceBase("devices");
+		ResourceBase any = new ResourceBase("{id}");
+		ResourceBase state = new ResourceBase("state");
+		ResourceBase all = new ResourceBase("all");
+		root.add(devices.add(any.add(state), all));
+		RouteTable routes = new RouteTable(root);
+
+		assertSame(all, routes.findResource(path("devices", "all")));
+		assertSame(any, routes.findResource(path("devices", "17")));
+		assertSame(state, routes.findResource(path("devices", "42", "state")));
+		assertNull(routes.findResource(path("devices", "42", "other")));
+	}
+
+	@Test
+	public void testOverriddenGetChild() {
+		final ResourceBase sub = new ResourceBase("sub");
+		ResourceBase root = new ResourceBase("");
+		ResourceBase catchAll = new ResourceBase("catchall") {
+			@Override
+			public Resource getChild(String name) {
+				return sub;
+			}
+		};
+		root.add(catchAll);
+		RouteTable routes = new RouteTable(root);
+
+		assertSame(sub, routes.findResource(path("catchall", "anything")));
+	}
+
+	private static List<String> path(String... segments) {
+		return Arrays.asList(segments);
+	}
+}
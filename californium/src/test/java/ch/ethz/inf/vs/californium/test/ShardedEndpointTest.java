@@ -0,0 +1,89 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.ShardedEndpoint;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test sends requests from several clients to a server with a
+ * {@link ShardedEndpoint}. All shards must serve the same resource tree.
+ */
+public class ShardedEndpointTest {
+
+	private static final int SHARDS = 4;
+	private static final int CLIENTS = 8;
+
+	private Server server;
+	private ShardedEndpoint endpoint;
+	private List<CoAPEndpoint> clients = new ArrayList<CoAPEndpoint>();
+
+	@Before
+	public void startupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		NetworkConfig config = new NetworkConfig();
+		endpoint = new ShardedEndpoint(new InetSocketAddress(0), SHARDS, config);
+		server = new Server();
+		server.addEndpoint(endpoint);
+		server.add(new ResourceBase("shard") {
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(Thread.currentThread().getName());
+			}
+		});
+		server.start();
+
+		for (int i=0;i<CLIENTS;i++) {
+			CoAPEndpoint client = new CoAPEndpoint(new InetSocketAddress(0), config);
+			client.start();
+			clients.add(client);
+		}
+	}
+
+	@After
+	public void shutdownServer() {
+		for (CoAPEndpoint client:clients)
+			client.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testShardedRequests() throws Exception {
+		assertEquals(SHARDS, endpoint.getShards().size());
+		int port = endpoint.getAddress().getPort();
+
+		for (CoAPEndpoint client:clients) {
+			String thread = null;
+			for (int i=0;i<3;i++) {
+				Request request = new Request(Code.GET);
+				request.setURI("coap://localhost:"+port+"/shard");
+				client.sendRequest(request);
+
+				Response response = request.waitForResponse(1000);
+				assertNotNull(response);
+				assertEquals(ResponseCode.CONTENT, response.getCode());
+
+				// a peer always ends up at the same shard
+				if (thread == null) thread = response.getPayloadString();
+				assertEquals(thread, response.getPayloadString());
+			}
+		}
+	}
+}
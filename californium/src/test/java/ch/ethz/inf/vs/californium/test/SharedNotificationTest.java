@@ -0,0 +1,111 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapHandler;
+import ch.ethz.inf.vs.californium.CoapObserveRelation;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a resource with shared notifications processes the
+ * request only once per change, no matter how many clients observe it.
+ */
+public class SharedNotificationTest {
+
+	private static final int OBSERVERS = 5;
+
+	private Server server;
+	private SharedResource resource;
+	private List<CoAPEndpoint> clientEndpoints = new ArrayList<CoAPEndpoint>();
+	private String uri;
+
+	@Before
+	public void startupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		CoAPEndpoint endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0));
+		server = new Server();
+		server.addEndpoint(endpoint);
+		resource = new SharedResource("shared");
+		server.add(resource);
+		server.start();
+		uri = "coap://localhost:"+endpoint.getAddress().getPort()+"/shared";
+	}
+
+	@After
+	public void shutdownServer() {
+		for (CoAPEndpoint endpoint:clientEndpoints)
+			endpoint.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testSharedNotifications() throws Exception {
+		final CountDownLatch established = new CountDownLatch(OBSERVERS);
+		final CountDownLatch notified = new CountDownLatch(OBSERVERS);
+		List<CoapObserveRelation> relations = new ArrayList<CoapObserveRelation>();
+		for (int i=0;i<OBSERVERS;i++) {
+			CoAPEndpoint endpoint = new CoAPEndpoint(new InetSocketAddress((InetAddress) null, 0));
+			endpoint.start();
+			clientEndpoints.add(endpoint);
+			CoapClient client = new CoapClient(uri);
+			client.setEndpoint(endpoint);
+			relations.add(client.observe(new CoapHandler() {
+				public void onLoad(CoapResponse response) {
+					if ("state 0".equals(response.getResponseText()))
+						established.countDown();
+					else if ("state 1".equals(response.getResponseText()))
+						notified.countDown();
+				}
+				public void onError() { }
+			}));
+		}
+		assertTrue(established.await(2, TimeUnit.SECONDS));
+		assertEquals(OBSERVERS, resource.getObserverCount());
+		assertEquals(OBSERVERS, resource.requests.get());
+
+		resource.state = 1;
+		resource.changed();
+		assertTrue(notified.await(2, TimeUnit.SECONDS));
+		assertEquals(OBSERVERS + 1, resource.requests.get());
+
+		for (CoapObserveRelation relation:relations)
+			relation.proactiveCancel();
+	}
+
+	private static class SharedResource extends ResourceBase {
+
+		private final AtomicInteger requests = new AtomicInteger();
+		private volatile int state;
+
+		public SharedResource(String name) {
+			super(name);
+			setObservable(true);
+			setSharedNotifications(true);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			requests.incrementAndGet();
+			exchange.respond("state "+state);
+		}
+	}
+}
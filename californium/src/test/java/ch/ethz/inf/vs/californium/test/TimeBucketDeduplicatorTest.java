@@ -0,0 +1,87 @@
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
+import ch.ethz.inf.vs.californium.network.Exchange.Origin;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.deduplication.TimeBucketDeduplicator;
+import ch.ethz.inf.vs.californium.network.timer.ExecutorTimerService;
+
+/**
+ * This test checks that the {@link TimeBucketDeduplicator} detects duplicates
+ * from IPv4 and IPv6 peers and forgets them after the exchange lifecycle.
+ */
+public class TimeBucketDeduplicatorTest {
+
+	private static final byte[] IPV4 = new byte[] {10, 0, 0, 1};
+	private static final byte[] IPV6 = new byte[] {0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+	private ScheduledExecutorService executor;
+	private TimeBucketDeduplicator deduplicator;
+
+	@Before
+	public void setup() {
+		NetworkConfig config = new NetworkConfig();
+		config.setLong(NetworkConfigDefaults.EXCHANGE_LIFECYCLE, 300);
+		config.setInt(NetworkConfigDefaults.TIME_BUCKET_COUNT, 4);
+		executor = Executors.newSingleThreadScheduledExecutor();
+		ExecutorTimerService timer = new ExecutorTimerService();
+		timer.setExecutor(executor);
+		deduplicator = new TimeBucketDeduplicator(config);
+		deduplicator.setTimer(timer);
+	}
+
+	@After
+	public void shutdown() {
+		deduplicator.stop();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testDuplicates() {
+		Exchange first = newExchange();
+		Exchange second = newExchange();
+		assertNull(deduplicator.findPrevious(new KeyMID(7, IPV4, 5683), first));
+		assertNull(deduplicator.findPrevious(new KeyMID(7, IPV6, 5683), second));
+		assertNull(deduplicator.findPrevious(new KeyMID(7, IPV4, 5684), newExchange()));
+		assertSame(first, deduplicator.findPrevious(new KeyMID(7, IPV4, 5683), newExchange()));
+		assertSame(second, deduplicator.find(new KeyMID(7, IPV6, 5683)));
+		assertEquals(3, deduplicator.getSize());
+
+		deduplicator.clear();
+		assertNull(deduplicator.find(new KeyMID(7, IPV4, 5683)));
+		assertEquals(0, deduplicator.getSize());
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		deduplicator.start();
+		Exchange exchange = newExchange();
+		KeyMID key = new KeyMID(42, IPV4, 5683);
+		assertNull(deduplicator.findPrevious(key, exchange));
+
+		Thread.sleep(150);
+		assertSame(exchange, deduplicator.find(key));
+
+		Thread.sleep(600);
+		assertNull(deduplicator.find(key));
+		assertEquals(0, deduplicator.getSize());
+	}
+
+	private Exchange newExchange() {
+		return new Exchange(Request.newGet(), Origin.REMOTE);
+	}
+}
@@ -10,6 +10,7 @@ import java.util.logging.Logger;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.ShardedEndpoint;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
 import ch.ethz.inf.vs.californium.server.Server;
@@ -51,6 +52,7 @@ public class BenchmarkServer {
 		int endpoint_threads = DEFAULT_ENDPOINT_THREAD_COUNT;
 		boolean verbose = false;
 		boolean use_workers = false;
+		int shards = 0;
 		
 		// Parse input
 		if (args.length > 0) {
@@ -73,6 +75,8 @@ public class BenchmarkServer {
 					verbose = true;
 				} else if ("-use-workers".equals(arg)) {
 					use_workers = true;
+				} else if ("-shards".equals(arg)) {
+					shards = Integer.parseInt(args[index+1]);
 				} else {
 					System.err.println("Unknwon arg "+arg);
 					printUsage();
@@ -103,7 +107,13 @@ public class BenchmarkServer {
 		server.add(new FibonacciResource("fibonacci"));
 		server.add(new ShutDownResource("shutdown"));
 		
-		server.addEndpoint(new CoAPEndpoint(sockAddr));
+		if (shards > 0) {
+			ShardedEndpoint endpoint = new ShardedEndpoint(sockAddr, shards, NetworkConfig.getStandard());
+			System.out.println("Use "+shards+" shards"+(endpoint.isReusePort() ? " with SO_REUSEPORT" : " on one socket"));
+			server.addEndpoint(endpoint);
+		} else {
+			server.addEndpoint(new CoAPEndpoint(sockAddr));
+		}
 		server.start();
 
 		System.out.println("Benchmark server listening on " + sockAddr);
@@ -144,7 +154,7 @@ public class BenchmarkServer {
 	private static void printUsage() {
 		System.out.println();
 		System.out.println("SYNOPSIS");
-		System.out.println("	" + BenchmarkServer.class.getSimpleName() + " [-a ADDRESS] [-p PORT] [-t POOLSIZE] [-s SENDERS] [-r RECEIVERS]");
+		System.out.println("	" + BenchmarkServer.class.getSimpleName() + " [-a ADDRESS] [-p PORT] [-t POOLSIZE] [-s SENDERS] [-r RECEIVERS] [-shards SHARDS]");
 		System.out.println("OPTIONS");
 		System.out.println("	-a ADDRESS");
 		System.out.println("		Bind the server to a specific host IP address given by ADDRESS (default is wildcard address).");
@@ -160,6 +170,9 @@ public class BenchmarkServer {
 		System.out.println("		The default is number of cores on Windows and 1 otherwise.");
 		System.out.println("    -use-workers");
 		System.out.println("        Use a specialized queue for incoming requests that reduces synchronization of threads.");
+		System.out.println("	-shards SHARDS");
+		System.out.println("		Serve the port with SHARDS independent endpoint shards, each with its own thread.");
+		System.out.println("		Each shard binds its own socket with SO_REUSEPORT if the platform supports it.");
 		System.out.println("OPTIMIZATIONS");
 		System.out.println("	-Xms4096m -Xmx4096m");
 		System.out.println("		Set the Java heap size to 4 GiB.");
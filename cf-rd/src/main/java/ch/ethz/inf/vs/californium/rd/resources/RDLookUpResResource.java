@@ -58,14 +58,28 @@ public class RDLookUpResResource extends ResourceBase {
 				
 		query.removeAll(toRemove);
 		
-		while (resIt.hasNext()){
-			Resource res = resIt.next();
-			if (res.getClass() == RDNodeResource.class){
-				RDNodeResource node = (RDNodeResource) res;
-				if ( (domainQuery.isEmpty() || domainQuery.equals(node.getDomain())) && 
+		if (!query.isEmpty()) {
+			// only visit the resources that match the query
+			StringBuilder builder = new StringBuilder();
+			for (Resource res : rdResource.getAttributeIndex().find(query)) {
+				RDNodeResource node = getNode(res);
+				if (node != null && node != res && res.getAttributes().getCount() > 0 &&
+					 (domainQuery.isEmpty() || domainQuery.equals(node.getDomain())) && 
 					 (endpointQuery.isEmpty() || endpointQuery.equals(node.getEndpointIdentifier())) ) {
-					String link = node.toLinkFormat(query);
-					result += (!link.isEmpty()) ? link+"," : ""; 
+					builder.append(node.toLinkFormatItem(res)).append(',');
+				}
+			}
+			result = builder.toString();
+		} else {
+			while (resIt.hasNext()){
+				Resource res = resIt.next();
+				if (res.getClass() == RDNodeResource.class){
+					RDNodeResource node = (RDNodeResource) res;
+					if ( (domainQuery.isEmpty() || domainQuery.equals(node.getDomain())) && 
+						 (endpointQuery.isEmpty() || endpointQuery.equals(node.getEndpointIdentifier())) ) {
+						String link = node.toLinkFormat(query);
+						result += (!link.isEmpty()) ? link+"," : ""; 
+					}
 				}
 			}
 		}
@@ -77,4 +91,15 @@ public class RDLookUpResResource extends ResourceBase {
 		}
 		
 	}
+
+	/*
+	 * Returns the node that registered the specified resource or null.
+	 */
+	private RDNodeResource getNode(Resource resource) {
+		for (Resource res = resource; res != null; res = res.getParent()) {
+			if (res.getClass() == RDNodeResource.class)
+				return (RDNodeResource) res;
+		}
+		return null;
+	}
 }
\ No newline at end of file
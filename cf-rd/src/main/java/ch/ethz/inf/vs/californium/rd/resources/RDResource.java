@@ -6,12 +6,18 @@ import java.util.List;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.LinkFormat;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.server.resources.AttributeIndex;
 import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
 import ch.ethz.inf.vs.californium.server.resources.Resource;
 import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
 
 public class RDResource extends ResourceBase {
 
+	/*
+	 * The index over the attributes of all registered resources.
+	 */
+	private final AttributeIndex index;
+
 	public RDResource() {
 		this("rd");
 		getAttributes().addResourceType("core.rd");
@@ -20,6 +26,15 @@ public class RDResource extends ResourceBase {
 	public RDResource(String resourceIdentifier) {
 		super(resourceIdentifier);
 		getAttributes().addResourceType("core.rd");
+		index = new AttributeIndex(this);
+	}
+
+	/*
+	 * Returns the index over the attributes of all registered resources to
+	 * look up resources by a query.
+	 */
+	public AttributeIndex getAttributeIndex() {
+		return index;
 	}
 
 	/*